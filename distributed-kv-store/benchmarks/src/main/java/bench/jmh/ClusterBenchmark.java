@@ -0,0 +1,79 @@
+package bench.jmh;
+
+import core.Node;
+import core.RingManager;
+import node.ConsistencyLevel;
+import node.NodeClient;
+import node.NodeServer;
+import node.ServerConfig;
+import org.openjdk.jmh.annotations.*;
+import storage.StorageConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end PUT and GET through NodeClient against an in-process 3-node cluster (RF 3,
+// in-memory storage), each request sent to a random node. SampleTime mode reports the
+// latency percentiles, Throughput the ops/ms.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ClusterBenchmark {
+
+    private static final int BASE_PORT = 5600;
+    private static final int NODES = 3;
+    private static final int KEYS = 10_000;
+
+    @Param({"ONE", "QUORUM"})
+    public ConsistencyLevel consistency;
+
+    private NodeServer[] servers;
+    private PrintStream stdout;
+    private final String value = "v".repeat(100);
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // node request logging
+        RingManager ring = new RingManager();
+        for (int i = 0; i < NODES; i++) ring.addNode(new Node("Node-" + i, "localhost", BASE_PORT + i));
+        servers = new NodeServer[NODES];
+        for (int i = 0; i < NODES; i++) {
+            servers[i] = new NodeServer(BASE_PORT + i, "Node-" + i, ring, 3, ServerConfig.defaults(),
+                    StorageConfig.memoryOnly());
+            servers[i].start();
+        }
+        for (int i = 0; i < KEYS; i++) {
+            NodeClient.sendPutRequest(key(i), value, "localhost", BASE_PORT + i % NODES, ConsistencyLevel.ALL);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (NodeServer server : servers) server.stop();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public String put() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        return NodeClient.sendPutRequest(key(rnd.nextInt(KEYS)), value, "localhost",
+                BASE_PORT + rnd.nextInt(NODES), consistency);
+    }
+
+    @Benchmark
+    public String get() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        return NodeClient.sendGetRequest(key(rnd.nextInt(KEYS)), "localhost", BASE_PORT + rnd.nextInt(NODES), consistency);
+    }
+
+    private static String key(int i) {
+        return "user:" + i;
+    }
+}
@@ -0,0 +1,72 @@
+package bench.jmh;
+
+import node.ConsistencyLevel;
+import node.KeyValueBatch;
+import node.Message;
+import node.MessageCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Binary frame encoding and decoding of a single-key PUT and of a 100-entry MULTI_PUT.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"16", "1024"})
+    public int valueBytes;
+
+    private Message put;
+    private Message multiPut;
+    private byte[] putFrame;
+    private byte[] multiPutFrame;
+
+    @Setup
+    public void setUp() {
+        String value = "v".repeat(valueBytes);
+        put = new Message(Message.MessageType.PUT, "user:123456", value, "client-1", 42L)
+                .withConsistency(ConsistencyLevel.QUORUM);
+        KeyValueBatch batch = new KeyValueBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.add(("user:" + i).getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+        }
+        multiPut = new Message(Message.MessageType.MULTI_PUT, null, batch.toByteArray(), "client-1", 43L);
+        putFrame = body(MessageCodec.encode(put));
+        multiPutFrame = body(MessageCodec.encode(multiPut));
+    }
+
+    @Benchmark
+    public byte[] encodePut() {
+        return MessageCodec.encode(put);
+    }
+
+    @Benchmark
+    public Message decodePut() throws IOException {
+        return MessageCodec.decode(putFrame, 0, putFrame.length);
+    }
+
+    @Benchmark
+    public byte[] encodeMultiPut() {
+        return MessageCodec.encode(multiPut);
+    }
+
+    @Benchmark
+    public Message decodeMultiPut() throws IOException {
+        return MessageCodec.decode(multiPutFrame, 0, multiPutFrame.length);
+    }
+
+    // Strips the varint frame length that encode() puts in front
+    private static byte[] body(byte[] frame) {
+        int pos = 0;
+        while ((frame[pos] & 0x80) != 0) pos++;
+        byte[] body = new byte[frame.length - pos - 1];
+        System.arraycopy(frame, pos + 1, body, 0, body.length);
+        return body;
+    }
+}
@@ -0,0 +1,37 @@
+package bench.jmh;
+
+import core.HashUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Key hashing: the SHA-1 hex digest and the ring tokens derived from either algorithm.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+
+    @Param({"user:123456", "a-much-longer-key/with/several/path/segments/0123456789"})
+    public String key;
+
+    private final HashUtil.Algorithm murmur = HashUtil.Algorithm.MURMUR3;
+    private final HashUtil.Algorithm sha1 = HashUtil.Algorithm.SHA1;
+
+    @Benchmark
+    public String sha1Hex() {
+        return HashUtil.sha1(key);
+    }
+
+    @Benchmark
+    public long sha1Token() {
+        return sha1.token(key);
+    }
+
+    @Benchmark
+    public long murmur3Token() {
+        return murmur.token(key);
+    }
+}
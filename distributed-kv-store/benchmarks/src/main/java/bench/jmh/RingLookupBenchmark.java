@@ -0,0 +1,48 @@
+package bench.jmh;
+
+import core.Node;
+import core.RingManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Key-to-node lookups on rings of 3 to 1000 nodes with the default virtual node count.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RingLookupBenchmark {
+
+    @Param({"3", "10", "100", "1000"})
+    public int nodes;
+
+    private RingManager ring;
+    private final String[] keys = new String[4096];
+
+    @Setup
+    public void setUp() {
+        List<Node> members = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) members.add(new Node("Node-" + i, "localhost", 5000 + i));
+        ring = new RingManager(RingManager.DEFAULT_VIRTUAL_NODES, members, 1);
+        for (int i = 0; i < keys.length; i++) keys[i] = "user:" + i;
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public String getNodeForKey(Cursor cursor) {
+        return ring.getNodeForKey(keys[cursor.next++ & (keys.length - 1)]);
+    }
+
+    @Benchmark
+    public List<String> getNNodesForKey(Cursor cursor) {
+        return ring.getNNodesForKey(keys[cursor.next++ & (keys.length - 1)], 3);
+    }
+}
@@ -0,0 +1,86 @@
+package bench.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import storage.DurabilityConfig;
+import storage.FsyncPolicy;
+import storage.StorageConfig;
+import storage.StorageEngine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Point reads and writes on each storage engine, alone and with readers and a writer
+// contending on the same engine. Durable engines use fsync=OS so the disk is not measured.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+
+    private static final int KEYS = 100_000;
+
+    @Param({"MEMORY", "OFF_HEAP", "LSM"})
+    public StorageConfig.EngineType engine;
+
+    @Param({"false"})
+    public boolean durable;
+
+    private Path dir;
+    private StorageEngine store;
+    private final String value = "v".repeat(100);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("kv-jmh-");
+        // The LSM engine always needs its directory
+        boolean onDisk = durable || engine == StorageConfig.EngineType.LSM;
+        DurabilityConfig durability = onDisk
+                ? new DurabilityConfig(true, dir, FsyncPolicy.OS, 0, 0)
+                : DurabilityConfig.disabled();
+        store = new StorageConfig(engine, durability, 4L * 1024 * 1024, 10L * 1024 * 1024).open();
+        for (int i = 0; i < KEYS; i++) store.put(key(i), value);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String get() throws IOException {
+        return store.get(key(ThreadLocalRandom.current().nextInt(KEYS)));
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        store.put(key(ThreadLocalRandom.current().nextInt(KEYS)), value);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public String contendedGet() throws IOException {
+        return get();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedPut() throws IOException {
+        put();
+    }
+
+    private static String key(int i) {
+        return "user:" + i;
+    }
+}
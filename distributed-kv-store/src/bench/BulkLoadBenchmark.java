@@ -0,0 +1,83 @@
+package bench;
+
+import core.Node;
+import core.RingManager;
+import node.ConsistencyLevel;
+import node.NodeServer;
+import node.RoutingClient;
+import node.ServerConfig;
+import storage.StorageConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+// Bulk-load ingest: one PUT per key (pipelined, several in flight) against MULTI_PUT
+// batches, on an in-process cluster with in-memory storage and QUORUM writes.
+//
+//   java -cp out bench.BulkLoadBenchmark [keys] [batchSize] [inFlight]
+public class BulkLoadBenchmark {
+
+    private static final int BASE_PORT = 5200;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int inFlight = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        String value = "v".repeat(100);
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // node request logging
+
+        RingManager ring = new RingManager();
+        NodeServer[] servers = new NodeServer[3];
+        for (int i = 0; i < servers.length; i++) ring.addNode(new Node("Node-" + i, "localhost", BASE_PORT + i));
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new NodeServer(BASE_PORT + i, "Node-" + i, ring, 3, ServerConfig.defaults(),
+                    StorageConfig.memoryOnly());
+            servers[i].start();
+        }
+        RoutingClient client = new RoutingClient(List.of(new InetSocketAddress("localhost", BASE_PORT)));
+
+        report.printf("%d keys, 100-byte values, 3 nodes, RF 3, QUORUM, %d requests in flight%n", keys, inFlight);
+
+        long start = System.nanoTime();
+        Semaphore singles = new Semaphore(inFlight);
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        for (int i = 0; i < keys; i++) {
+            singles.acquire();
+            pending.add(client.putAsync("single:" + i, value, ConsistencyLevel.QUORUM)
+                    .whenComplete((r, e) -> singles.release()));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        double single = keys / ((System.nanoTime() - start) / 1e9);
+        report.printf("%-22s %12.0f keys/s%n", "PUT per key", single);
+
+        start = System.nanoTime();
+        pending.clear();
+        Semaphore batches = new Semaphore(Math.max(1, inFlight / 8));
+        for (int i = 0; i < keys; i += batchSize) {
+            Map<String, String> batch = new HashMap<>();
+            for (int k = i; k < Math.min(keys, i + batchSize); k++) batch.put("multi:" + k, value);
+            batches.acquire();
+            pending.add(client.multiPutAsync(batch, ConsistencyLevel.QUORUM).whenComplete((r, e) -> batches.release()));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        double multi = keys / ((System.nanoTime() - start) / 1e9);
+        report.printf("%-22s %12.0f keys/s  (%.1fx)%n", "MULTI_PUT x" + batchSize, multi, multi / single);
+
+        List<String> sample = new ArrayList<>();
+        for (int i = 0; i < keys; i += Math.max(1, keys / 1000)) sample.add("multi:" + i);
+        report.printf("multi-get of %d keys returned %d%n", sample.size(),
+                client.multiGet(sample, ConsistencyLevel.QUORUM).size());
+
+        for (NodeServer server : servers) server.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import node.Message;
+import node.MessageCodec;
+
+import java.io.*;
+
+// Compares the binary MessageCodec against the Java serialization path it replaced.
+// The legacy numbers use a fresh ObjectOutputStream/ObjectInputStream per message,
+// which is what a socket-per-message client paid.
+//
+//   java -cp out bench.CodecBenchmark [iterations]
+public class CodecBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        Message[] samples = {
+                new Message(Message.MessageType.GET, "user:1042", null, "UI", 17),
+                new Message(Message.MessageType.PUT, "user:1042", "{\"name\":\"alice\",\"visits\":12}", "Node-A", 18),
+                new Message(Message.MessageType.PUT, "blob:7", "x".repeat(4096), "Node-B", 19)
+        };
+
+        System.out.printf("%-10s %-8s %12s %14s %14s%n", "msg", "codec", "bytes/op", "encode ns/op", "decode ns/op");
+        for (Message m : samples) {
+            String label = m.getType() + "/" + m.getValueBytes().length;
+
+            byte[] legacy = javaEncode(m);
+            byte[] binary = MessageCodec.encode(m);
+            int prefix = varIntPrefix(binary); // decode() takes the body without its length prefix
+
+            // warm up both paths before timing
+            run(iterations / 4, () -> javaEncode(m));
+            run(iterations / 4, () -> javaDecode(legacy));
+            run(iterations / 4, () -> MessageCodec.encode(m));
+            run(iterations / 4, () -> MessageCodec.decode(binary, prefix, binary.length - prefix));
+
+            double javaEnc = run(iterations, () -> javaEncode(m));
+            double javaDec = run(iterations, () -> javaDecode(legacy));
+            double binEnc = run(iterations, () -> MessageCodec.encode(m));
+            double binDec = run(iterations, () -> MessageCodec.decode(binary, prefix, binary.length - prefix));
+
+            System.out.printf("%-10s %-8s %12d %14.1f %14.1f%n", label, "java", legacy.length, javaEnc, javaDec);
+            System.out.printf("%-10s %-8s %12d %14.1f %14.1f%n", label, "binary", binary.length, binEnc, binDec);
+        }
+    }
+
+    private interface Op {
+        Object run() throws Exception;
+    }
+
+    private static double run(int iterations, Op op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = op.run();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+
+    private static int varIntPrefix(byte[] frame) {
+        int i = 0;
+        while ((frame[i] & 0x80) != 0) i++;
+        return i + 1;
+    }
+
+    private static byte[] javaEncode(Message m) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(m);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Message javaDecode(byte[] data) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Message) in.readObject();
+        }
+    }
+}
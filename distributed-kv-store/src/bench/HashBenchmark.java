@@ -0,0 +1,69 @@
+package bench;
+
+import core.HashUtil;
+import core.Node;
+import core.RingManager;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Key hashing cost: the original sha1-to-hex-string path against HashUtil tokens,
+// and the resulting getNNodesForKey cost with each ring hash.
+//
+//   java -cp out bench.HashBenchmark [iterations]
+public class HashBenchmark {
+
+    private static volatile Object sink;
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) keys[i] = "user:" + (i * 7919L) + ":profile";
+
+        System.out.printf("%-26s %12s%n", "hash", "ns/op");
+        report("legacy sha1 hex string", iterations, i -> { sink = legacySha1(keys[i & 1023]); });
+        report("HashUtil.sha1 hex string", iterations, i -> { sink = HashUtil.sha1(keys[i & 1023]); });
+        for (HashUtil.Algorithm algorithm : HashUtil.Algorithm.values()) {
+            report(algorithm + " token", iterations, i -> blackhole += algorithm.token(keys[i & 1023]));
+        }
+
+        // The ring picks its hash from kv.hash at startup; run once per setting to compare lookups
+        RingManager ring = new RingManager(128);
+        ring.addNode(new Node("Node-A", "localhost", 5000));
+        ring.addNode(new Node("Node-B", "localhost", 5001));
+        ring.addNode(new Node("Node-C", "localhost", 5002));
+        report("getNNodesForKey (" + HashUtil.algorithm() + ")", iterations,
+                i -> { sink = ring.getNNodesForKey(keys[i & 1023], 3); });
+        if (blackhole == 42) System.out.println();
+    }
+
+    interface Op {
+        void run(int i);
+    }
+
+    private static void report(String label, int iterations, Op op) {
+        for (int i = 0; i < iterations / 4; i++) op.run(i);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) op.run(i);
+        System.out.printf("%-26s %12.1f%n", label, (System.nanoTime() - start) / (double) iterations);
+    }
+
+    // HashUtil.sha1 as it was originally written
+    private static String legacySha1(String input) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hashBytes = md.digest(input.getBytes());
+            BigInteger hashInt = new BigInteger(1, hashBytes);
+            String hashStr = hashInt.toString(16);
+            while (hashStr.length() < 40) {
+                hashStr = "0" + hashStr;
+            }
+            return hashStr;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package bench;
+
+import core.Node;
+import core.RingManager;
+import core.Versioned;
+import node.ConnectionPool;
+import node.ConsistencyLevel;
+import node.HotKeyCache;
+import node.Message;
+import node.NodeClient;
+import node.NodeServer;
+import node.RoutingClient;
+import node.ServerConfig;
+import storage.StorageConfig;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Coordinator hot-key cache under a Zipfian (theta 0.99) GET workload.
+//
+// Part 1 replays one trace through HotKeyCache and through a plain LRU of the same size to
+// compare hit ratios. Part 2 runs the same GETs, sent to random nodes at ONE, against an
+// in-process cluster with the cache off and on, and reports throughput and latency. The
+// cluster has twice as many nodes as replicas, since a node caches only keys it does not hold.
+//
+//   java -cp out bench.HotKeyCacheBenchmark [keys] [cacheBytes] [concurrency] [seconds]
+public class HotKeyCacheBenchmark {
+
+    private static final int BASE_PORT = 5500;
+    private static final int NODES = 6;
+    private static final String VALUE = "v".repeat(100);
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long cacheBytes = args.length > 1 ? Long.parseLong(args[1]) : 4L * 1024 * 1024;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        ZipfianGenerator zipf = new ZipfianGenerator(keys);
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // node request logging
+
+        report.printf("Hit ratio on %d keys, Zipf theta %.2f, 2M requests%n", keys, zipf.theta());
+        report.printf("%-14s %10s %10s%n", "cache size", "LRU", "W-TinyLFU");
+        long[] trace = new long[2_000_000];
+        for (int i = 0; i < trace.length; i++) trace[i] = zipf.next();
+        for (double share : new double[]{0.001, 0.01, 0.05}) {
+            int entries = (int) (keys * share);
+            report.printf("%-14s %10.3f %10.3f%n", entries + " keys", lruHitRatio(trace, entries),
+                    tinyLfuHitRatio(trace, entries));
+        }
+
+        report.printf("%nONE GETs to random nodes, %d nodes, RF 3, %d in flight, cache %d KB%n",
+                NODES, concurrency, cacheBytes / 1024);
+        report.printf("%-10s %12s %10s %10s %10s%n", "cache", "GET/s", "p50 us", "p99 us", "hit ratio");
+        for (boolean cached : new boolean[]{false, true}) {
+            System.setProperty("kv.cache.bytes", cached ? String.valueOf(cacheBytes) : "0");
+            int basePort = BASE_PORT + (cached ? 10 : 0);
+            RingManager ring = new RingManager();
+            NodeServer[] servers = new NodeServer[NODES];
+            for (int i = 0; i < servers.length; i++) ring.addNode(new Node("Node-" + i, "localhost", basePort + i));
+            for (int i = 0; i < servers.length; i++) {
+                servers[i] = new NodeServer(basePort + i, "Node-" + i, ring, 3, ServerConfig.defaults(),
+                        StorageConfig.memoryOnly());
+                servers[i].start();
+            }
+            load(basePort, keys);
+
+            run(zipf, basePort, concurrency, 1); // warm-up
+            long[] latencies = run(zipf, basePort, concurrency, seconds);
+            long hits = 0, lookups = 0;
+            for (NodeServer server : servers) {
+                HotKeyCache cache = server.getCache();
+                if (cache == null) continue;
+                hits += cache.getHits();
+                lookups += cache.getHits() + cache.getMisses();
+            }
+            Arrays.sort(latencies);
+            report.printf("%-10s %12.0f %10d %10d %10s%n", cached ? "on" : "off", latencies.length / (double) seconds,
+                    percentile(latencies, 0.50) / 1000, percentile(latencies, 0.99) / 1000,
+                    lookups == 0 ? "-" : String.format("%.3f", hits / (double) lookups));
+            for (NodeServer server : servers) server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void load(int basePort, int keys) throws IOException {
+        RoutingClient client = new RoutingClient(List.of(new InetSocketAddress("localhost", basePort)));
+        Map<String, String> batch = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            batch.put("key:" + i, VALUE);
+            if (batch.size() == 1000 || i == keys - 1) {
+                client.multiPut(batch, ConsistencyLevel.ALL);
+                batch.clear();
+            }
+        }
+    }
+
+    // Closed loop; returns the latency of every completed GET in the measured window
+    private static long[] run(ZipfianGenerator zipf, int basePort, int concurrency, int seconds)
+            throws InterruptedException {
+        ConnectionPool pool = NodeClient.getPool();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long[][] samples = new long[concurrency][];
+        AtomicInteger total = new AtomicInteger();
+        Thread[] slots = new Thread[concurrency];
+        for (int s = 0; s < concurrency; s++) {
+            int slot = s;
+            slots[s] = Thread.ofVirtual().start(() -> {
+                long[] mine = new long[1 << 16];
+                int n = 0;
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    Message get = new Message(Message.MessageType.GET, "key:" + zipf.next(), null, "bench")
+                            .withConsistency(ConsistencyLevel.ONE);
+                    long start = System.nanoTime();
+                    try {
+                        pool.sendAsync("localhost", basePort + rnd.nextInt(NODES), get, 3000).join();
+                    } catch (RuntimeException e) {
+                        continue; // timed out or refused; not counted
+                    }
+                    if (n == mine.length) mine = Arrays.copyOf(mine, n * 2);
+                    mine[n++] = System.nanoTime() - start;
+                }
+                samples[slot] = Arrays.copyOf(mine, n);
+                total.addAndGet(n);
+            });
+        }
+        for (Thread t : slots) t.join();
+        long[] all = new long[total.get()];
+        int pos = 0;
+        for (long[] mine : samples) {
+            System.arraycopy(mine, 0, all, pos, mine.length);
+            pos += mine.length;
+        }
+        return all;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static double lruHitRatio(long[] trace, int entries) {
+        Map<Long, Boolean> lru = new LinkedHashMap<>(entries * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > entries;
+            }
+        };
+        long hits = 0;
+        for (long item : trace) {
+            if (lru.get(item) != null) hits++;
+            else lru.put(item, Boolean.TRUE);
+        }
+        return hits / (double) trace.length;
+    }
+
+    private static double tinyLfuHitRatio(long[] trace, int entries) {
+        Versioned value = new Versioned(1, VALUE);
+        String sample = "key:" + trace[0];
+        // Same number of entries as the LRU: size the budget by the cache's own per-entry weight
+        long entryBytes = 96 + 2L * (sample.length() + VALUE.length());
+        HotKeyCache cache = new HotKeyCache(entries * entryBytes, Long.MAX_VALUE / 1_000_000);
+        for (long item : trace) {
+            String key = "key:" + item;
+            if (cache.get(key) == null) cache.put(key, value);
+        }
+        return cache.hitRatio();
+    }
+}
@@ -0,0 +1,331 @@
+package bench;
+
+import bench.YcsbWorkload.Distribution;
+import bench.YcsbWorkload.Operation;
+import core.Node;
+import core.RingManager;
+import metrics.LatencyHistogram;
+import node.ConsistencyLevel;
+import node.Message;
+import node.NodeServer;
+import node.RoutingClient;
+import node.ServerConfig;
+import storage.DurabilityConfig;
+import storage.StorageConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// YCSB-style load generator. Loads -records keys, then runs one of the core workloads A-F
+// against a running cluster (-hosts) or an in-process one (-local N), printing per-second
+// throughput and latency percentiles for each operation type and a summary at the end.
+//
+// With -target the load is open loop: operations are issued on a fixed schedule and latency
+// is measured from when each one was due, so a stalled server shows up as the queueing delay
+// every client would have seen instead of quietly lowering the request rate (coordinated
+// omission). Without -target, -threads callers each wait for one reply before the next request.
+//
+//   java -cp out bench.LoadGenerator -local 3 -workload a -target 5000 -seconds 30
+//   java -cp out bench.LoadGenerator -hosts localhost:5000,localhost:5001 -workload b -threads 64
+//
+// Options: -workload a..f, -records n, -seconds n, -operations n, -target ops/s, -threads n,
+// -maxInFlight n, -distribution uniform|zipfian|latest, -valueSize bytes, -consistency level,
+// -skipLoad, -hosts list, -local nodes, -engine MEMORY|ORDERED|OFF_HEAP (in-memory engine of -local nodes)
+public class LoadGenerator {
+
+    private static final int BASE_PORT = 5700;
+    private static final int LOAD_BATCH = 500;
+    private static final String KEY_PREFIX = "user";
+
+    private final YcsbWorkload workload;
+    private final Distribution distribution;
+    private final RoutingClient client;
+    private final ConsistencyLevel consistency;
+    private final long records;
+    private final int valueSize;
+    private final String valueSource;
+    private final ZipfianGenerator zipfian;
+    private final AtomicLong inserted;
+
+    private final Map<Operation, LatencyHistogram> total = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicReference<LatencyHistogram>> interval = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+
+    LoadGenerator(YcsbWorkload workload, Distribution distribution, RoutingClient client, ConsistencyLevel consistency,
+                  long records, int valueSize) {
+        this.workload = workload;
+        this.distribution = distribution;
+        this.client = client;
+        this.consistency = consistency;
+        this.records = records;
+        this.valueSize = valueSize;
+        this.inserted = new AtomicLong(records);
+        // Latest wants the hottest keys at the front so they can be counted back from the newest insert
+        this.zipfian = new ZipfianGenerator(records, ZipfianGenerator.DEFAULT_THETA, distribution != Distribution.LATEST);
+        StringBuilder sb = new StringBuilder(valueSize * 4);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int i = 0; i < valueSize * 4; i++) sb.append((char) ('a' + rnd.nextInt(26)));
+        this.valueSource = sb.toString();
+        for (Operation op : Operation.values()) {
+            total.put(op, new LatencyHistogram());
+            interval.put(op, new AtomicReference<>(new LatencyHistogram()));
+            errors.put(op, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parse(args);
+        YcsbWorkload workload = YcsbWorkload.valueOf(opts.getOrDefault("workload", "a").toUpperCase());
+        Distribution distribution = opts.containsKey("distribution")
+                ? Distribution.valueOf(opts.get("distribution").toUpperCase()) : workload.getDistribution();
+        long records = Long.parseLong(opts.getOrDefault("records", "100000"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "10"));
+        long operations = Long.parseLong(opts.getOrDefault("operations", "0"));
+        double target = Double.parseDouble(opts.getOrDefault("target", "0"));
+        int threads = Integer.parseInt(opts.getOrDefault("threads", "32"));
+        int maxInFlight = Integer.parseInt(opts.getOrDefault("maxInFlight", "1024"));
+        int valueSize = Integer.parseInt(opts.getOrDefault("valueSize", "100"));
+        ConsistencyLevel consistency = ConsistencyLevel.valueOf(opts.getOrDefault("consistency", "QUORUM").toUpperCase());
+
+        PrintStream report = System.out;
+        List<NodeServer> servers = new ArrayList<>();
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        if (opts.containsKey("local")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream())); // node request logging
+            int nodes = Integer.parseInt(opts.get("local"));
+            StorageConfig storage = new StorageConfig(
+                    StorageConfig.EngineType.valueOf(opts.getOrDefault("engine", "MEMORY").toUpperCase()),
+                    DurabilityConfig.disabled(), 0, 0);
+            RingManager ring = new RingManager();
+            for (int i = 0; i < nodes; i++) ring.addNode(new Node("Node-" + i, "localhost", BASE_PORT + i));
+            for (int i = 0; i < nodes; i++) {
+                NodeServer server = new NodeServer(BASE_PORT + i, "Node-" + i, ring, Math.min(3, nodes),
+                        ServerConfig.defaults(), storage);
+                server.start();
+                servers.add(server);
+                seeds.add(new InetSocketAddress("localhost", BASE_PORT + i));
+            }
+        } else {
+            for (String host : opts.getOrDefault("hosts", "localhost:5000").split(",")) {
+                String[] parts = host.trim().split(":");
+                seeds.add(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(workload, distribution, new RoutingClient(seeds), consistency,
+                records, valueSize);
+        report.printf("workload %s (%s), %s keys, %d records, %d-byte values, %s%n", workload,
+                workload.getDescription(), distribution.name().toLowerCase(), records, valueSize, consistency);
+        if (!opts.containsKey("skipLoad")) {
+            long start = System.nanoTime();
+            generator.load();
+            report.printf("loaded %d records in %.1fs%n", records, (System.nanoTime() - start) / 1e9);
+        }
+        report.println(target > 0
+                ? String.format("open loop at %.0f ops/s, at most %d in flight", target, maxInFlight)
+                : String.format("closed loop, %d threads", threads));
+
+        generator.run(seconds, operations, target, threads, maxInFlight, report);
+
+        for (NodeServer server : servers) server.stop();
+        System.exit(0);
+    }
+
+    void load() throws Exception {
+        List<CompletableFuture<Integer>> pending = new ArrayList<>();
+        Map<String, String> batch = new LinkedHashMap<>();
+        for (long i = 0; i < records; i++) {
+            batch.put(key(i), value());
+            if (batch.size() == LOAD_BATCH || i == records - 1) {
+                pending.add(client.multiPutAsync(batch, consistency));
+                batch = new LinkedHashMap<>();
+                if (pending.size() == 16) {
+                    for (CompletableFuture<Integer> f : pending) f.join();
+                    pending.clear();
+                }
+            }
+        }
+        for (CompletableFuture<Integer> f : pending) f.join();
+    }
+
+    void run(int seconds, long operations, double target, int threads, int maxInFlight, PrintStream report)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = operations > 0 ? Long.MAX_VALUE : start + seconds * 1_000_000_000L;
+        AtomicLong issued = new AtomicLong();
+
+        Thread reporter = Thread.ofPlatform().daemon().start(() -> {
+            long next = start;
+            int second = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                next += 1_000_000_000L;
+                LockSupport.parkNanos(next - System.nanoTime());
+                if (Thread.currentThread().isInterrupted()) break;
+                report.println(intervalLine(++second));
+            }
+        });
+
+        List<Thread> workers = new ArrayList<>();
+        if (target > 0) {
+            workers.add(Thread.ofPlatform().start(() ->
+                    openLoop(start, deadline, operations, target, maxInFlight, issued)));
+        } else {
+            for (int i = 0; i < threads; i++) {
+                workers.add(Thread.ofVirtual().start(() -> {
+                    while (System.nanoTime() < deadline && (operations <= 0 || issued.getAndIncrement() < operations)) {
+                        long begin = System.nanoTime();
+                        Operation op = workload.choose(ThreadLocalRandom.current().nextDouble());
+                        try {
+                            Message reply = execute(op).join();
+                            complete(op, begin, reply, null);
+                        } catch (RuntimeException e) {
+                            complete(op, begin, null, e);
+                        }
+                    }
+                }));
+            }
+        }
+        for (Thread t : workers) t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        reporter.interrupt();
+        reporter.join();
+        report.println(summary(elapsed));
+    }
+
+    // Issues operations at their scheduled times; the semaphore bounds outstanding requests,
+    // and time spent waiting for a permit is charged to the operation that waited
+    private void openLoop(long start, long deadline, long operations, double target, int maxInFlight,
+                          AtomicLong issued) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        double periodNanos = 1e9 / target;
+        for (long i = 0; operations <= 0 || i < operations; i++) {
+            long intended = start + (long) (i * periodNanos);
+            if (intended >= deadline) break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            inFlight.acquireUninterruptibly();
+            issued.incrementAndGet();
+            Operation op = workload.choose(ThreadLocalRandom.current().nextDouble());
+            CompletableFuture<Message> future;
+            try {
+                future = execute(op);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((reply, error) -> {
+                inFlight.release();
+                complete(op, intended, reply, error);
+            });
+        }
+        inFlight.acquireUninterruptibly(maxInFlight); // drain
+    }
+
+    private CompletableFuture<Message> execute(Operation op) {
+        switch (op) {
+            case READ:
+                return client.getAsync(key(nextKey()), consistency);
+            case UPDATE:
+                return client.putAsync(key(nextKey()), value(), consistency);
+            case INSERT:
+                return client.putAsync(key(inserted.getAndIncrement()), value(), consistency);
+            case SCAN:
+                int length = 1 + ThreadLocalRandom.current().nextInt(YcsbWorkload.MAX_SCAN_LENGTH);
+                return client.scanAsync(key(nextKey()), null, length, null).thenApply(page -> new Message(
+                        Message.MessageType.RESPONSE, "scan", String.valueOf(page.getEntries().size()), "ycsb"));
+            case READ_MODIFY_WRITE:
+                String key = key(nextKey());
+                return client.getAsync(key, consistency).thenCompose(read -> "ERROR".equals(read.getKey())
+                        ? CompletableFuture.completedFuture(read)
+                        : client.putAsync(key, value(), consistency));
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + op);
+        }
+    }
+
+    private void complete(Operation op, long startNanos, Message reply, Throwable error) {
+        if (error != null || reply == null || "ERROR".equals(reply.getKey())) {
+            errors.get(op).increment();
+            return;
+        }
+        long latency = System.nanoTime() - startNanos;
+        total.get(op).record(latency);
+        interval.get(op).get().record(latency);
+    }
+
+    private long nextKey() {
+        long count = inserted.get();
+        switch (distribution) {
+            case UNIFORM:
+                return ThreadLocalRandom.current().nextLong(count);
+            case LATEST:
+                return Math.max(0, count - 1 - zipfian.next());
+            default:
+                return zipfian.next() % count;
+        }
+    }
+
+    private static String key(long index) {
+        return KEY_PREFIX + index;
+    }
+
+    private String value() {
+        int offset = ThreadLocalRandom.current().nextInt(valueSource.length() - valueSize + 1);
+        return valueSource.substring(offset, offset + valueSize);
+    }
+
+    private String intervalLine(int second) {
+        StringBuilder line = new StringBuilder(String.format("[%4ds]", second));
+        for (Operation op : Operation.values()) {
+            if (workload.proportion(op) == 0) continue;
+            LatencyHistogram h = interval.get(op).getAndSet(new LatencyHistogram());
+            line.append(String.format(" | %s %d/s p50 %s p99 %s p999 %s", op, h.count(),
+                    millis(h.percentileNanos(0.50)), millis(h.percentileNanos(0.99)), millis(h.percentileNanos(0.999))));
+        }
+        return line.toString();
+    }
+
+    private String summary(double elapsed) {
+        StringBuilder out = new StringBuilder(String.format("%nlatencies in ms%n%-18s %10s %10s %9s %9s %9s %9s %9s %9s %8s%n",
+                "operation", "count", "ops/s", "mean", "p50", "p95", "p99", "p999", "max", "errors"));
+        long all = 0;
+        for (Operation op : Operation.values()) {
+            if (workload.proportion(op) == 0) continue;
+            LatencyHistogram h = total.get(op);
+            all += h.count();
+            out.append(String.format("%-18s %10d %10.0f %9s %9s %9s %9s %9s %9s %8d%n", op, h.count(),
+                    h.count() / elapsed, millis((long) h.meanNanos()), millis(h.percentileNanos(0.50)),
+                    millis(h.percentileNanos(0.95)), millis(h.percentileNanos(0.99)),
+                    millis(h.percentileNanos(0.999)), millis(h.maxNanos()), errors.get(op).sum()));
+        }
+        out.append(String.format("%-18s %10d %10.0f", "total", all, all / elapsed));
+        return out.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("-")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            String name = args[i].substring(1);
+            boolean flag = i + 1 == args.length || args[i + 1].startsWith("-");
+            opts.put(name, flag ? "true" : args[++i]);
+        }
+        return opts;
+    }
+}
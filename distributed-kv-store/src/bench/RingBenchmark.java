@@ -0,0 +1,48 @@
+package bench;
+
+import core.Node;
+import core.RingManager;
+
+import java.util.List;
+
+// Load spread and lookup cost of RingManager for a few virtual-node counts.
+//
+//   java -cp out bench.RingBenchmark [nodes] [lookups]
+public class RingBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        String[] keys = new String[4096];
+        for (int i = 0; i < keys.length; i++) keys[i] = "user:" + i;
+
+        for (int vnodes : new int[]{1, 16, 64, 128, 256}) {
+            RingManager ring = new RingManager(vnodes);
+            for (int i = 0; i < nodes; i++) {
+                ring.addNode(new Node("Node-" + (char) ('A' + i), "localhost", 5000 + i));
+            }
+            System.out.println("== " + vnodes + " virtual nodes per node ==");
+            System.out.print(ring.loadReport(3));
+
+            for (int i = 0; i < lookups / 4; i++) sink = ring.getNNodesForKey(keys[i & (keys.length - 1)], 3);
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                List<String> prefs = ring.getNNodesForKey(keys[i & (keys.length - 1)], 3);
+                sink = prefs;
+            }
+            double ns = (System.nanoTime() - start) / (double) lookups;
+            System.out.printf("getNNodesForKey: %.0f ns/op%n%n", ns);
+        }
+
+        // Weighted: one node with twice the capacity should own about twice the range
+        RingManager weighted = new RingManager(128);
+        weighted.addNode(new Node("Node-A", "localhost", 5000));
+        weighted.addNode(new Node("Node-B", "localhost", 5001));
+        weighted.addNode(new Node("Node-C", "localhost", 5002, 0, 2.0));
+        System.out.println("== weighted (Node-C weight 2.0) ==");
+        System.out.print(weighted.loadReport(1));
+    }
+}
@@ -0,0 +1,107 @@
+package bench;
+
+import core.Node;
+import core.RingManager;
+import node.ConnectionPool;
+import node.ConsistencyLevel;
+import node.Message;
+import node.NodeClient;
+import node.NodeServer;
+import node.RoutingClient;
+import node.ServerConfig;
+import storage.StorageConfig;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Throughput of RoutingClient (straight to the key's primary) against sending each
+// request to a random node, on an in-process cluster with in-memory storage.
+//
+//   java -cp out bench.RoutingBenchmark [nodes] [concurrency] [seconds]
+public class RoutingBenchmark {
+
+    private static final int BASE_PORT = 5100;
+    private static final int KEYS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // node request logging
+
+        RingManager ring = new RingManager();
+        for (int i = 0; i < nodes; i++) ring.addNode(new Node("Node-" + i, "localhost", BASE_PORT + i));
+        NodeServer[] servers = new NodeServer[nodes];
+        for (int i = 0; i < nodes; i++) {
+            servers[i] = new NodeServer(BASE_PORT + i, "Node-" + i, ring, 3, ServerConfig.defaults(),
+                    StorageConfig.memoryOnly());
+            servers[i].start();
+        }
+
+        RoutingClient router = new RoutingClient(List.of(new InetSocketAddress("localhost", BASE_PORT)));
+        for (int i = 0; i < KEYS; i++) router.put("key:" + i, "value-" + i, ConsistencyLevel.ALL);
+
+        ConnectionPool pool = NodeClient.getPool();
+        Op random = (key, put, level) -> {
+            int port = BASE_PORT + ThreadLocalRandom.current().nextInt(nodes);
+            Message m = put ? new Message(Message.MessageType.PUT, key, "updated", "bench")
+                    : new Message(Message.MessageType.GET, key, null, "bench");
+            return pool.sendAsync("localhost", port, m.withConsistency(level), 3000);
+        };
+        Op routed = (key, put, level) -> put ? router.putAsync(key, "updated", level) : router.getAsync(key, level);
+
+        report.printf("%d nodes, RF 3, %d requests in flight%n", nodes, concurrency);
+        report.printf("%-28s %12s %12s%n", "workload", "random/s", "routed/s");
+        for (Object[] w : new Object[][]{
+                {"GET ONE", 0.0, ConsistencyLevel.ONE},
+                {"GET QUORUM", 0.0, ConsistencyLevel.QUORUM},
+                {"50% PUT / 50% GET, QUORUM", 0.5, ConsistencyLevel.QUORUM}}) {
+            double putShare = (Double) w[1];
+            ConsistencyLevel level = (ConsistencyLevel) w[2];
+            run(random, putShare, level, concurrency, 1); // warm-up
+            run(routed, putShare, level, concurrency, 1);
+            double r = run(random, putShare, level, concurrency, seconds);
+            double s = run(routed, putShare, level, concurrency, seconds);
+            report.printf("%-28s %12.0f %12.0f%n", w[0], r, s);
+        }
+        report.printf("redirects %d, topology refreshes %d%n", router.getRedirects(), router.getRefreshes());
+
+        for (NodeServer server : servers) server.stop();
+        System.exit(0);
+    }
+
+    interface Op {
+        CompletableFuture<Message> send(String key, boolean put, ConsistencyLevel level);
+    }
+
+    // Closed loop: each slot issues its next request when the previous one completes
+    private static double run(Op op, double putShare, ConsistencyLevel level, int concurrency, int seconds)
+            throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong completed = new AtomicLong();
+        Thread[] slots = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            slots[i] = Thread.ofVirtual().start(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    String key = "key:" + rnd.nextInt(KEYS);
+                    try {
+                        op.send(key, rnd.nextDouble() < putShare, level).join();
+                        completed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        // timed out or refused; not counted
+                    }
+                }
+            });
+        }
+        for (Thread t : slots) t.join();
+        return completed.get() / (double) seconds;
+    }
+}
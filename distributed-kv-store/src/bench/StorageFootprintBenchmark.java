@@ -0,0 +1,122 @@
+package bench;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import storage.InMemoryStorageEngine;
+import storage.StorageEngine;
+import storage.offheap.OffHeapStorageEngine;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Heap and direct memory per entry, and GC pauses under an overwrite churn, for the on-heap
+// map against the off-heap slab engine. Each engine is loaded, measured and dropped in turn.
+//
+//   java -cp out bench.StorageFootprintBenchmark [entries] [valueBytes]
+public class StorageFootprintBenchmark {
+
+    private static final AtomicLong maxPauseMicros = new AtomicLong();
+    private static final AtomicLong pauses = new AtomicLong();
+    private static final AtomicLong totalPauseMicros = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int valueBytes = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        watchPauses();
+
+        System.out.printf("%d entries, 16-char keys, %d-byte values, heap max %d MB%n", entries, valueBytes,
+                Runtime.getRuntime().maxMemory() >> 20);
+        System.out.printf("%-10s %10s %10s %12s %10s %8s %10s %10s %10s%n", "engine", "heap B/e", "direct B/e",
+                "entries/GB", "load ms", "gcs", "gc ms", "max ms", "full gc ms");
+        run("on-heap", InMemoryStorageEngine::new, entries, valueBytes);
+        run("off-heap", () -> new OffHeapStorageEngine(8 << 20, entries), entries, valueBytes);
+    }
+
+    private static void run(String name, Supplier<StorageEngine> factory, int entries, int valueBytes)
+            throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        settle();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        long directBefore = directBytes();
+        StorageEngine engine = factory.get();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) engine.put(key(i), value(i, valueBytes));
+        long loadMs = (System.nanoTime() - start) / 1_000_000;
+
+        settle();
+        long heapPerEntry = (memory.getHeapMemoryUsage().getUsed() - heapBefore) / entries;
+        long directPerEntry = (directBytes() - directBefore) / entries;
+
+        // Overwrite churn: young collections while the whole data set stays live
+        pauses.set(0);
+        maxPauseMicros.set(0);
+        totalPauseMicros.set(0);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int i = 0; i < entries * 2; i++) {
+            int k = rnd.nextInt(entries);
+            engine.put(key(k), value(i, valueBytes));
+        }
+        long gcs = pauses.get();
+        long gcMs = totalPauseMicros.get() / 1000;
+        long maxMs = maxPauseMicros.get() / 1000;
+
+        start = System.nanoTime();
+        System.gc();
+        long fullGcMs = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("%-10s %10d %10d %12d %10d %8d %10d %10d %10d%n", name, heapPerEntry, directPerEntry,
+                (1L << 30) / Math.max(1, heapPerEntry), loadMs, gcs, gcMs, maxMs, fullGcMs);
+        if (engine.size() != entries) throw new IllegalStateException(name + " lost entries: " + engine.size());
+        engine.close();
+    }
+
+    private static String key(int i) {
+        return String.format("user:%011d", i);
+    }
+
+    private static String value(int i, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        String seed = Integer.toString(i, 36);
+        while (sb.length() < length) sb.append(seed).append('-');
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    private static long directBytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    private static void settle() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    private static void watchPauses() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getGcCause().equals("System.gc()")) return;
+                long micros = info.getGcInfo().getDuration() * 1000;
+                pauses.incrementAndGet();
+                totalPauseMicros.addAndGet(micros);
+                maxPauseMicros.accumulateAndGet(micros, Math::max);
+            }, null, null);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import storage.DurabilityConfig;
+import storage.FsyncPolicy;
+import storage.InMemoryStorageEngine;
+import storage.PersistenceManager;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Write throughput under each fsync policy, plus restart time from WAL only and from
+// snapshot + WAL tail.
+//
+//   java -cp out bench.WalBenchmark [writerThreads] [writesPerThread] [valueBytes]
+public class WalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int valueBytes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        String value = "v".repeat(valueBytes);
+
+        System.out.printf("%-9s %12s %14s %16s%n", "policy", "writes/s", "restart (ms)", "w/ snapshot (ms)");
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            Path dir = Files.createTempDirectory("wal-bench-");
+            DurabilityConfig config = new DurabilityConfig(true, dir, policy, 10, 0);
+            int total = threads * (policy == FsyncPolicy.ALWAYS ? Math.min(perThread, 2_000) : perThread);
+
+            PersistenceManager pm = new PersistenceManager(config, new InMemoryStorageEngine());
+            pm.recover();
+            double writesPerSec = write(pm, threads, total / threads, value);
+            pm.close();
+
+            long walOnly = restart(config);
+
+            PersistenceManager snap = new PersistenceManager(config, new InMemoryStorageEngine());
+            snap.recover();
+            snap.compact();
+            snap.close();
+            long withSnapshot = restart(config);
+
+            System.out.printf("%-9s %12.0f %14d %16d%n", policy, writesPerSec, walOnly, withSnapshot);
+            deleteRecursively(dir);
+        }
+    }
+
+    private static double write(PersistenceManager pm, int threads, int perThread, String value) throws Exception {
+        Thread[] writers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        pm.put("key-" + id + "-" + i, value);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) w.join();
+        return threads * (double) perThread / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static long restart(DurabilityConfig config) throws IOException {
+        PersistenceManager pm = new PersistenceManager(config, new InMemoryStorageEngine());
+        pm.recover();
+        long ms = pm.getLastRecoveryMillis();
+        pm.close();
+        return ms;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
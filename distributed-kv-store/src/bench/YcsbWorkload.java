@@ -0,0 +1,52 @@
+package bench;
+
+// The YCSB core workloads (Cooper et al., "Benchmarking Cloud Serving Systems with YCSB").
+// E scans up to MAX_SCAN_LENGTH keys from a chosen one, in key order; it benefits from
+// -Dkv.storage.engine=ORDERED (or LSM) and -Dkv.hash=ORDERED.
+public enum YcsbWorkload {
+    A("update heavy", 0.50, 0.50, 0, 0, 0, Distribution.ZIPFIAN),
+    B("read mostly", 0.95, 0.05, 0, 0, 0, Distribution.ZIPFIAN),
+    C("read only", 1.0, 0, 0, 0, 0, Distribution.ZIPFIAN),
+    D("read latest", 0.95, 0, 0.05, 0, 0, Distribution.LATEST),
+    E("short ranges", 0, 0, 0.05, 0.95, 0, Distribution.ZIPFIAN),
+    F("read-modify-write", 0.50, 0, 0, 0, 0.50, Distribution.ZIPFIAN);
+
+    public enum Operation { READ, UPDATE, INSERT, SCAN, READ_MODIFY_WRITE }
+
+    public enum Distribution { UNIFORM, ZIPFIAN, LATEST }
+
+    public static final int MAX_SCAN_LENGTH = 100;
+
+    private final String description;
+    private final double[] proportions;
+    private final Distribution distribution;
+
+    YcsbWorkload(String description, double read, double update, double insert, double scan, double readModifyWrite,
+                 Distribution distribution) {
+        this.description = description;
+        this.proportions = new double[]{read, update, insert, scan, readModifyWrite};
+        this.distribution = distribution;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    public double proportion(Operation op) {
+        return proportions[op.ordinal()];
+    }
+
+    // Picks the next operation for a uniform draw u in [0, 1)
+    public Operation choose(double u) {
+        Operation[] ops = Operation.values();
+        for (int i = 0; i < ops.length; i++) {
+            u -= proportions[i];
+            if (u < 0) return ops[i];
+        }
+        return Operation.READ;
+    }
+}
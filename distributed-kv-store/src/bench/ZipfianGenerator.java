@@ -0,0 +1,70 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Zipf-distributed item numbers in [0, items), using the method of Gray et al.,
+// "Quickly Generating Billion-Record Synthetic Databases" (as in YCSB). Item 0 is the most
+// popular. The scrambled form hashes the rank so the popular items are spread over the key
+// space, and therefore over the ring, instead of being 0, 1, 2...
+public class ZipfianGenerator {
+
+    public static final double DEFAULT_THETA = 0.99;
+
+    private final long items;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+    private final boolean scrambled;
+
+    public ZipfianGenerator(long items, double theta, boolean scrambled) {
+        this.items = items;
+        this.theta = theta;
+        this.scrambled = scrambled;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        double zeta2 = zeta(2, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        this.halfPowTheta = 1 + Math.pow(0.5, theta);
+    }
+
+    public ZipfianGenerator(long items) {
+        this(items, DEFAULT_THETA, true);
+    }
+
+    public long next() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetan;
+        long rank;
+        if (uz < 1.0) rank = 0;
+        else if (uz < halfPowTheta) rank = 1;
+        else rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        return scrambled ? Long.remainderUnsigned(fnv(rank), items) : rank;
+    }
+
+    public long items() {
+        return items;
+    }
+
+    public double theta() {
+        return theta;
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    // FNV-1a over the eight bytes of the rank
+    private static long fnv(long value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001b3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,87 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate at its fastest level for values of kv.compression.minBytes and up (JSON documents
+// typically shrink 4-10x at a few hundred MB/s). Smaller values are left alone: the header
+// and the Deflater setup cost more than they save. The result is Base64 text, so a compressed
+// value is still a plain string to every storage engine, the WAL and the wire. A value that
+// would not shrink by at least an eighth after that is kept as it is.
+//
+// Layout before Base64: the UTF-8 length of the original as 4 big-endian bytes, then a zlib
+// stream, whose checksum catches a corrupted value on the way out.
+//
+// Work is done a slice at a time with a yield in between. Virtual threads are not preempted,
+// so deflating a 10MB value in one go would hold a carrier for ~100ms and stall every small
+// request scheduled on it.
+public final class Compression {
+
+    public static final int MIN_BYTES = Integer.getInteger("kv.compression.minBytes", 4096);
+    private static final int SLICE_BYTES = 256 * 1024;
+
+    private Compression() {
+    }
+
+    // Returns null when the value is too small or does not compress well enough
+    public static String compress(String value) {
+        if (value.length() < MIN_BYTES) return null;
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        // Base64 grows the packed bytes by a third; stop deflating once past the point of saving
+        byte[] packed = new byte[(int) (raw.length * 7L / 8 * 3 / 4)];
+        if (packed.length <= 4) return null;
+        packed[0] = (byte) (raw.length >>> 24);
+        packed[1] = (byte) (raw.length >>> 16);
+        packed[2] = (byte) (raw.length >>> 8);
+        packed[3] = (byte) raw.length;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            int n = 4;
+            for (int offset = 0; offset < raw.length && n < packed.length; offset += SLICE_BYTES) {
+                deflater.setInput(raw, offset, Math.min(SLICE_BYTES, raw.length - offset));
+                if (offset + SLICE_BYTES >= raw.length) deflater.finish();
+                while (!deflater.needsInput() && !deflater.finished() && n < packed.length) {
+                    n += deflater.deflate(packed, n, packed.length - n);
+                }
+                Thread.yield();
+            }
+            if (!deflater.finished()) return null;
+            return new String(Base64.getEncoder().encode(Arrays.copyOf(packed, n)), StandardCharsets.ISO_8859_1);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static String decompress(String compressed) {
+        return new String(decompressBytes(compressed), StandardCharsets.UTF_8);
+    }
+
+    // The original value's UTF-8 bytes
+    public static byte[] decompressBytes(String compressed) {
+        byte[] packed = Base64.getDecoder().decode(compressed);
+        if (packed.length < 4) throw new IllegalStateException("Corrupt compressed value");
+        int length = (packed[0] & 0xFF) << 24 | (packed[1] & 0xFF) << 16 | (packed[2] & 0xFF) << 8 | (packed[3] & 0xFF);
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed, 4, packed.length - 4);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int got = inflater.inflate(raw, n, Math.min(SLICE_BYTES, length - n));
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += got;
+                Thread.yield();
+            }
+            if (n != length) throw new IllegalStateException("Corrupt compressed value");
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -1,22 +1,229 @@
 package core;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.math.BigInteger;
 
 public class HashUtil {
+
+    // Ring/Merkle token hash. Every node in a cluster must use the same one (kv.hash).
+    public enum Algorithm {
+        // MurmurHash3 x64_128, first 64 bits
+        MURMUR3 {
+            @Override
+            public long token(byte[] bytes, int off, int len) {
+                return murmur3(bytes, off, len, 0);
+            }
+        },
+        // First 8 bytes of the SHA-1 digest; matches the original ring placement
+        SHA1 {
+            @Override
+            public long token(byte[] bytes, int off, int len) {
+                Scratch s = SCRATCH.get();
+                s.sha1.update(bytes, off, len);
+                byte[] d = s.digestInto();
+                return (long) BE_LONG.get(d, 0);
+            }
+        },
+        // Order-preserving partitioner: the first 8 bytes of the key, big-endian and zero-padded,
+        // so token order follows key order (UTF-8 byte order, which matches String order outside
+        // the supplementary planes) and a key range maps to one contiguous arc of the ring.
+        // Load follows the key distribution: keys sharing a long prefix land on the same nodes.
+        ORDERED {
+            @Override
+            public long token(byte[] bytes, int off, int len) {
+                if (len >= 8) return (long) BE_LONG.get(bytes, off);
+                long t = 0;
+                for (int i = 0; i < 8; i++) t = (t << 8) | (i < len ? bytes[off + i] & 0xFF : 0);
+                return t;
+            }
+
+            @Override
+            public boolean isOrdered() {
+                return true;
+            }
+        };
+
+        public abstract long token(byte[] bytes, int off, int len);
+
+        public boolean isOrdered() {
+            return false;
+        }
+
+        public long token(byte[] bytes) {
+            return token(bytes, 0, bytes.length);
+        }
+
+        // Hashes the UTF-8 encoding of s without building a String or byte[] per call
+        public long token(CharSequence s) {
+            Scratch scratch = SCRATCH.get();
+            int len = scratch.encode(s);
+            return token(scratch.utf8, 0, len);
+        }
+
+        public static Algorithm fromSystemProperties() {
+            return Algorithm.valueOf(System.getProperty("kv.hash", "MURMUR3").toUpperCase());
+        }
+    }
+
+    private static final Algorithm DEFAULT = Algorithm.fromSystemProperties();
+
+    private static final VarHandle LE_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BE_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Per-thread digest and buffers, so hashing on the request path allocates nothing
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    public static Algorithm algorithm() {
+        return DEFAULT;
+    }
+
+    // Position on a 64-bit token ring, compared unsigned
+    public static long token(CharSequence input) {
+        return DEFAULT.token(input);
+    }
+
+    public static long token(byte[] bytes, int off, int len) {
+        return DEFAULT.token(bytes, off, len);
+    }
+
+    // Evenly spread hash for things that must not cluster even when keys are placed in order:
+    // virtual node positions and Merkle tree buckets
+    public static long uniformToken(CharSequence input) {
+        return DEFAULT.isOrdered() ? Algorithm.MURMUR3.token(input) : DEFAULT.token(input);
+    }
+
+    // 40-char lower-case hex SHA-1, kept for callers that want the original string form
     public static String sha1(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] hashBytes = md.digest(input.getBytes());
-            BigInteger hashInt = new BigInteger(1, hashBytes);
-            String hashStr = hashInt.toString(16);
-            while (hashStr.length() < 40) {
-                hashStr = "0" + hashStr;
+        Scratch s = SCRATCH.get();
+        int len = s.encode(input);
+        s.sha1.update(s.utf8, 0, len);
+        byte[] d = s.digestInto();
+        char[] out = new char[40];
+        for (int i = 0; i < 20; i++) {
+            out[i * 2] = HEX[(d[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[d[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    // The tail switch falls through on purpose, as in the reference implementation
+    @SuppressWarnings("fallthrough")
+    public static long murmur3(byte[] data, int off, int len, long seed) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = seed;
+        long h2 = seed;
+
+        int blocks = len >>> 4;
+        int p = off;
+        for (int i = 0; i < blocks; i++, p += 16) {
+            long k1 = (long) LE_LONG.get(data, p);
+            long k2 = (long) LE_LONG.get(data, p + 8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15) {
+            case 15: k2 ^= (long) (data[p + 14] & 0xFF) << 48;
+            case 14: k2 ^= (long) (data[p + 13] & 0xFF) << 40;
+            case 13: k2 ^= (long) (data[p + 12] & 0xFF) << 32;
+            case 12: k2 ^= (long) (data[p + 11] & 0xFF) << 24;
+            case 11: k2 ^= (long) (data[p + 10] & 0xFF) << 16;
+            case 10: k2 ^= (long) (data[p + 9] & 0xFF) << 8;
+            case 9:  k2 ^= (data[p + 8] & 0xFF);
+                k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            case 8:  k1 ^= (long) (data[p + 7] & 0xFF) << 56;
+            case 7:  k1 ^= (long) (data[p + 6] & 0xFF) << 48;
+            case 6:  k1 ^= (long) (data[p + 5] & 0xFF) << 40;
+            case 5:  k1 ^= (long) (data[p + 4] & 0xFF) << 32;
+            case 4:  k1 ^= (long) (data[p + 3] & 0xFF) << 24;
+            case 3:  k1 ^= (long) (data[p + 2] & 0xFF) << 16;
+            case 2:  k1 ^= (long) (data[p + 1] & 0xFF) << 8;
+            case 1:  k1 ^= (data[p] & 0xFF);
+                k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            default:
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static final class Scratch {
+        final MessageDigest sha1;
+        final byte[] digest = new byte[20];
+        byte[] utf8 = new byte[256];
+
+        Scratch() {
+            try {
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        byte[] digestInto() {
+            try {
+                sha1.digest(digest, 0, digest.length);
+                return digest;
+            } catch (DigestException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // UTF-8 encodes s into utf8, growing it if needed; returns the byte length
+        int encode(CharSequence s) {
+            int n = s.length();
+            if (utf8.length < n * 3) utf8 = new byte[Math.max(n * 3, utf8.length * 2)];
+            byte[] out = utf8;
+            int p = 0;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    out[p++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[p++] = (byte) (0xC0 | (c >> 6));
+                    out[p++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[p++] = (byte) (0xF0 | (cp >> 18));
+                    out[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    out[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    out[p++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    out[p++] = '?'; // unpaired surrogate, same as String.getBytes(UTF_8)
+                } else {
+                    out[p++] = (byte) (0xE0 | (c >> 12));
+                    out[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    out[p++] = (byte) (0x80 | (c & 0x3F));
+                }
             }
-            return hashStr;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            return p;
         }
     }
 }
@@ -0,0 +1,34 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hybrid logical clock. A timestamp is wall-clock milliseconds shifted left by 16 bits plus
+// a counter in the low bits, so it orders like physical time but never goes backwards and
+// always moves past any timestamp this node has seen from a peer.
+public class HybridClock {
+
+    private static final int LOGICAL_BITS = 16;
+
+    private final AtomicLong last = new AtomicLong();
+
+    // A fresh timestamp, greater than every one issued or observed so far
+    public long now() {
+        while (true) {
+            long prev = last.get();
+            long next = Math.max(prev + 1, System.currentTimeMillis() << LOGICAL_BITS);
+            if (last.compareAndSet(prev, next)) return next;
+        }
+    }
+
+    // Folds in a timestamp received from another node
+    public void observe(long remote) {
+        while (true) {
+            long prev = last.get();
+            if (remote <= prev || last.compareAndSet(prev, remote)) return;
+        }
+    }
+
+    public static long physicalMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,125 @@
+package core;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Asynchronous, level-gated logging (kv.log.level, INFO by default). A disabled call returns
+// after one comparison; callers that build expensive messages check isEnabled first. Enabled
+// records go into a bounded queue drained by one daemon thread, so a slow console never
+// holds up a request. When the queue is full the record is dropped and counted instead.
+// ERROR and WARN go to System.err, the rest to System.out.
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final DateTimeFormatter dtf =
+            DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final BlockingQueue<Record> queue =
+            new ArrayBlockingQueue<>(Integer.getInteger("kv.log.queueCapacity", 8192));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Level level = Level.valueOf(System.getProperty("kv.log.level", "INFO").toUpperCase());
+
+    static {
+        Thread writer = new Thread(Log::drain, "kv-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "kv-log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level l) {
+        level = l;
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void error(String source, String message) {
+        log(Level.ERROR, source, message, null);
+    }
+
+    public static void error(String source, String message, Throwable error) {
+        log(Level.ERROR, source, message, error);
+    }
+
+    public static void warn(String source, String message) {
+        log(Level.WARN, source, message, null);
+    }
+
+    public static void info(String source, String message) {
+        log(Level.INFO, source, message, null);
+    }
+
+    public static void debug(String source, String message) {
+        log(Level.DEBUG, source, message, null);
+    }
+
+    public static void trace(String source, String message) {
+        log(Level.TRACE, source, message, null);
+    }
+
+    private static void log(Level l, String source, String message, Throwable error) {
+        if (!isEnabled(l)) return;
+        if (!queue.offer(new Record(System.currentTimeMillis(), l, source, message, error))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void drain() {
+        try {
+            while (true) {
+                write(queue.take());
+            }
+        } catch (InterruptedException e) {
+            // exiting
+        }
+    }
+
+    // Writes out whatever is still queued, e.g. just before the JVM exits
+    public static void flush() {
+        Record r;
+        while ((r = queue.poll()) != null) write(r);
+    }
+
+    private static void write(Record r) {
+        PrintStream out = r.level.ordinal() <= Level.WARN.ordinal() ? System.err : System.out;
+        StringBuilder line = new StringBuilder(64 + r.message.length());
+        line.append('[').append(dtf.format(Instant.ofEpochMilli(r.millis))).append(']');
+        if (r.level != Level.INFO) line.append('[').append(r.level).append(']');
+        if (r.source != null) line.append('[').append(r.source).append(']');
+        out.println(line.append(' ').append(r.message));
+        if (r.error != null) r.error.printStackTrace(out);
+    }
+
+    private static final class Record {
+        final long millis;
+        final Level level;
+        final String source;
+        final String message;
+        final Throwable error;
+
+        Record(long millis, Level level, String source, String message, Throwable error) {
+            this.millis = millis;
+            this.level = level;
+            this.source = source;
+            this.message = message != null ? message : "null";
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Hash tree over the token ring. Leaf i covers the tokens whose top `depth` bits are i,
+// and its hash is an order-independent sum of the entry hashes in that range, so it can
+// be built in one unordered pass over the store. Two replicas compare trees top-down and
+// only exchange the leaves whose hashes differ.
+public class MerkleTree {
+
+    private final int depth;
+    private final long[] nodes; // 1-based heap layout; leaves at [2^depth, 2^(depth+1))
+    private boolean built;
+
+    public MerkleTree(int depth) {
+        if (depth < 1 || depth > 20) {
+            throw new IllegalArgumentException("Merkle depth must be 1..20");
+        }
+        this.depth = depth;
+        this.nodes = new long[1 << (depth + 1)];
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int leafCount() {
+        return 1 << depth;
+    }
+
+    public int leafFor(long token) {
+        return (int) (token >>> (64 - depth));
+    }
+
+    public void add(long token, byte[] key, byte[] value) {
+        nodes[leafCount() + leafFor(token)] += entryHash(key, value);
+        built = false;
+    }
+
+    // Leaf hashes are sums, so trees built over disjoint parts of a store add up to the tree of all of it
+    public void merge(MerkleTree other) {
+        if (other.depth != depth) {
+            throw new IllegalArgumentException("Cannot merge trees of depth " + depth + " and " + other.depth);
+        }
+        for (int i = leafCount(); i < nodes.length; i++) nodes[i] += other.nodes[i];
+        built = false;
+    }
+
+    public long rootHash() {
+        build();
+        return nodes[1];
+    }
+
+    // Leaves whose hashes differ between the two trees, in ascending order
+    public List<Integer> diff(MerkleTree other) {
+        if (other.depth != depth) {
+            throw new IllegalArgumentException("Cannot compare trees of depth " + depth + " and " + other.depth);
+        }
+        build();
+        other.build();
+        List<Integer> leaves = new ArrayList<>();
+        diff(1, other, leaves);
+        return leaves;
+    }
+
+    private void diff(int node, MerkleTree other, List<Integer> leaves) {
+        if (nodes[node] == other.nodes[node]) return;
+        if (node >= leafCount()) {
+            leaves.add(node - leafCount());
+            return;
+        }
+        diff(2 * node, other, leaves);
+        diff(2 * node + 1, other, leaves);
+    }
+
+    private void build() {
+        if (built) return;
+        for (int i = leafCount() - 1; i >= 1; i--) {
+            nodes[i] = mix(nodes[2 * i] * 31 + Long.rotateLeft(nodes[2 * i + 1], 17));
+        }
+        built = true;
+    }
+
+    public byte[] toBytes() {
+        build();
+        ByteBuffer buf = ByteBuffer.allocate(nodes.length * 8);
+        for (long n : nodes) buf.putLong(n);
+        return buf.array();
+    }
+
+    public static MerkleTree fromBytes(int depth, byte[] bytes) {
+        MerkleTree tree = new MerkleTree(depth);
+        if (bytes.length != tree.nodes.length * 8) {
+            throw new IllegalArgumentException("Expected " + tree.nodes.length * 8 + " bytes, got " + bytes.length);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < tree.nodes.length; i++) tree.nodes[i] = buf.getLong();
+        tree.built = true;
+        return tree;
+    }
+
+    private static long entryHash(byte[] key, byte[] value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h = (h ^ b) * 0x100000001b3L;
+        }
+        h = (h ^ 0xFF) * 0x100000001b3L; // separator so ("ab","c") != ("a","bc")
+        for (byte b : value) {
+            h = (h ^ b) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -4,11 +4,26 @@ public class Node {
     private String id;
     private String ip;
     private int port;
+    // 0 means "use the ring's default"; weight scales the count for bigger/smaller machines
+    private int virtualNodes;
+    private double weight;
 
     public Node(String id, String ip, int port) {
+        this(id, ip, port, 0, 1.0);
+    }
+
+    public Node(String id, String ip, int port, int virtualNodes) {
+        this(id, ip, port, virtualNodes, 1.0);
+    }
+
+    public Node(String id, String ip, int port, int virtualNodes, double weight) {
+        if (virtualNodes < 0) throw new IllegalArgumentException("virtualNodes must be >= 0");
+        if (!(weight > 0)) throw new IllegalArgumentException("weight must be > 0");
         this.id = id;
         this.ip = ip;
         this.port = port;
+        this.virtualNodes = virtualNodes;
+        this.weight = weight;
     }
 
     public String getId() {
@@ -23,6 +38,20 @@ public class Node {
         return port;
     }
 
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    // Number of tokens this node places on a ring whose default is defaultVirtualNodes
+    public int tokenCount(int defaultVirtualNodes) {
+        int base = virtualNodes > 0 ? virtualNodes : defaultVirtualNodes;
+        return Math.max(1, (int) Math.round(base * weight));
+    }
+
     @Override
     public String toString() {
         return id + " (" + ip + ":" + port + ")";
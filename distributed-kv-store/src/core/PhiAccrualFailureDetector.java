@@ -0,0 +1,127 @@
+package core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Phi accrual failure detector (Hayashibara et al.). For each endpoint it keeps a window of
+// recent heartbeat inter-arrival times and reports phi = -log10(P(a heartbeat arrives later
+// than now)) under a normal distribution fitted to that window. Phi grows continuously with
+// silence, so callers pick a threshold rather than a timeout: at 8 the chance that a live
+// endpoint is wrongly suspected is about 1e-8 under the fitted distribution.
+//
+// The mean is padded by acceptablePauseMs to absorb GC pauses and gossip jitter, and the
+// standard deviation never drops below minStdDevMs, so a very regular history does not make
+// a single late heartbeat look fatal. An endpoint never heard from is available.
+public class PhiAccrualFailureDetector {
+
+    private static final int WINDOW = 1000;
+
+    private final double threshold;
+    private final double acceptablePauseMs;
+    private final double minStdDevMs;
+    private final double firstIntervalMs;
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+
+    public PhiAccrualFailureDetector(double threshold, long acceptablePauseMs, long minStdDevMs, long firstIntervalMs) {
+        if (!(threshold > 0)) throw new IllegalArgumentException("threshold must be > 0");
+        this.threshold = threshold;
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.minStdDevMs = Math.max(1, minStdDevMs);
+        this.firstIntervalMs = firstIntervalMs;
+    }
+
+    public void heartbeat(String endpoint) {
+        heartbeat(endpoint, System.nanoTime());
+    }
+
+    public void heartbeat(String endpoint, long nowNanos) {
+        histories.computeIfAbsent(endpoint, e -> new History(firstIntervalMs)).arrived(nowNanos);
+    }
+
+    public double phi(String endpoint) {
+        return phi(endpoint, System.nanoTime());
+    }
+
+    public double phi(String endpoint, long nowNanos) {
+        History h = histories.get(endpoint);
+        return h == null ? 0 : h.phi(nowNanos, acceptablePauseMs, minStdDevMs);
+    }
+
+    public boolean isAvailable(String endpoint) {
+        return phi(endpoint) < threshold;
+    }
+
+    // Forgets the history, e.g. when the endpoint restarted and its old rhythm no longer applies
+    public void remove(String endpoint) {
+        histories.remove(endpoint);
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    private static final class History {
+        final ReentrantLock lock = new ReentrantLock();
+        final double[] intervals = new double[WINDOW];
+        int count;
+        int next;
+        double sum;
+        double sumOfSquares;
+        long lastNanos;
+
+        // Seeded with two samples around the expected interval, so the first real gap is
+        // judged against something sensible rather than a zero-variance guess
+        History(double firstIntervalMs) {
+            add(firstIntervalMs / 2);
+            add(firstIntervalMs * 3 / 2);
+            lastNanos = -1;
+        }
+
+        void arrived(long nowNanos) {
+            lock.lock();
+            try {
+                if (lastNanos >= 0) add((nowNanos - lastNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1));
+                lastNanos = nowNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void add(double interval) {
+            if (count == WINDOW) {
+                double old = intervals[next];
+                sum -= old;
+                sumOfSquares -= old * old;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumOfSquares += interval * interval;
+        }
+
+        double phi(long nowNanos, double acceptablePauseMs, double minStdDevMs) {
+            double elapsed, mean, stdDev;
+            lock.lock();
+            try {
+                if (lastNanos < 0) return 0;
+                elapsed = (nowNanos - lastNanos) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+                mean = sum / count;
+                stdDev = Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+            } finally {
+                lock.unlock();
+            }
+            return phi(elapsed, mean + acceptablePauseMs, Math.max(stdDev, minStdDevMs));
+        }
+
+        // Logistic approximation of the normal tail, accurate to ~1e-4 and free of erf
+        private static double phi(double elapsed, double mean, double stdDev) {
+            double y = (elapsed - mean) / stdDev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return elapsed > mean ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package core;
+
+import java.util.List;
+
+// A token range (start exclusive, end inclusive, unsigned, wrapping past the top of the
+// ring; start == end is the whole ring) that target gains from a pending ring change,
+// and the nodes that hold it now
+public final class RangeMove {
+
+    private final long start;
+    private final long end;
+    private final String target;
+    private final List<String> sources;
+
+    public RangeMove(long start, long end, String target, List<String> sources) {
+        this.start = start;
+        this.end = end;
+        this.target = target;
+        this.sources = List.copyOf(sources);
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public List<String> getSources() {
+        return sources;
+    }
+
+    public boolean contains(long token) {
+        if (start == end) return true;
+        if (Long.compareUnsigned(start, end) < 0) {
+            return Long.compareUnsigned(token, start) > 0 && Long.compareUnsigned(token, end) <= 0;
+        }
+        return Long.compareUnsigned(token, start) > 0 || Long.compareUnsigned(token, end) <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + Long.toUnsignedString(start) + ", " + Long.toUnsignedString(end) + "] -> " + target + " from " + sources;
+    }
+}
@@ -1,70 +1,215 @@
 package core;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RingManager {
-    private final TreeMap<String, String> ring = new TreeMap<>();
-    private final Map<String, Node> nodeMap = new HashMap<>();
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
 
-    public void addNode(Node node) {
-        String nodeId = node.getId();
-        String hash = HashUtil.sha1(nodeId);
-        ring.put(hash, nodeId);
-        nodeMap.put(nodeId, node);
-        System.out.println("Node added: " + nodeId + " (Hash: " + hash + ")");
+    private final int defaultVirtualNodes;
+    // Membership changes rebuild an immutable Layout and publish it through this field,
+    // so lookups never take a lock and always see a consistent ring.
+    private volatile Layout layout = Layout.EMPTY;
+    // Nodes joining or leaving while their ranges are streamed. Reads keep using the current
+    // layout; writes also go to the replicas of the pending one, which is what the ring will
+    // look like once every move completes. Null when nothing is pending.
+    private final Map<String, Node> joining = new LinkedHashMap<>();
+    private final Set<String> leaving = new LinkedHashSet<>();
+    private volatile Layout pending;
+
+    public RingManager() {
+        this(Integer.getInteger("kv.ring.vnodes", DEFAULT_VIRTUAL_NODES));
+    }
+
+    public RingManager(int defaultVirtualNodes) {
+        if (defaultVirtualNodes <= 0) throw new IllegalArgumentException("defaultVirtualNodes must be > 0");
+        this.defaultVirtualNodes = defaultVirtualNodes;
     }
 
-    public void removeNode(String nodeId) {
-        String hash = HashUtil.sha1(nodeId);
-        ring.remove(hash);
-        nodeMap.remove(nodeId);
-        System.out.println("Node removed: " + nodeId);
+    // A ring rebuilt from another node's topology, keeping that node's version
+    public RingManager(int defaultVirtualNodes, Collection<Node> nodes, long version) {
+        this(defaultVirtualNodes);
+        Map<String, Node> byId = new LinkedHashMap<>();
+        for (Node node : nodes) byId.put(node.getId(), node);
+        layout = Layout.build(byId, defaultVirtualNodes, version);
+    }
+
+    public synchronized void addNode(Node node) {
+        Map<String, Node> nodes = new LinkedHashMap<>(layout.nodes);
+        nodes.put(node.getId(), node);
+        joining.remove(node.getId());
+        layout = Layout.build(nodes, defaultVirtualNodes, layout.version + 1);
+        rebuildPending();
+        Log.info(null, "Node added: " + node.getId() + " (" + node.tokenCount(defaultVirtualNodes) + " virtual nodes)");
+    }
+
+    public synchronized void removeNode(String nodeId) {
+        boolean wasPending = joining.remove(nodeId) != null | leaving.remove(nodeId);
+        Map<String, Node> nodes = new LinkedHashMap<>(layout.nodes);
+        if (nodes.remove(nodeId) == null) {
+            if (wasPending) rebuildPending();
+            return;
+        }
+        layout = Layout.build(nodes, defaultVirtualNodes, layout.version + 1);
+        rebuildPending();
+        Log.info(null, "Node removed: " + nodeId);
+    }
+
+    // The node receives writes for the ranges it will own, but serves no reads until
+    // completePending moves it onto the ring
+    public synchronized void addJoiningNode(Node node) {
+        if (layout.nodes.containsKey(node.getId()) || joining.put(node.getId(), node) != null) return;
+        rebuildPending();
+        Log.info(null, "Node joining: " + node.getId());
+    }
+
+    // The node keeps serving its ranges while their new owners receive them
+    public synchronized void markLeaving(String nodeId) {
+        if (!layout.nodes.containsKey(nodeId) || !leaving.add(nodeId)) return;
+        rebuildPending();
+        Log.info(null, "Node leaving: " + nodeId);
+    }
+
+    // A joining node becomes an owner, a leaving one is removed
+    public synchronized void completePending(String nodeId) {
+        Node node = joining.get(nodeId);
+        if (node != null) {
+            addNode(node);
+        } else if (leaving.contains(nodeId)) {
+            removeNode(nodeId);
+        }
+    }
+
+    public boolean isJoining(String nodeId) {
+        Layout p = pending;
+        return p != null && p.nodes.containsKey(nodeId) && !layout.nodes.containsKey(nodeId);
+    }
+
+    public boolean isLeaving(String nodeId) {
+        Layout p = pending;
+        return p != null && !p.nodes.containsKey(nodeId) && layout.nodes.containsKey(nodeId);
+    }
+
+    private void rebuildPending() {
+        if (joining.isEmpty() && leaving.isEmpty()) {
+            pending = null;
+            return;
+        }
+        Map<String, Node> nodes = new LinkedHashMap<>(layout.nodes);
+        nodes.putAll(joining);
+        nodes.keySet().removeAll(leaving);
+        pending = Layout.build(nodes, defaultVirtualNodes, layout.version);
     }
 
     public String getNodeForKey(String key) {
-        String hash = HashUtil.sha1(key);
-        SortedMap<String, String> tailMap = ring.tailMap(hash);
-        String nodeHash = tailMap.isEmpty() ? ring.firstKey() : tailMap.firstKey();
-        return ring.get(nodeHash);
+        Layout l = layout;
+        if (l.tokens.length == 0) return null;
+        return l.nodeIds[l.owners[l.rangeFor(HashUtil.token(key))]];
     }
 
     public List<String> getNNodesForKey(String key, int n) {
-        List<String> nodes = new ArrayList<>();
-        if (ring.isEmpty() || n <= 0) return nodes;
+        Layout l = layout;
+        if (l.tokens.length == 0 || n <= 0) return Collections.emptyList();
+        return l.preferenceList(l.rangeFor(HashUtil.token(key)), n);
+    }
 
-        String hash = HashUtil.sha1(key);
-        SortedMap<String, String> tailMap = ring.tailMap(hash);
+    // Where a write has to go: the key's replicas, followed by any node that will become one
+    // once the pending moves complete. Same as getNNodesForKey when nothing is pending.
+    public List<String> getWriteNodesForKey(String key, int n) {
+        List<String> current = getNNodesForKey(key, n);
+        Layout p = pending;
+        if (p == null || p.tokens.length == 0 || n <= 0) return current;
+        List<String> next = p.preferenceList(p.rangeFor(HashUtil.token(key)), n);
+        if (current.containsAll(next)) return current;
+        List<String> all = new ArrayList<>(current);
+        for (String node : next) {
+            if (!all.contains(node)) all.add(node);
+        }
+        return all;
+    }
 
-        Iterator<String> iterator = tailMap.isEmpty() ? ring.keySet().iterator() : tailMap.keySet().iterator();
+    // Token ranges that gain a replica once the pending joins and leaves complete. Each move
+    // names the gaining node and the current replicas of the range, any of which can send it.
+    // Adjacent ranges with the same target and sources are merged.
+    public List<RangeMove> getPendingMoves(int n) {
+        Layout current = layout;
+        Layout next = pending;
+        if (next == null || next.tokens.length == 0 || current.tokens.length == 0 || n <= 0) {
+            return Collections.emptyList();
+        }
+        // Boundaries of both layouts: within each interval between two of them neither
+        // preference list changes
+        long[] bounds = new long[current.tokens.length + next.tokens.length];
+        System.arraycopy(current.tokens, 0, bounds, 0, current.tokens.length);
+        System.arraycopy(next.tokens, 0, bounds, current.tokens.length, next.tokens.length);
+        Arrays.sort(bounds);
+        int unique = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            if (unique == 0 || bounds[unique - 1] != bounds[i]) bounds[unique++] = bounds[i];
+        }
 
-        Set<String> visited = new HashSet<>();
-        while (nodes.size() < n && iterator.hasNext()) {
-            String nodeHash = iterator.next();
-            String nodeId = ring.get(nodeHash);
-            if (!visited.contains(nodeId)) {
-                nodes.add(nodeId);
-                visited.add(nodeId);
+        List<RangeMove> moves = new ArrayList<>();
+        for (int i = 0; i < unique; i++) {
+            long end = bounds[i] ^ Long.MIN_VALUE;
+            long start = bounds[i == 0 ? unique - 1 : i - 1] ^ Long.MIN_VALUE;
+            List<String> before = current.preferenceList(current.rangeFor(end), n);
+            for (String target : next.preferenceList(next.rangeFor(end), n)) {
+                if (before.contains(target)) continue;
+                RangeMove last = moves.isEmpty() ? null : moves.get(moves.size() - 1);
+                if (last != null && last.getEnd() == start && last.getTarget().equals(target)
+                        && last.getSources().equals(before)) {
+                    moves.set(moves.size() - 1, new RangeMove(last.getStart(), end, target, before));
+                } else {
+                    moves.add(new RangeMove(start, end, target, before));
+                }
             }
         }
+        return moves;
+    }
 
-        if (nodes.size() < n) {
-            iterator = ring.keySet().iterator();
-            while (nodes.size() < n && iterator.hasNext()) {
-                String nodeHash = iterator.next();
-                String nodeId = ring.get(nodeHash);
-                if (!visited.contains(nodeId)) {
-                    nodes.add(nodeId);
-                    visited.add(nodeId);
-                }
+    // Distinct preference lists of the token ranges overlapping [fromToken, toToken] (unsigned,
+    // inclusive), in ring order. With the order-preserving partitioner a key range maps to such
+    // a token interval, so these are the only replica sets a range scan has to ask.
+    public List<List<String>> getReplicaSetsForTokens(long fromToken, long toToken, int n) {
+        Layout l = layout;
+        if (l.tokens.length == 0 || n <= 0) return Collections.emptyList();
+        Set<List<String>> sets = new LinkedHashSet<>();
+        int r = l.rangeFor(fromToken);
+        sets.add(l.preferenceList(r, n));
+        // Past the last token: the interval lies in the wrap-around range alone
+        if (Long.compareUnsigned(fromToken, l.tokens[r] ^ Long.MIN_VALUE) > 0) return new ArrayList<>(sets);
+        while (Long.compareUnsigned(toToken, l.tokens[r] ^ Long.MIN_VALUE) > 0) {
+            if (++r == l.tokens.length) {
+                sets.add(l.preferenceList(0, n));
+                break;
             }
+            sets.add(l.preferenceList(r, n));
         }
+        return new ArrayList<>(sets);
+    }
+
+    public Node getNode(String nodeId) {
+        return layout.nodes.get(nodeId);
+    }
+
+    // Also finds a node that is still joining, e.g. to send it writes or streamed ranges
+    public Node lookupNode(String nodeId) {
+        Node node = layout.nodes.get(nodeId);
+        Layout p = pending;
+        return node != null || p == null ? node : p.nodes.get(nodeId);
+    }
 
-        return nodes;
+    public List<Node> getNodes() {
+        return new ArrayList<>(layout.nodes.values());
     }
 
+    // Bumped on every membership change, so copies of the ring can tell which is newer
+    public long getVersion() {
+        return layout.version;
+    }
 
     public String getNodeAddress(String nodeId) {
-        Node node = nodeMap.get(nodeId);
+        Node node = layout.nodes.get(nodeId);
         if (node != null) {
             return node.getIp() + ":" + node.getPort();
         }
@@ -72,12 +217,183 @@ public class RingManager {
     }
 
     public void printRing() {
-        for (Map.Entry<String, String> entry : ring.entrySet()) {
-            System.out.println(entry.getValue() + " -> " + entry.getKey());
+        Layout l = layout;
+        double[] share = l.ownership();
+        for (int i = 0; i < l.nodeIds.length; i++) {
+            System.out.printf("%s -> %d tokens, %.2f%% of ring%n", l.nodeIds[i], l.tokenCounts[i], share[i] * 100);
         }
     }
 
+    // Number of tokens (virtual nodes) on the ring
     public int getRingSize() {
-        return ring.size();
+        return layout.tokens.length;
+    }
+
+    public int getDefaultVirtualNodes() {
+        return defaultVirtualNodes;
+    }
+
+    public List<String> getNodeIds() {
+        return new ArrayList<>(layout.nodes.keySet());
+    }
+
+    // Fraction of the token space for which each node is the primary owner
+    public Map<String, Double> getOwnership() {
+        Layout l = layout;
+        double[] share = l.ownership();
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < l.nodeIds.length; i++) result.put(l.nodeIds[i], share[i]);
+        return result;
+    }
+
+    // Per-node ownership as primary and as any of the first replicationFactor replicas,
+    // with the standard deviation across nodes relative to a perfectly even split.
+    public String loadReport(int replicationFactor) {
+        Layout l = layout;
+        int nodes = l.nodeIds.length;
+        if (nodes == 0) return "empty ring\n";
+
+        double[] primary = l.ownership();
+        double[] replica = new double[nodes];
+        for (int r = 0; r < l.tokens.length; r++) {
+            double width = l.rangeWidth(r);
+            for (String id : l.preferenceList(r, replicationFactor)) replica[l.indexOf(id)] += width;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-12s %8s %10s %10s%n", "node", "tokens", "primary%", "replica%"));
+        for (int i = 0; i < nodes; i++) {
+            sb.append(String.format("%-12s %8d %10.2f %10.2f%n",
+                    l.nodeIds[i], l.tokenCounts[i], primary[i] * 100, replica[i] * 100));
+        }
+        sb.append(String.format("stddev primary %.2f%% (mean %.2f%%), replica %.2f%% (mean %.2f%%)%n",
+                stddev(primary) * 100, 100.0 / nodes,
+                stddev(replica) * 100, 100.0 * Math.min(replicationFactor, nodes) / nodes));
+        return sb.toString();
+    }
+
+    private static double stddev(double[] values) {
+        double mean = 0;
+        for (double v : values) mean += v;
+        mean /= values.length;
+        double sq = 0;
+        for (double v : values) sq += (v - mean) * (v - mean);
+        return Math.sqrt(sq / values.length);
+    }
+
+    private static final class Layout {
+        static final Layout EMPTY = new Layout(Collections.emptyMap(), new long[0], new int[0], new String[0], new int[0], 0);
+
+        final long version;
+        final Map<String, Node> nodes;
+        // Tokens with the sign bit flipped, so a signed sort/binary search orders them as unsigned
+        final long[] tokens;
+        // owners[i] indexes nodeIds for the virtual node at tokens[i]
+        final int[] owners;
+        final String[] nodeIds;
+        final int[] tokenCounts;
+        // Preference lists by replica count, then by token range; all ranges of a replica
+        // count are computed together the first time it is asked for
+        private final Map<Integer, List<List<String>>> preferences = new ConcurrentHashMap<>();
+
+        private Layout(Map<String, Node> nodes, long[] tokens, int[] owners, String[] nodeIds, int[] tokenCounts,
+                       long version) {
+            this.version = version;
+            this.nodes = nodes;
+            this.tokens = tokens;
+            this.owners = owners;
+            this.nodeIds = nodeIds;
+            this.tokenCounts = tokenCounts;
+        }
+
+        static Layout build(Map<String, Node> nodes, int defaultVirtualNodes, long version) {
+            String[] nodeIds = nodes.keySet().toArray(new String[0]);
+            Arrays.sort(nodeIds);
+
+            int total = 0;
+            int[] counts = new int[nodeIds.length];
+            for (int i = 0; i < nodeIds.length; i++) {
+                counts[i] = nodes.get(nodeIds[i]).tokenCount(defaultVirtualNodes);
+                total += counts[i];
+            }
+
+            // Tokens are generated node by node, so each one's owner is known from its position
+            long[] generated = new long[total];
+            int p = 0;
+            for (int i = 0; i < nodeIds.length; i++) {
+                for (int v = 0; v < counts[i]; v++) {
+                    generated[p++] = HashUtil.uniformToken(nodeIds[i] + "#" + v) ^ Long.MIN_VALUE;
+                }
+            }
+            long[] tokens = generated.clone();
+            Arrays.sort(tokens);
+            int n = 0;
+            for (int i = 0; i < total; i++) {
+                if (n == 0 || tokens[n - 1] != tokens[i]) tokens[n++] = tokens[i];
+            }
+            if (n < total) tokens = Arrays.copyOf(tokens, n);
+
+            // A colliding token goes to the lowest node id; the loser simply has one fewer vnode
+            int[] owners = new int[n];
+            Arrays.fill(owners, Integer.MAX_VALUE);
+            p = 0;
+            for (int i = 0; i < nodeIds.length; i++) {
+                for (int v = 0; v < counts[i]; v++) {
+                    int range = Arrays.binarySearch(tokens, generated[p++]);
+                    owners[range] = Math.min(owners[range], i);
+                }
+            }
+            int[] placed = new int[nodeIds.length];
+            for (int owner : owners) placed[owner]++;
+            return new Layout(Collections.unmodifiableMap(new LinkedHashMap<>(nodes)), tokens, owners, nodeIds, placed, version);
+        }
+
+        // Index of the first token at or after the key's token, wrapping to 0
+        int rangeFor(long token) {
+            int i = Arrays.binarySearch(tokens, token ^ Long.MIN_VALUE);
+            if (i < 0) i = -i - 1;
+            return i == tokens.length ? 0 : i;
+        }
+
+        List<String> preferenceList(int range, int n) {
+            return preferences.computeIfAbsent(n, k -> {
+                List<List<String>> byRange = new ArrayList<>(tokens.length);
+                for (int r = 0; r < tokens.length; r++) byRange.add(walk(r, k));
+                return Collections.unmodifiableList(byRange);
+            }).get(range);
+        }
+
+        private List<String> walk(int range, int n) {
+            int want = Math.min(n, nodeIds.length);
+            String[] picked = new String[want];
+            boolean[] seen = new boolean[nodeIds.length];
+            int found = 0;
+            for (int step = 0; step < tokens.length && found < want; step++) {
+                int owner = owners[(range + step) % tokens.length];
+                if (!seen[owner]) {
+                    seen[owner] = true;
+                    picked[found++] = nodeIds[owner];
+                }
+            }
+            return List.of(picked);
+        }
+
+        int indexOf(String nodeId) {
+            return Arrays.binarySearch(nodeIds, nodeId);
+        }
+
+        // Fraction of the 64-bit token space covered by (tokens[range - 1], tokens[range]]
+        double rangeWidth(int range) {
+            if (tokens.length == 1) return 1.0;
+            long prev = tokens[range == 0 ? tokens.length - 1 : range - 1];
+            long width = tokens[range] - prev; // wraps correctly for the first range
+            return (width >>> 11) * 0x1.0p-53;
+        }
+
+        double[] ownership() {
+            double[] share = new double[nodeIds.length];
+            for (int r = 0; r < tokens.length; r++) share[owners[r]] += rangeWidth(r);
+            return share;
+        }
     }
 }
@@ -0,0 +1,133 @@
+package core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Hierarchical timing wheel (Varghese & Lauck) holding string keys with a deadline each.
+// Four levels of 512 slots: level 0 slots are one tick wide, each higher level's slots span a
+// whole turn of the level below. A key lands in the lowest level whose span covers its
+// deadline and is cascaded one level down when its slot comes round, so scheduling is O(1)
+// and each key is touched at most once per level however long its deadline. With 100ms
+// ticks the wheel reaches about 200 years; later deadlines wait at the top and re-cascade.
+//
+// There is no cancel: a key that is rewritten simply gets another entry, and whoever
+// consumes due keys checks whether they are still due. Slots are parallel arrays rather
+// than a node per key, which keeps tens of millions of keys to ~12 bytes each.
+public class TimingWheel {
+
+    private static final int BITS = 9;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // Slots never shrink below this, so a busy slot does not regrow every turn
+    private static final int KEEP_CAPACITY = 1024;
+
+    private final long tickMs;
+    private final Slot[][] wheels = new Slot[LEVELS][SLOTS];
+    private final ReentrantLock lock = new ReentrantLock();
+    // Every tick before this one has fired
+    private long currentTick;
+    private long size;
+
+    public TimingWheel(long tickMs, long startMillis) {
+        if (tickMs <= 0) throw new IllegalArgumentException("tickMs must be > 0");
+        this.tickMs = tickMs;
+        this.currentTick = startMillis / tickMs;
+    }
+
+    public void schedule(String key, long deadlineMillis) {
+        lock.lock();
+        try {
+            place(key, deadlineMillis);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds every key whose deadline is at or before nowMillis to `due`, firing ticks one at a time
+    public int advance(long nowMillis, Collection<String> due) {
+        long target = nowMillis / tickMs;
+        int fired = 0;
+        lock.lock();
+        try {
+            while (currentTick <= target) {
+                Slot slot = wheels[0][(int) (currentTick & MASK)];
+                if (slot != null && slot.size > 0) {
+                    for (int i = 0; i < slot.size; i++) due.add(slot.keys[i]);
+                    fired += slot.size;
+                    size -= slot.size;
+                    slot.clear();
+                }
+                currentTick++;
+                // Each time a level completes a turn, the next slot of the level above comes due
+                for (int level = 1; level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+                    cascade(level, (int) ((currentTick >>> (BITS * level)) & MASK));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return fired;
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cascade(int level, int index) {
+        Slot slot = wheels[level][index];
+        if (slot == null || slot.size == 0) return;
+        String[] keys = slot.keys;
+        long[] deadlines = slot.deadlines;
+        int n = slot.size;
+        // Detached first: re-placing may put keys back into this very slot on its next turn
+        wheels[level][index] = null;
+        for (int i = 0; i < n; i++) place(keys[i], deadlines[i]);
+    }
+
+    private void place(String key, long deadlineMillis) {
+        // Rounded up, so a key never fires before its deadline
+        long tick = Math.max(Math.floorDiv(deadlineMillis + tickMs - 1, tickMs), currentTick);
+        long delta = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        if (level == LEVELS - 1) tick = Math.min(tick, currentTick + (1L << (BITS * LEVELS)) - 1);
+        int index = (int) ((tick >>> (BITS * level)) & MASK);
+        Slot slot = wheels[level][index];
+        if (slot == null) wheels[level][index] = slot = new Slot();
+        slot.add(key, deadlineMillis);
+    }
+
+    private static final class Slot {
+        String[] keys = new String[8];
+        long[] deadlines = new long[8];
+        int size;
+
+        void add(String key, long deadline) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+            }
+            keys[size] = key;
+            deadlines[size] = deadline;
+            size++;
+        }
+
+        void clear() {
+            if (keys.length > KEEP_CAPACITY) {
+                keys = new String[KEEP_CAPACITY];
+                deadlines = new long[KEEP_CAPACITY];
+            } else {
+                Arrays.fill(keys, 0, size, null);
+            }
+            size = 0;
+        }
+    }
+}
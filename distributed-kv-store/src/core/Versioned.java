@@ -0,0 +1,203 @@
+package core;
+
+import java.nio.charset.StandardCharsets;
+
+// A value with the hybrid-clock timestamp of the write that produced it.
+//
+// Storage engines keep plain strings, so the version travels inside the stored value:
+// a marker char, the timestamp as 16 hex digits, then the value itself. Values written
+// before versioning have no marker and count as version 0, older than any new write.
+// Of two versions of a key the higher timestamp wins; equal timestamps fall back to
+// comparing the values so that every replica picks the same one.
+//
+// A value written with a TTL has a second marker and its expiry time (wall-clock ms, 16 hex
+// digits) after the version. A delete is a tombstone: a third marker, the version and the
+// time after which the tombstone itself may be dropped. Tombstones are versions like any
+// other, so a delete replicates, repairs and wins against older writes the same way a PUT
+// does, and beats a value written at the same timestamp.
+//
+// A large value may be stored compressed (see Compression), under its own pair of markers.
+// The coordinator compresses once when it stamps a write; from then on replication, hints,
+// repair and rebalancing all move the compressed form, and only getValue() inflates it.
+public final class Versioned implements Comparable<Versioned> {
+
+    private static final char MARKER = '\u0001';
+    private static final char EXPIRING = '\u0002';
+    private static final char TOMBSTONE = '\u0003';
+    private static final char COMPRESSED = '\u0004';
+    private static final char EXPIRING_COMPRESSED = '\u0005';
+    private static final int HEADER = 17;
+    private static final int EXPIRING_HEADER = 33;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long version;
+    private final String value;
+    // When a value expires, or when a tombstone may be purged; 0 = never
+    private final long expiresAt;
+    private final boolean tombstone;
+    // value holds the Compression form
+    private final boolean compressed;
+
+    public Versioned(long version, String value) {
+        this(version, value, 0L);
+    }
+
+    public Versioned(long version, String value, long expiresAt) {
+        this(version, value, expiresAt, false);
+    }
+
+    private Versioned(long version, String value, long expiresAt, boolean tombstone) {
+        this(version, value, expiresAt, tombstone, false);
+    }
+
+    private Versioned(long version, String value, long expiresAt, boolean tombstone, boolean compressed) {
+        this.version = version;
+        this.value = value;
+        this.expiresAt = expiresAt;
+        this.tombstone = tombstone;
+        this.compressed = compressed;
+    }
+
+    public static Versioned tombstone(long version, long purgeAt) {
+        return new Versioned(version, "", purgeAt, true);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Empty for a tombstone
+    public String getValue() {
+        return compressed ? Compression.decompress(value) : value;
+    }
+
+    // UTF-8; inflated straight to bytes, skipping the String, when the value is compressed
+    public byte[] getValueBytes() {
+        return compressed ? Compression.decompressBytes(value) : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // This value compressed if it is large enough and compresses well, otherwise this
+    public Versioned compressed() {
+        if (tombstone || compressed) return this;
+        String packed = Compression.compress(value);
+        return packed == null ? this : new Versioned(version, packed, expiresAt, false, true);
+    }
+
+    // Characters held in memory and on disk, compressed or not
+    public int storedLength() {
+        return value.length();
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isTombstone() {
+        return tombstone;
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return !tombstone && expiresAt != 0 && nowMillis >= expiresAt;
+    }
+
+    // What a reader sees: a value that is neither deleted nor expired
+    public boolean isLive(long nowMillis) {
+        return !tombstone && (expiresAt == 0 || nowMillis < expiresAt);
+    }
+
+    public String encode() {
+        if (tombstone) return encode(TOMBSTONE, version, expiresAt, "");
+        if (expiresAt != 0) return encode(compressed ? EXPIRING_COMPRESSED : EXPIRING, version, expiresAt, value);
+        return encode(compressed ? COMPRESSED : MARKER, version, value);
+    }
+
+    public static String encode(long version, String value) {
+        return encode(MARKER, version, value);
+    }
+
+    private static String encode(char marker, long version, String value) {
+        char[] out = new char[HEADER + value.length()];
+        out[0] = marker;
+        for (int i = 16; i >= 1; i--) {
+            out[i] = HEX[(int) (version & 0xF)];
+            version >>>= 4;
+        }
+        value.getChars(0, value.length(), out, HEADER);
+        return new String(out);
+    }
+
+    private static String encode(char marker, long version, long expiresAt, String value) {
+        char[] out = new char[EXPIRING_HEADER + value.length()];
+        out[0] = marker;
+        for (int i = 16; i >= 1; i--) {
+            out[i] = HEX[(int) (version & 0xF)];
+            version >>>= 4;
+        }
+        for (int i = 32; i >= 17; i--) {
+            out[i] = HEX[(int) (expiresAt & 0xF)];
+            expiresAt >>>= 4;
+        }
+        value.getChars(0, value.length(), out, EXPIRING_HEADER);
+        return new String(out);
+    }
+
+    // null stays null
+    public static Versioned decode(String stored) {
+        if (stored == null) return null;
+        char marker = stored.isEmpty() ? 0 : stored.charAt(0);
+        if ((marker == MARKER || marker == COMPRESSED) && isHex(stored, HEADER)) {
+            return new Versioned(hex(stored, 1), stored.substring(HEADER), 0L, false, marker == COMPRESSED);
+        }
+        if ((marker == EXPIRING || marker == EXPIRING_COMPRESSED || marker == TOMBSTONE) && isHex(stored, EXPIRING_HEADER)) {
+            return marker == TOMBSTONE
+                    ? tombstone(hex(stored, 1), hex(stored, HEADER))
+                    : new Versioned(hex(stored, 1), stored.substring(EXPIRING_HEADER), hex(stored, HEADER), false,
+                            marker == EXPIRING_COMPRESSED);
+        }
+        return new Versioned(0L, stored);
+    }
+
+    // Reads the expiry of a stored value without decoding it; 0 when it has none
+    public static long expiresAt(String stored) {
+        if (stored == null || stored.isEmpty()) return 0;
+        char marker = stored.charAt(0);
+        return (marker == EXPIRING || marker == EXPIRING_COMPRESSED || marker == TOMBSTONE) && isHex(stored, EXPIRING_HEADER)
+                ? hex(stored, HEADER) : 0;
+    }
+
+    private static boolean isHex(String stored, int header) {
+        if (stored.length() < header) return false;
+        for (int i = 1; i < header; i++) {
+            if (Character.digit(stored.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    private static long hex(String stored, int from) {
+        long v = 0;
+        for (int i = from; i < from + 16; i++) {
+            v = (v << 4) | Character.digit(stored.charAt(i), 16);
+        }
+        return v;
+    }
+
+    public boolean isNewerThan(Versioned other) {
+        return other == null || compareTo(other) > 0;
+    }
+
+    @Override
+    public int compareTo(Versioned other) {
+        int byVersion = Long.compareUnsigned(version, other.version);
+        if (byVersion != 0) return byVersion;
+        if (tombstone != other.tombstone) return tombstone ? 1 : -1;
+        int byValue = value.compareTo(other.value);
+        return byValue != 0 ? byValue : Long.compare(expiresAt, other.expiresAt);
+    }
+
+    @Override
+    public String toString() {
+        if (tombstone) return "<deleted>@" + Long.toHexString(version);
+        return (compressed ? "<" + value.length() + " chars compressed>" : value) + "@" + Long.toHexString(version)
+                + (expiresAt != 0 ? " expires " + expiresAt : "");
+    }
+}
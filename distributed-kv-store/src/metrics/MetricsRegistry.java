@@ -0,0 +1,223 @@
+package metrics;
+
+import core.Log;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters, gauges and latency histograms of one node. Recording is lock-free (LongAdder,
+// LatencyHistogram); callers on hot paths look a metric up once and keep the reference.
+//
+// Names may carry one label, e.g. name("requests", "type", "PUT") -> requests{type="PUT"}.
+// The registry is readable as JMX attributes (kvstore:type=Node,name=<node>, histograms as
+// <name>.count/.p50Micros/.p99Micros/.p999Micros/.maxMicros) and as Prometheus-style text,
+// which MetricsServer serves for every registered node.
+public class MetricsRegistry implements DynamicMBean {
+
+    private static final List<MetricsRegistry> registered = new CopyOnWriteArrayList<>();
+
+    private final String node;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private ObjectName objectName;
+
+    public MetricsRegistry(String node) {
+        this.node = node;
+    }
+
+    public static String name(String base, String label, String value) {
+        return base + "{" + label + "=\"" + value + "\"}";
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    // Sampled whenever the registry is read
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void remove(String name) {
+        counters.remove(name);
+        gauges.remove(name);
+        histograms.remove(name);
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    // Makes this registry visible over JMX and to MetricsServer; replaces an older registry
+    // of the same node, e.g. after an in-process restart
+    public void register() {
+        for (MetricsRegistry r : registered) {
+            if (r.node.equals(node)) r.unregister();
+        }
+        registered.add(this);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("kvstore:type=Node,name=" + ObjectName.quote(node));
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            Log.warn(node, "Metrics not exported over JMX: " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        registered.remove(this);
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // already replaced
+        } catch (JMException e) {
+            Log.warn(node, "Failed to unregister metrics: " + e.getMessage());
+        }
+        objectName = null;
+    }
+
+    public static List<MetricsRegistry> registered() {
+        return registered;
+    }
+
+    // Prometheus text format; every metric gets a node label, latencies are in microseconds
+    public void writeText(StringBuilder out) {
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            line(out, e.getKey(), null, e.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            line(out, e.getKey(), null, e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            String base = e.getKey();
+            line(out, suffixed(base, "_micros"), "quantile=\"0.5\"", h.percentileNanos(0.50) / 1000);
+            line(out, suffixed(base, "_micros"), "quantile=\"0.99\"", h.percentileNanos(0.99) / 1000);
+            line(out, suffixed(base, "_micros"), "quantile=\"0.999\"", h.percentileNanos(0.999) / 1000);
+            line(out, suffixed(base, "_micros_max"), null, h.maxNanos() / 1000);
+            line(out, suffixed(base, "_micros_sum"), null, h.sumNanos() / 1000);
+            line(out, suffixed(base, "_micros_count"), null, h.count());
+        }
+    }
+
+    private void line(StringBuilder out, String name, String extraLabel, long value) {
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        out.append("kv_").append(base).append("{node=\"").append(node).append('"');
+        if (brace >= 0) out.append(',').append(name, brace + 1, name.length() - 1);
+        if (extraLabel != null) out.append(',').append(extraLabel);
+        out.append("} ").append(value).append('\n');
+    }
+
+    private static String suffixed(String name, String suffix) {
+        int brace = name.indexOf('{');
+        return brace < 0 ? name + suffix : name.substring(0, brace) + suffix + name.substring(brace);
+    }
+
+    // requests{type="PUT"} -> requests.PUT
+    private static String attributeName(String name) {
+        int brace = name.indexOf('{');
+        if (brace < 0) return name;
+        int quote = name.indexOf('"', brace);
+        return name.substring(0, brace) + "." + name.substring(quote + 1, name.lastIndexOf('"'));
+    }
+
+    // DynamicMBean: one read-only long attribute per counter, gauge and histogram statistic
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            if (attributeName(e.getKey()).equals(attribute)) return e.getValue().sum();
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            if (attributeName(e.getKey()).equals(attribute)) return e.getValue().getAsLong();
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            String statistic = attribute.substring(dot + 1);
+            for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+                if (!attributeName(e.getKey()).equals(attribute.substring(0, dot))) continue;
+                LatencyHistogram h = e.getValue();
+                switch (statistic) {
+                    case "count": return h.count();
+                    case "p50Micros": return h.percentileNanos(0.50) / 1000;
+                    case "p99Micros": return h.percentileNanos(0.99) / 1000;
+                    case "p999Micros": return h.percentileNanos(0.999) / 1000;
+                    case "maxMicros": return h.maxNanos() / 1000;
+                    default: break;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException e) {
+                // skipped, as the JMX contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : counters.keySet()) attributes.add(attribute(attributeName(name), "counter"));
+        for (String name : gauges.keySet()) attributes.add(attribute(attributeName(name), "gauge"));
+        for (String name : histograms.keySet()) {
+            for (String statistic : new String[]{"count", "p50Micros", "p99Micros", "p999Micros", "maxMicros"}) {
+                attributes.add(attribute(attributeName(name) + "." + statistic, "latency"));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Metrics of " + node,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attribute(String name, String description) {
+        return new MBeanAttributeInfo(name, "long", description, true, false, false);
+    }
+}
@@ -0,0 +1,53 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import core.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Plain-text scrape endpoint: GET /metrics returns every registered node's metrics in
+// Prometheus text format. One per JVM, started on kv.metrics.port (off when 0, the default);
+// in-process clusters share it and tell nodes apart by the node label.
+public final class MetricsServer {
+
+    private static HttpServer server;
+
+    private MetricsServer() {
+    }
+
+    public static synchronized void startFromSystemProperties() {
+        int port = Integer.getInteger("kv.metrics.port", 0);
+        if (port <= 0 || server != null) return;
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.setExecutor(Executors.newSingleThreadExecutor(Thread.ofVirtual().factory()));
+            server.createContext("/metrics", exchange -> {
+                StringBuilder text = new StringBuilder(8192);
+                for (MetricsRegistry registry : MetricsRegistry.registered()) registry.writeText(text);
+                text.append("kv_log_dropped ").append(Log.getDropped()).append('\n');
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            Log.info(null, "Metrics at http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            Log.error(null, "Metrics endpoint not started on port " + port + ": " + e.getMessage());
+            server = null;
+        }
+    }
+
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
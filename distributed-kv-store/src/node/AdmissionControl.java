@@ -0,0 +1,72 @@
+package node;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounds open connections and in-flight requests. Work over the limit is rejected
+// straight away rather than queued, so a burst cannot run the node out of memory.
+class AdmissionControl {
+
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    AdmissionControl(ServerConfig config) {
+        this.maxConnections = config.getMaxConnections();
+        this.maxInFlight = config.getMaxInFlightRequests();
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    boolean tryOpenConnection() {
+        while (true) {
+            int current = connections.get();
+            if (current >= maxConnections) {
+                rejectedConnections.incrementAndGet();
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    boolean tryBeginRequest() {
+        if (inFlight.tryAcquire()) {
+            return true;
+        }
+        rejectedRequests.incrementAndGet();
+        return false;
+    }
+
+    void endRequest() {
+        inFlight.release();
+    }
+
+    static Message busy(Message request, String nodeId) {
+        return new Message(Message.MessageType.RESPONSE, "ERROR", "BUSY", nodeId, request.getRequestId());
+    }
+
+    int openConnections() {
+        return connections.get();
+    }
+
+    int inFlightRequests() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    long rejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    long rejectedRequests() {
+        return rejectedRequests.get();
+    }
+}
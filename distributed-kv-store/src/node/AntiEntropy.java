@@ -0,0 +1,177 @@
+package node;
+
+import core.HashUtil;
+import core.MerkleTree;
+import core.RingManager;
+import storage.StorageEngine;
+import storage.StorageSnapshot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Incremental catch-up between replicas. Both sides hash the keys they should share
+// into a Merkle tree over the token ring; the recovering node fetches the peer's tree,
+// diffs it against its own and streams back only the entries in differing leaves, in
+// bounded chunks. On a partitioned engine the tree is built over all partitions in parallel
+// and a range request reads only the partitions that hold a differing leaf.
+class AntiEntropy {
+
+    static final int TREE_DEPTH = 10;
+    private static final int CHUNK_ENTRIES = 512;
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final long TREE_TIMEOUT_MS = 30_000;
+    private static final long SYNC_TIMEOUT_MS = 10 * 60_000;
+
+    private final String nodeId;
+    private final RingManager ring;
+    private final int replicationFactor;
+    private final VersionedStore versioned;
+    private final StorageEngine store;
+
+    AntiEntropy(String nodeId, RingManager ring, int replicationFactor, VersionedStore versioned) {
+        this.nodeId = nodeId;
+        this.ring = ring;
+        this.replicationFactor = replicationFactor;
+        this.versioned = versioned;
+        this.store = versioned.engine();
+    }
+
+    static final class SyncResult {
+        final int divergentLeaves;
+        final long received;
+        final long applied;
+        final long bytes;
+
+        SyncResult(int divergentLeaves, long received, long applied, long bytes) {
+            this.divergentLeaves = divergentLeaves;
+            this.received = received;
+            this.applied = applied;
+            this.bytes = bytes;
+        }
+    }
+
+    // Pulls whatever the peer has and we are missing (or hold an older version of) for shared ranges
+    SyncResult syncWith(String peerId, String host, int port) throws IOException {
+        Message treeRequest = new Message(Message.MessageType.MERKLE_TREE, String.valueOf(TREE_DEPTH), null, nodeId);
+        Message treeResponse = NodeClient.getPool().send(host, port, treeRequest, TREE_TIMEOUT_MS);
+        if (treeResponse.getType() != Message.MessageType.RESPONSE || "ERROR".equals(treeResponse.getKey())) {
+            throw new IOException(peerId + " refused tree request: " + treeResponse.getValue());
+        }
+        MerkleTree remote = MerkleTree.fromBytes(TREE_DEPTH, treeResponse.getValueBytes());
+        MerkleTree local = buildTree(peerId);
+
+        List<Integer> leaves = local.diff(remote);
+        if (leaves.isEmpty()) {
+            return new SyncResult(0, 0, 0, 0);
+        }
+
+        byte[] bitmap = new byte[(local.leafCount() + 7) / 8];
+        for (int leaf : leaves) {
+            bitmap[leaf >>> 3] |= (byte) (1 << (leaf & 7));
+        }
+
+        long[] counts = new long[3]; // received, applied, bytes
+        Message rangeRequest = new Message(Message.MessageType.SYNC_RANGE, String.valueOf(TREE_DEPTH).getBytes(StandardCharsets.UTF_8),
+                bitmap, nodeId, 0L);
+        // Chunks are applied on the connection's reader thread, which also paces the sender
+        Message last = NodeClient.getPool().stream(host, port, rangeRequest, SYNC_TIMEOUT_MS, chunk -> apply(chunk, counts));
+        apply(last, counts);
+        return new SyncResult(leaves.size(), counts[0], counts[1], counts[2]);
+    }
+
+    private void apply(Message chunk, long[] counts) {
+        counts[2] += chunk.getValueBytes().length;
+        try {
+            KeyValueBatch.decode(chunk.getValueBytes(), (k, v) -> {
+                counts[0]++;
+                String key = new String(k, StandardCharsets.UTF_8);
+                if (versioned.apply(key, new String(v, StandardCharsets.UTF_8))) {
+                    counts[1]++;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to apply sync chunk: " + e.getMessage(), e);
+        }
+    }
+
+    void serveTree(Message request, ResponseSink sink) throws IOException {
+        int depth = Integer.parseInt(request.getKey());
+        if (depth != TREE_DEPTH) {
+            sink.send(new Message(Message.MessageType.RESPONSE, "ERROR", "Unsupported tree depth " + depth, nodeId));
+            return;
+        }
+        MerkleTree tree = buildTree(request.getSource());
+        sink.send(new Message(Message.MessageType.RESPONSE, String.valueOf(depth).getBytes(StandardCharsets.UTF_8),
+                tree.toBytes(), nodeId, 0L));
+    }
+
+    void serveRange(Message request, ResponseSink sink) throws IOException {
+        int depth = Integer.parseInt(request.getKey());
+        byte[] bitmap = request.getValueBytes();
+        String peerId = request.getSource();
+        MerkleTree shape = new MerkleTree(depth);
+
+        // Leaves and partitions both split the uniform token by its top bits
+        boolean[] wanted = new boolean[store.partitions()];
+        for (int leaf = 0; leaf < shape.leafCount() && leaf < bitmap.length * 8; leaf++) {
+            if ((bitmap[leaf >>> 3] & (1 << (leaf & 7))) == 0) continue;
+            long first = (long) leaf << (64 - depth);
+            for (int p = store.partitionFor(first); p <= store.partitionFor(first + (-1L >>> depth)); p++) wanted[p] = true;
+        }
+
+        KeyValueBatch batch = new KeyValueBatch();
+        for (int p = 0; p < wanted.length; p++) {
+            if (!wanted[p]) continue;
+            try (StorageSnapshot entries = store.snapshot(p)) {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> e = entries.next();
+                    int leaf = shape.leafFor(HashUtil.uniformToken(e.getKey()));
+                    if ((bitmap[leaf >>> 3] & (1 << (leaf & 7))) == 0 || !shared(e.getKey(), peerId)) continue;
+
+                    batch.add(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue().getBytes(StandardCharsets.UTF_8));
+                    if (batch.count() >= CHUNK_ENTRIES || batch.byteSize() >= CHUNK_BYTES) {
+                        sink.send(chunk(batch).asPartial());
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        sink.send(chunk(batch));
+    }
+
+    private Message chunk(KeyValueBatch batch) {
+        return new Message(Message.MessageType.RESPONSE, null, batch.toByteArray(), nodeId, 0L);
+    }
+
+    // Covers only keys both nodes are supposed to hold, so the two trees are comparable
+    private MerkleTree buildTree(String peerId) throws IOException {
+        MerkleTree tree = new MerkleTree(TREE_DEPTH);
+        ReentrantLock merging = new ReentrantLock();
+        store.forEachPartition(p -> {
+            MerkleTree part = new MerkleTree(TREE_DEPTH);
+            try (StorageSnapshot entries = store.snapshot(p)) {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> e = entries.next();
+                    if (!shared(e.getKey(), peerId)) continue;
+                    part.add(HashUtil.uniformToken(e.getKey()), e.getKey().getBytes(StandardCharsets.UTF_8),
+                            e.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            merging.lock();
+            try {
+                tree.merge(part);
+            } finally {
+                merging.unlock();
+            }
+        });
+        return tree;
+    }
+
+    private boolean shared(String key, String peerId) {
+        List<String> owners = ring.getNNodesForKey(key, replicationFactor);
+        return owners.contains(nodeId) && owners.contains(peerId);
+    }
+}
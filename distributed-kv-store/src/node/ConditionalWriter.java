@@ -0,0 +1,149 @@
+package node;
+
+import core.Compression;
+import core.RingManager;
+import core.Versioned;
+import metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// CAS, PUT_IF_ABSENT and INCREMENT: read-modify-write done on the server in one client round
+// trip. Every conditional write for a key runs on its primary, the first live node of the
+// key's preference list; any other node forwards it there. The primary holds a per-key
+// striped lock while it reads the current value, decides, and writes the result through the
+// normal quorum write, so concurrent updates of one key queue up on that lock instead of
+// racing and retrying from clients.
+//
+// The current value always comes from a quorum read under the lock, never the local copy
+// alone: while a primary was down a stand-in applied conditional writes through a quorum
+// that did not include it, and those only reach it later through hints or anti-entropy.
+// Conditional writes are atomic against each other; a plain PUT to the same key still
+// simply wins or loses by version.
+//
+// CAS compares versions, not values: the request carries the version its caller last read
+// (0 for "absent") and succeeds only if that is still the current one. A failed condition
+// answers CONFLICT with the current value and version, so the caller can retry without a GET.
+final class ConditionalWriter {
+
+    static final String CONFLICT = "CONFLICT";
+    private static final int STRIPES = 1024;
+
+    private final String nodeId;
+    private final RingManager ring;
+    private final int replicationFactor;
+    private final QuorumCoordinator coordinator;
+    private final Predicate<String> isAlive;
+    private final Function<String, InetSocketAddress> addressOf;
+    private final long timeoutMs;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final LongAdder conflicts;
+    private final LongAdder forwarded;
+
+    ConditionalWriter(String nodeId, RingManager ring, int replicationFactor,
+                      QuorumCoordinator coordinator, Predicate<String> isAlive,
+                      Function<String, InetSocketAddress> addressOf, long timeoutMs, MetricsRegistry metrics) {
+        this.nodeId = nodeId;
+        this.ring = ring;
+        this.replicationFactor = replicationFactor;
+        this.coordinator = coordinator;
+        this.isAlive = isAlive;
+        this.addressOf = addressOf;
+        this.timeoutMs = timeoutMs;
+        this.conflicts = metrics.counter("conditional_conflicts");
+        this.forwarded = metrics.counter("conditional_forwarded");
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    Message handle(Message request) {
+        List<String> replicas = ring.getNNodesForKey(request.getKey(), replicationFactor);
+        String primary = null;
+        for (String replica : replicas) {
+            if (replica.equals(nodeId) || isAlive.test(replica)) {
+                primary = replica;
+                break;
+            }
+        }
+        if (primary == null) {
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "UNAVAILABLE: no live replica", nodeId);
+        }
+        // A request a peer already forwarded runs here, even if our views of the ring differ
+        if (!primary.equals(nodeId) && ring.lookupNode(request.getSource()) == null) {
+            return forward(primary, request);
+        }
+
+        ReentrantLock lock = stripes[(request.getKey().hashCode() & 0x7FFFFFFF) % STRIPES];
+        lock.lock();
+        try {
+            Message read = coordinator.read(new Message(Message.MessageType.GET, request.getKey(), null, nodeId)
+                    .withConsistency(ConsistencyLevel.QUORUM));
+            if ("ERROR".equals(read.getKey())) return read;
+            Versioned current = QuorumCoordinator.NOT_FOUND.equals(read.getValue()) && read.getVersion() == 0
+                    ? null : new Versioned(read.getVersion(), read.getValue());
+            return apply(request, current);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message apply(Message request, Versioned current) {
+        String next;
+        switch (request.getType()) {
+            case CAS:
+                if ((current == null ? 0 : current.getVersion()) != request.getVersion()) return conflict(current);
+                next = request.getValue();
+                break;
+            case PUT_IF_ABSENT:
+                if (current != null) return conflict(current);
+                next = request.getValue();
+                break;
+            case INCREMENT:
+                try {
+                    long delta = request.getValue().isEmpty() ? 1 : Long.parseLong(request.getValue());
+                    next = Long.toString(Math.addExact(current == null ? 0 : Long.parseLong(current.getValue()), delta));
+                } catch (NumberFormatException | ArithmeticException e) {
+                    return new Message(Message.MessageType.RESPONSE, "ERROR", "Not a 64-bit counter: " + e.getMessage(), nodeId);
+                }
+                break;
+            default:
+                return new Message(Message.MessageType.RESPONSE, "ERROR", "Unsupported operation", nodeId);
+        }
+        String value = next;
+        Message response = coordinator.write(request, version -> QuorumCoordinator.stamp(request, version, value));
+        if ("ERROR".equals(response.getKey())) return response;
+        // Counters come back so the caller sees the result; a large CAS value is acked like a PUT
+        if (value.length() >= Compression.MIN_BYTES) {
+            return new Message(Message.MessageType.RESPONSE, request.getKeyBytes(), null, nodeId, 0L)
+                    .withVersion(response.getVersion());
+        }
+        return new Message(Message.MessageType.RESPONSE, request.getKey(), value, nodeId).withVersion(response.getVersion());
+    }
+
+    private Message conflict(Versioned current) {
+        conflicts.increment();
+        return current == null
+                ? new Message(Message.MessageType.RESPONSE, CONFLICT, QuorumCoordinator.NOT_FOUND, nodeId)
+                : new Message(Message.MessageType.RESPONSE, CONFLICT, current.getValue(), nodeId)
+                        .withVersion(current.getVersion());
+    }
+
+    // The client's consistency level, TTL and expected version travel with the request
+    private Message forward(String primary, Message request) {
+        forwarded.increment();
+        InetSocketAddress address = addressOf.apply(primary);
+        Message copy = new Message(request.getType(), request.getKeyBytes(), request.getValueBytes(), nodeId, 0L)
+                .withConsistency(request.getConsistency()).withTtl(request.getTtlMs())
+                .withVersion(request.getVersion()).withTraceId(request.getTraceId());
+        try {
+            return NodeClient.getPool().send(address.getHostString(), address.getPort(), copy, 2 * timeoutMs);
+        } catch (IOException e) {
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "Primary " + primary + " unreachable: "
+                    + e.getMessage(), nodeId);
+        }
+    }
+}
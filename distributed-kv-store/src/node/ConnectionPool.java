@@ -0,0 +1,220 @@
+package node;
+
+import core.Log;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Per-peer pool of multiplexed connections. Requests are spread over the least
+// loaded connection; idle connections are evicted and quiet ones are pinged.
+public class ConnectionPool {
+
+    // After a failed connect, callers with no connection to fall back on fail at once for this long
+    private static final long CONNECT_BACKOFF_MS = 1000;
+
+    private final int maxConnectionsPerPeer;
+    private final int maxInFlightPerConnection;
+    private final int connectTimeoutMs;
+    private final long idleTimeoutMs;
+    private final long healthCheckIntervalMs;
+
+    private final Map<String, List<PooledConnection>> peers = new ConcurrentHashMap<>();
+    // At most one connect + handshake per peer at a time, claimed with putIfAbsent and done
+    // outside any lock. Callers that already have a connection use it instead of waiting.
+    private final Map<String, CompletableFuture<PooledConnection>> connecting = new ConcurrentHashMap<>();
+    private final Map<String, Long> backoffUntilNanos = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final ScheduledExecutorService maintenance;
+
+    public ConnectionPool(int maxConnectionsPerPeer, int maxInFlightPerConnection, int connectTimeoutMs,
+                          long idleTimeoutMs, long healthCheckIntervalMs) {
+        this.maxConnectionsPerPeer = maxConnectionsPerPeer;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.healthCheckIntervalMs = healthCheckIntervalMs;
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMs, healthCheckIntervalMs) / 2);
+        maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<Message> sendAsync(String host, int port, Message message, long timeoutMs) {
+        return streamAsync(host, port, message, timeoutMs, null);
+    }
+
+    // For replies that come back as several partial frames followed by a final one
+    public CompletableFuture<Message> streamAsync(String host, int port, Message message, long timeoutMs,
+                                                  Consumer<Message> onPartial) {
+        Message request = message.withRequestId(requestIds.incrementAndGet());
+        PooledConnection connection;
+        try {
+            connection = acquire(host, port);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<Message> future = connection.stream(request, onPartial);
+        future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((resp, err) -> {
+            if (err instanceof TimeoutException) {
+                connection.abandon(request.getRequestId());
+            }
+        });
+        return future;
+    }
+
+    public Message send(String host, int port, Message message, long timeoutMs) throws IOException {
+        return await(sendAsync(host, port, message, timeoutMs), host, port, timeoutMs);
+    }
+
+    public Message stream(String host, int port, Message message, long timeoutMs, Consumer<Message> onPartial)
+            throws IOException {
+        return await(streamAsync(host, port, message, timeoutMs, onPartial), host, port, timeoutMs);
+    }
+
+    private static Message await(CompletableFuture<Message> future, String host, int port, long timeoutMs)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new IOException("Timed out after " + timeoutMs + "ms waiting for " + host + ":" + port);
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + host + ":" + port);
+        }
+    }
+
+    private PooledConnection acquire(String host, int port) throws IOException {
+        String peer = host + ":" + port;
+        List<PooledConnection> connections = peers.computeIfAbsent(peer, k -> new CopyOnWriteArrayList<>());
+
+        PooledConnection best = leastLoaded(connections);
+        if (best != null && (best.inFlight() < maxInFlightPerConnection || connections.size() >= maxConnectionsPerPeer)) {
+            return best;
+        }
+
+        Long backoffUntil = backoffUntilNanos.get(peer);
+        if (backoffUntil != null && System.nanoTime() - backoffUntil < 0) {
+            if (best != null) return best;
+            throw new ConnectException("Connect to " + peer + " failed recently, backing off");
+        }
+
+        CompletableFuture<PooledConnection> mine = new CompletableFuture<>();
+        CompletableFuture<PooledConnection> inProgress = connecting.putIfAbsent(peer, mine);
+        if (inProgress != null) {
+            return best != null ? best : awaitConnect(inProgress, peer);
+        }
+        try {
+            PooledConnection created = new PooledConnection(host, port, connectTimeoutMs);
+            backoffUntilNanos.remove(peer);
+            // A connect that started just as another finished can overshoot the limit; drop it
+            if (connections.size() >= maxConnectionsPerPeer) {
+                PooledConnection existing = leastLoaded(connections);
+                if (existing != null) {
+                    created.close();
+                    mine.complete(existing);
+                    return existing;
+                }
+            }
+            connections.add(created);
+            mine.complete(created);
+            return created;
+        } catch (IOException | RuntimeException e) {
+            backoffUntilNanos.put(peer, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_BACKOFF_MS));
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            connecting.remove(peer, mine);
+        }
+    }
+
+    private static PooledConnection awaitConnect(CompletableFuture<PooledConnection> future, String peer)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting to connect to " + peer);
+        }
+    }
+
+    private PooledConnection leastLoaded(List<PooledConnection> connections) {
+        PooledConnection best = null;
+        for (PooledConnection c : connections) {
+            if (!c.isOpen()) {
+                connections.remove(c);
+                continue;
+            }
+            if (best == null || c.inFlight() < best.inFlight()) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (List<PooledConnection> connections : peers.values()) {
+            for (PooledConnection c : connections) {
+                long idle = now - c.getLastUsed();
+                if (!c.isOpen() || (c.inFlight() == 0 && idle >= idleTimeoutMs)) {
+                    connections.remove(c);
+                    c.close();
+                } else if (c.inFlight() == 0 && idle >= healthCheckIntervalMs) {
+                    healthCheck(connections, c);
+                }
+            }
+        }
+    }
+
+    private void healthCheck(List<PooledConnection> connections, PooledConnection c) {
+        Message ping = new Message(Message.MessageType.PING, (String) null, null, "pool", requestIds.incrementAndGet());
+        c.send(ping)
+                .orTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((resp, err) -> {
+                    if (err != null) {
+                        Log.warn(null, "Health check failed for " + c.getPeer() + ", closing connection");
+                        c.abandon(ping.getRequestId());
+                        connections.remove(c);
+                        c.close();
+                    }
+                });
+    }
+
+    public int openConnections() {
+        int count = 0;
+        for (List<PooledConnection> connections : peers.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    public void closeAll() {
+        for (List<PooledConnection> connections : peers.values()) {
+            for (PooledConnection c : connections) {
+                c.close();
+            }
+            connections.clear();
+        }
+    }
+
+    public void shutdown() {
+        maintenance.shutdownNow();
+        closeAll();
+    }
+}
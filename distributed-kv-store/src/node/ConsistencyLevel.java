@@ -0,0 +1,25 @@
+package node;
+
+// How many of a key's N replicas must answer before a coordinator replies.
+// Sent on the wire by ordinal, so new levels must be appended at the end.
+public enum ConsistencyLevel {
+    ONE,
+    QUORUM,
+    ALL;
+
+    public int required(int replicas) {
+        switch (this) {
+            case ONE:
+                return Math.min(1, replicas);
+            case QUORUM:
+                return replicas / 2 + 1;
+            default:
+                return replicas;
+        }
+    }
+
+    public static ConsistencyLevel fromSystemProperty(String name, ConsistencyLevel fallback) {
+        String value = System.getProperty(name);
+        return value != null ? ConsistencyLevel.valueOf(value.toUpperCase()) : fallback;
+    }
+}
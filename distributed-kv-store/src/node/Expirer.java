@@ -0,0 +1,94 @@
+package node;
+
+import core.Log;
+import metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Reclaims expired values and old tombstones on a background thread. Every tick it takes
+// the keys that came due on the store's timing wheel and processes at most
+// kv.ttl.maxPerTick of them, carrying the rest over, so a mass expiry costs a bounded slice
+// of CPU per tick instead of a stall. Nothing depends on how soon this happens: readers
+// already treat an expired value as absent.
+final class Expirer {
+
+    private static final int MAX_PER_TICK = Integer.getInteger("kv.ttl.maxPerTick", 10_000);
+
+    private final String nodeId;
+    private final VersionedStore store;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<String> backlog = new ArrayDeque<>();
+    private final LongAdder expired;
+    private final LongAdder purged;
+    private volatile boolean running;
+    private Thread thread;
+
+    Expirer(String nodeId, VersionedStore store, MetricsRegistry metrics) {
+        this.nodeId = nodeId;
+        this.store = store;
+        this.expired = metrics.counter("expired_values");
+        this.purged = metrics.counter("purged_tombstones");
+        metrics.gauge("expiry_scheduled", () -> store.wheel().size());
+        metrics.gauge("expiry_backlog", this::backlog);
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this::run, "expirer-" + nodeId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    private int backlog() {
+        lock.lock();
+        try {
+            return backlog.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(VersionedStore.TICK_MS);
+                tick(System.currentTimeMillis());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error(nodeId, "Expiry failed", e);
+            }
+        }
+    }
+
+    private void tick(long now) throws IOException {
+        String[] batch;
+        lock.lock();
+        try {
+            store.wheel().advance(now, backlog);
+            batch = new String[Math.min(backlog.size(), MAX_PER_TICK)];
+            for (int i = 0; i < batch.length; i++) batch[i] = backlog.poll();
+        } finally {
+            lock.unlock();
+        }
+        for (String key : batch) {
+            switch (store.expire(key, now)) {
+                case EXPIRED:
+                    expired.increment();
+                    break;
+                case PURGED:
+                    purged.increment();
+                    break;
+                default:
+            }
+        }
+    }
+}
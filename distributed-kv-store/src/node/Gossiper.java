@@ -0,0 +1,391 @@
+package node;
+
+import core.Log;
+import core.Node;
+import core.PhiAccrualFailureDetector;
+import core.RingManager;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Membership and liveness by gossip. Every node owns one endpoint state: its address and ring
+// placement (virtual nodes, weight; tokens follow from those and the node id), a generation
+// fixed at start-up and a heartbeat it bumps once per round. Each round it sends every state
+// it knows to one random live peer, sometimes to an unreachable one (so a returning node is
+// noticed) and to a seed until it sees enough of the cluster. The peer keeps whichever copy
+// of each state is newer and answers with those of its own the sender is behind on.
+//
+// A newer heartbeat is a sign of life for the phi accrual failure detector; a node is
+// suspected once its phi crosses kv.gossip.phiThreshold. A node shutting down gracefully
+// announces it, so peers stop using it at once instead of waiting for phi to rise.
+//
+// The status also drives the ring: a NORMAL node is an owner, a JOINING one is added as
+// pending (it gets writes while it streams its ranges in), LEAVING marks an owner as going
+// away while it streams its ranges out, and LEFT takes it off the ring.
+final class Gossiper {
+
+    enum Status { NORMAL, SHUTDOWN, JOINING, LEAVING, LEFT }
+
+    static final long INTERVAL_MS = Long.getLong("kv.gossip.intervalMs", 1000);
+    private static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("kv.gossip.phiThreshold", "8"));
+
+    private final String nodeId;
+    private final RingManager ring;
+    private final List<InetSocketAddress> seeds;
+    private final ConnectionPool pool;
+    private final PhiAccrualFailureDetector detector =
+            new PhiAccrualFailureDetector(PHI_THRESHOLD, INTERVAL_MS, INTERVAL_MS / 2, INTERVAL_MS);
+    private final Map<String, EndpointState> endpoints = new ConcurrentHashMap<>();
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+    // Sends run here: connecting to a dead peer blocks, and must not hold up the round
+    private final ExecutorService sender = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile EndpointState self;
+    private volatile boolean running;
+    private Thread thread;
+
+    Gossiper(Node node, Status status, RingManager ring, List<InetSocketAddress> seeds, ConnectionPool pool) {
+        this.nodeId = node.getId();
+        this.ring = ring;
+        this.pool = pool;
+        this.self = new EndpointState(nodeId, node.getIp(), node.getPort(), node.getVirtualNodes(), node.getWeight(),
+                System.currentTimeMillis(), 0, status);
+        this.seeds = new ArrayList<>();
+        for (InetSocketAddress seed : seeds) {
+            if (!(seed.getHostString().equals(node.getIp()) && seed.getPort() == node.getPort())) this.seeds.add(seed);
+        }
+        endpoints.put(nodeId, self);
+    }
+
+    // host:port,host:port
+    static List<InetSocketAddress> parseSeeds(String text) {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        if (text == null) return seeds;
+        for (String seed : text.split(",")) {
+            seed = seed.trim();
+            if (seed.isEmpty()) continue;
+            int colon = seed.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("Seed must be host:port: " + seed);
+            seeds.add(InetSocketAddress.createUnresolved(seed.substring(0, colon), Integer.parseInt(seed.substring(colon + 1))));
+        }
+        return seeds;
+    }
+
+    void start() {
+        // Peers already on the ring get one heartbeat of credit; one that never answers is
+        // suspected after a few rounds rather than trusted forever
+        for (String peer : ring.getNodeIds()) {
+            if (!peer.equals(nodeId)) detector.heartbeat(peer);
+        }
+        running = true;
+        thread = Thread.ofVirtual().name("gossip-" + nodeId).start(this::run);
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+        sender.shutdownNow();
+    }
+
+    // Tells every live peer we are leaving, waiting at most one round for them to hear it
+    void announceShutdown() {
+        announce(Status.SHUTDOWN);
+        stop();
+    }
+
+    // Changes our status and pushes it to every live peer instead of waiting for it to spread
+    void announce(Status status) {
+        self = self.next(status);
+        endpoints.put(nodeId, self);
+        Message gossip = gossipMessage();
+        List<CompletableFuture<Message>> sent = new ArrayList<>();
+        for (String peer : peers()) {
+            EndpointState state = endpoints.get(peer);
+            if (state != null && isAlive(peer)) sent.add(pool.sendAsync(state.host, state.port, gossip, INTERVAL_MS));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INTERVAL_MS);
+        for (CompletableFuture<Message> f : sent) {
+            try {
+                f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // gossip will get it there
+            }
+        }
+    }
+
+    Status status(String node) {
+        EndpointState state = endpoints.get(node);
+        return state != null ? state.status : null;
+    }
+
+    boolean isAlive(String node) {
+        if (node.equals(nodeId)) return true;
+        EndpointState state = endpoints.get(node);
+        if (state != null && (state.status == Status.SHUTDOWN || state.status == Status.LEFT)) return false;
+        return detector.isAvailable(node);
+    }
+
+    double phi(String node) {
+        return node.equals(nodeId) ? 0 : detector.phi(node);
+    }
+
+    int liveCount() {
+        int live = 0;
+        for (String node : peers()) {
+            if (isAlive(node)) live++;
+        }
+        return live + 1;
+    }
+
+    int downCount() {
+        return down.size();
+    }
+
+    // GOSSIP from a peer: take what is newer, answer with what the peer is behind on
+    Message receive(Message message) {
+        Map<String, EndpointState> remote = decode(message.getValue());
+        for (EndpointState state : remote.values()) apply(state);
+        StringBuilder reply = new StringBuilder();
+        for (EndpointState local : endpoints.values()) {
+            EndpointState theirs = remote.get(local.id);
+            if (theirs == null || local.isNewerThan(theirs)) local.encode(reply);
+        }
+        return new Message(Message.MessageType.RESPONSE, "GOSSIP", reply.toString(), nodeId);
+    }
+
+    // MEMBERSHIP: this node's view, one "id host port UP|DOWN phi status" line per node
+    String describe() {
+        Set<String> nodes = new TreeSet<>(peers());
+        nodes.add(nodeId);
+        StringBuilder sb = new StringBuilder();
+        for (String node : nodes) {
+            EndpointState state = endpoints.get(node);
+            Node known = ring.getNode(node);
+            if (state == null && known == null) continue;
+            sb.append(node).append(' ')
+                    .append(state != null ? state.host : known.getIp()).append(' ')
+                    .append(state != null ? state.port : known.getPort()).append(' ')
+                    .append(isAlive(node) ? "UP" : "DOWN")
+                    .append(String.format(Locale.ROOT, " %.2f", Math.min(phi(node), 99.99))).append(' ')
+                    .append(state != null ? state.status : Status.NORMAL).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                round();
+            } catch (RuntimeException e) {
+                Log.error(nodeId, "Gossip round failed", e);
+            }
+        }
+    }
+
+    private void round() {
+        self = self.next(self.status);
+        endpoints.put(nodeId, self);
+
+        List<String> live = new ArrayList<>();
+        List<String> unreachable = new ArrayList<>();
+        for (String peer : peers()) {
+            if (!endpoints.containsKey(peer)) continue; // on the ring but never heard of: only a seed can help
+            (isAlive(peer) ? live : unreachable).add(peer);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Message gossip = gossipMessage();
+
+        boolean toSeed = false;
+        if (!live.isEmpty()) {
+            EndpointState peer = endpoints.get(live.get(random.nextInt(live.size())));
+            send(peer.host, peer.port, gossip);
+            toSeed = isSeed(peer);
+        }
+        if (!unreachable.isEmpty() && random.nextDouble() < unreachable.size() / (double) (live.size() + 1)) {
+            EndpointState peer = endpoints.get(unreachable.get(random.nextInt(unreachable.size())));
+            send(peer.host, peer.port, gossip);
+        }
+        if (!seeds.isEmpty() && (!toSeed || live.size() < seeds.size())) {
+            if (live.isEmpty() || random.nextDouble() < seeds.size() / (double) (live.size() + unreachable.size())) {
+                InetSocketAddress seed = seeds.get(random.nextInt(seeds.size()));
+                send(seed.getHostString(), seed.getPort(), gossip);
+            }
+        }
+        checkLiveness();
+    }
+
+    private void send(String host, int port, Message gossip) {
+        try {
+            sender.execute(() -> pool.sendAsync(host, port, gossip, INTERVAL_MS).thenAccept(reply -> {
+                for (EndpointState state : decode(reply.getValue()).values()) apply(state);
+            }));
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    private Message gossipMessage() {
+        StringBuilder sb = new StringBuilder();
+        for (EndpointState state : endpoints.values()) state.encode(sb);
+        return new Message(Message.MessageType.GOSSIP, null, sb.toString(), nodeId);
+    }
+
+    private void apply(EndpointState remote) {
+        if (remote.id.equals(nodeId)) return; // nobody knows better than we do
+        EndpointState[] previous = new EndpointState[1];
+        EndpointState current = endpoints.compute(remote.id, (id, local) -> {
+            previous[0] = local;
+            return local == null || remote.isNewerThan(local) ? remote : local;
+        });
+        if (current != remote) return;
+
+        EndpointState old = previous[0];
+        if (old != null && old.generation != remote.generation) {
+            detector.remove(remote.id); // restarted: the old rhythm says nothing about the new process
+            Log.info(nodeId, remote.id + " restarted");
+        } else if (old == null) {
+            Log.info(nodeId, "Discovered " + remote.id + " at " + remote.host + ":" + remote.port);
+        }
+        detector.heartbeat(remote.id);
+
+        updateRing(remote);
+        if ((remote.status == Status.SHUTDOWN || remote.status == Status.LEFT)
+                && (old == null || old.status != remote.status)) {
+            checkLiveness();
+        }
+    }
+
+    private void updateRing(EndpointState remote) {
+        Node known = ring.getNode(remote.id);
+        switch (remote.status) {
+            case JOINING:
+                if (known == null) ring.addJoiningNode(remote.toNode());
+                break;
+            case LEAVING:
+                if (known != null) ring.markLeaving(remote.id);
+                break;
+            case LEFT:
+                ring.removeNode(remote.id);
+                break;
+            default:
+                // NORMAL, or SHUTDOWN (down, but still an owner)
+                if (known == null || !known.getIp().equals(remote.host) || known.getPort() != remote.port
+                        || known.getVirtualNodes() != remote.virtualNodes || known.getWeight() != remote.weight) {
+                    ring.addNode(remote.toNode());
+                }
+        }
+    }
+
+    private void checkLiveness() {
+        for (String peer : peers()) {
+            boolean alive = isAlive(peer);
+            if (!alive && down.add(peer)) {
+                EndpointState state = endpoints.get(peer);
+                Log.warn(nodeId, peer + " is DOWN" + (state != null && state.status == Status.SHUTDOWN
+                        ? " (shut down)" : String.format(Locale.ROOT, " (phi %.1f)", detector.phi(peer))));
+            } else if (alive && down.remove(peer)) {
+                Log.info(nodeId, peer + " is UP");
+            }
+        }
+    }
+
+    // Everyone we have heard of or find on the ring, except ourselves and nodes that left
+    private Set<String> peers() {
+        Set<String> peers = new LinkedHashSet<>(ring.getNodeIds());
+        for (EndpointState state : endpoints.values()) {
+            if (state.status != Status.LEFT) peers.add(state.id);
+            else peers.remove(state.id);
+        }
+        peers.remove(nodeId);
+        return peers;
+    }
+
+    private boolean isSeed(EndpointState state) {
+        for (InetSocketAddress seed : seeds) {
+            if (seed.getHostString().equals(state.host) && seed.getPort() == state.port) return true;
+        }
+        return false;
+    }
+
+    private static Map<String, EndpointState> decode(String text) {
+        Map<String, EndpointState> states = new HashMap<>();
+        if (text == null) return states;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            EndpointState state = EndpointState.decode(line);
+            states.put(state.id, state);
+        }
+        return states;
+    }
+
+    // One line of a GOSSIP message: id host port virtualNodes weight generation heartbeat status
+    private static final class EndpointState {
+        final String id;
+        final String host;
+        final int port;
+        final int virtualNodes;
+        final double weight;
+        final long generation;
+        final long heartbeat;
+        final Status status;
+
+        EndpointState(String id, String host, int port, int virtualNodes, double weight, long generation,
+                      long heartbeat, Status status) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.virtualNodes = virtualNodes;
+            this.weight = weight;
+            this.generation = generation;
+            this.heartbeat = heartbeat;
+            this.status = status;
+        }
+
+        EndpointState next(Status status) {
+            return new EndpointState(id, host, port, virtualNodes, weight, generation, heartbeat + 1, status);
+        }
+
+        boolean isNewerThan(EndpointState other) {
+            return generation != other.generation ? generation > other.generation : heartbeat > other.heartbeat;
+        }
+
+        Node toNode() {
+            return new Node(id, host, port, virtualNodes, weight);
+        }
+
+        void encode(StringBuilder sb) {
+            sb.append(id).append(' ').append(host).append(' ').append(port).append(' ')
+                    .append(virtualNodes).append(' ').append(weight).append(' ')
+                    .append(generation).append(' ').append(heartbeat).append(' ').append(status).append('\n');
+        }
+
+        static EndpointState decode(String line) {
+            String[] f = line.split(" ");
+            if (f.length != 8) throw new IllegalArgumentException("Malformed gossip line: " + line);
+            return new EndpointState(f[0], f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                    Double.parseDouble(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]), Status.valueOf(f[7]));
+        }
+    }
+}
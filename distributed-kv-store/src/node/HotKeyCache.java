@@ -0,0 +1,321 @@
+package node;
+
+import core.Versioned;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Coordinator-side read cache, bounded by bytes, with W-TinyLFU admission and eviction.
+//
+// New entries go into a small LRU window (1% of the budget). What falls out of the window
+// competes with the least recently used entry of the main space: a count-min sketch of
+// recent access frequencies decides which of the two is kept, so a burst of one-off keys
+// cannot push out the hot set. The main space is a segmented LRU: entries hit again while
+// on probation move to the protected segment (80% of the main space).
+//
+// Entries expire after ttlMs, which bounds how stale a value written through another
+// coordinator can be; QuorumCoordinator therefore only admits keys this node does not
+// replicate and only answers ONE reads from here. Writes through this node refresh the
+// entry they touch.
+// Lookups go through a concurrent map; policy bookkeeping takes one lock and is skipped,
+// not waited for, on reads when that lock is busy.
+public class HotKeyCache {
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+    private static final int ENTRY_OVERHEAD = 96; // map node, entry object and list links
+    private static final int ESTIMATED_ENTRY_BYTES = 256;
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final long maxProtectedBytes;
+    private final long ttlNanos;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    // Sentinel-headed circular lists, least recently used first
+    private final Entry[] queues = {new Entry(), new Entry(), new Entry()};
+    private final long[] queueBytes = new long[3];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public HotKeyCache(long maxBytes, long ttlMs) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be > 0");
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = Math.max(1, maxBytes / 100);
+        this.maxProtectedBytes = (maxBytes - maxWindowBytes) * 8 / 10;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / ESTIMATED_ENTRY_BYTES)));
+        for (Entry sentinel : queues) sentinel.prev = sentinel.next = sentinel;
+    }
+
+    // kv.cache.bytes (0, the default, disables the cache) and kv.cache.ttlMs
+    public static HotKeyCache fromSystemProperties() {
+        long bytes = Long.getLong("kv.cache.bytes", 0);
+        return bytes > 0 ? new HotKeyCache(bytes, Long.getLong("kv.cache.ttlMs", 1000)) : null;
+    }
+
+    // null on a miss or when the entry has expired
+    public Versioned get(String key) {
+        Entry e = entries.get(key);
+        boolean hit = e != null && System.nanoTime() - e.loadedAt < ttlNanos;
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                if (hit && e.queue >= 0) onHit(e);
+                else if (e != null && !hit) remove(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!hit) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.value;
+    }
+
+    // Read-through fill and write-through update; an older version never replaces a newer one
+    public void put(String key, Versioned value) {
+        int weight = weigh(key, value);
+        if (weight > maxBytes / 10) { // too big to be worth the space; just make sure nothing stale stays behind
+            invalidate(key);
+            return;
+        }
+        lock.lock();
+        try {
+            Entry e = entries.get(key);
+            if (e != null) {
+                if (e.value.isNewerThan(value)) return;
+                queueBytes[e.queue] += weight - e.weight;
+                e.value = value;
+                e.weight = weight;
+                e.loadedAt = System.nanoTime();
+                onHit(e);
+            } else {
+                e = new Entry();
+                e.key = key;
+                e.value = value;
+                e.weight = weight;
+                e.loadedAt = System.nanoTime();
+                entries.put(key, e);
+                link(e, WINDOW);
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Refreshes an entry that is already cached, e.g. when a replica write lands on this node;
+    // unlike put it does not add keys, so replication traffic cannot pollute the cache
+    public void refresh(String key, Versioned value) {
+        if (entries.containsKey(key)) put(key, value);
+    }
+
+    public void invalidate(String key) {
+        lock.lock();
+        try {
+            Entry e = entries.get(key);
+            if (e != null) remove(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double hitRatio() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long weightedBytes() {
+        lock.lock();
+        try {
+            return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HotKeyCache{entries=" + size() + ", bytes=" + weightedBytes() + "/" + maxBytes + ", hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + String.format(", hitRatio=%.3f}", hitRatio());
+    }
+
+    private static int weigh(String key, Versioned value) {
+        return ENTRY_OVERHEAD + 2 * (key.length() + value.storedLength());
+    }
+
+    private void onHit(Entry e) {
+        if (e.queue == PROBATION) {
+            unlink(e);
+            link(e, PROTECTED);
+            // Keep the protected segment within its share by demoting its oldest entries
+            while (queueBytes[PROTECTED] > maxProtectedBytes) {
+                Entry demoted = queues[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            int queue = e.queue;
+            unlink(e);
+            link(e, queue);
+        }
+    }
+
+    private void evict() {
+        // Window overflow moves to probation, where it has to beat the main space's LRU entry
+        while (queueBytes[WINDOW] > maxWindowBytes) {
+            Entry candidate = queues[WINDOW].next;
+            unlink(candidate);
+            link(candidate, PROBATION);
+        }
+        while (total() > maxBytes) {
+            Entry victim = queues[PROBATION].next;
+            Entry candidate = queues[PROBATION].prev;
+            if (victim == queues[PROBATION]) {
+                // Probation is empty: fall back to the oldest protected, then window entry
+                victim = queues[PROTECTED].next != queues[PROTECTED] ? queues[PROTECTED].next : queues[WINDOW].next;
+                evict(victim);
+                continue;
+            }
+            if (victim == candidate || sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        }
+    }
+
+    private long total() {
+        return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+    }
+
+    private void evict(Entry e) {
+        remove(e);
+        evictions.incrementAndGet();
+    }
+
+    private void remove(Entry e) {
+        if (e.queue < 0) return;
+        unlink(e);
+        entries.remove(e.key, e);
+    }
+
+    private void link(Entry e, int queue) {
+        Entry sentinel = queues[queue];
+        e.prev = sentinel.prev;
+        e.next = sentinel;
+        sentinel.prev.next = e;
+        sentinel.prev = e;
+        e.queue = queue;
+        queueBytes[queue] += e.weight;
+    }
+
+    private void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = null;
+        queueBytes[e.queue] -= e.weight;
+        e.queue = -1;
+    }
+
+    private static final class Entry {
+        String key;
+        volatile Versioned value;
+        volatile long loadedAt;
+        int weight;
+        int queue = -1;
+        Entry prev;
+        Entry next;
+    }
+
+    // Count-min sketch of 4-bit counters, four rows packed sixteen to a long. Counters are
+    // halved once the number of increments reaches ten times the table width, so frequencies
+    // describe recent traffic rather than all of history.
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            table = new long[width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = 15;
+            for (int row = 0; row < 4; row++) {
+                min = Math.min(min, counter(hash, row));
+            }
+            return min;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int index = index(hash, row);
+                int shift = nibble(hash, row) << 2;
+                if (((table[index] >>> shift) & 0xF) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & RESET_MASK;
+                additions /= 2;
+            }
+        }
+
+        private int counter(int hash, int row) {
+            return (int) ((table[index(hash, row)] >>> (nibble(hash, row) << 2)) & 0xF);
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return (int) (h >>> 32) & mask;
+        }
+
+        // Which of the sixteen counters in the slot belongs to this row
+        private static int nibble(int hash, int row) {
+            return ((hash >>> (row << 3)) & 3) + (row << 2);
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
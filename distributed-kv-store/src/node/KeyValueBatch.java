@@ -0,0 +1,78 @@
+package node;
+
+import java.io.IOException;
+
+// Packs many key/value pairs into one Message value as
+// [varint keyLen][key][varint valueLen][value]...; keys and values are raw bytes, so
+// no separator character can break it.
+public class KeyValueBatch {
+
+    public interface Visitor {
+        void visit(byte[] key, byte[] value) throws IOException;
+    }
+
+    private byte[] buf = new byte[256];
+    private int size;
+    private int count;
+
+    public void add(byte[] key, byte[] value) {
+        ensure(10 + key.length + 10 + value.length);
+        size = MessageCodec.putVarLong(buf, size, key.length);
+        System.arraycopy(key, 0, buf, size, key.length);
+        size += key.length;
+        size = MessageCodec.putVarLong(buf, size, value.length);
+        System.arraycopy(value, 0, buf, size, value.length);
+        size += value.length;
+        count++;
+    }
+
+    // Appends entries already in batch form, e.g. another batch's toByteArray()
+    public void addEncoded(byte[] entries, int entryCount) {
+        ensure(entries.length);
+        System.arraycopy(entries, 0, buf, size, entries.length);
+        size += entries.length;
+        count += entryCount;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int byteSize() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public byte[] toByteArray() {
+        byte[] out = new byte[size];
+        System.arraycopy(buf, 0, out, 0, size);
+        return out;
+    }
+
+    public void clear() {
+        size = 0;
+        count = 0;
+    }
+
+    public static int decode(byte[] data, Visitor visitor) throws IOException {
+        MessageCodec.Reader r = new MessageCodec.Reader(data, 0, data.length);
+        int decoded = 0;
+        while (r.hasRemaining()) {
+            byte[] key = r.bytes();
+            byte[] value = r.bytes();
+            visitor.visit(key, value);
+            decoded++;
+        }
+        return decoded;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra <= buf.length) return;
+        byte[] bigger = new byte[Math.max(buf.length * 2, size + extra)];
+        System.arraycopy(buf, 0, bigger, 0, size);
+        buf = bigger;
+    }
+}
@@ -0,0 +1,42 @@
+package node;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Rolling percentile over the most recent samples. Recording is a couple of atomic
+// writes; the sort happens on every RECOMPUTE_EVERY-th sample, not on the read path.
+class LatencyTracker {
+
+    private static final int SAMPLES = 1024;
+    private static final int RECOMPUTE_EVERY = 128;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong recorded = new AtomicLong();
+    private final long floorNanos;
+    private volatile long p99Nanos;
+
+    LatencyTracker(long initialNanos, long floorNanos) {
+        this.p99Nanos = initialNanos;
+        this.floorNanos = floorNanos;
+    }
+
+    void record(long nanos) {
+        long n = recorded.getAndIncrement();
+        samples.set((int) (n % SAMPLES), nanos);
+        if (n >= RECOMPUTE_EVERY && n % RECOMPUTE_EVERY == 0) {
+            recompute((int) Math.min(n + 1, SAMPLES));
+        }
+    }
+
+    long p99Nanos() {
+        return p99Nanos;
+    }
+
+    private void recompute(int count) {
+        long[] copy = new long[count];
+        for (int i = 0; i < count; i++) copy[i] = samples.get(i);
+        Arrays.sort(copy);
+        p99Nanos = Math.max(floorNanos, copy[(int) Math.ceil(count * 0.99) - 1]);
+    }
+}
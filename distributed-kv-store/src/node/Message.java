@@ -1,27 +1,143 @@
 package node;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 public class Message implements Serializable {
 
+    // The binary codec tags messages by ordinal, so new types must be appended at the end
     public enum MessageType {
         RECOVERY,
         SHUTDOWN,
         PUT,
         GET,
-        RESPONSE
+        RESPONSE,
+        PING,
+        MERKLE_TREE,
+        SYNC_RANGE,
+        // Coordinator -> replica: apply/read locally, never fan out again
+        REPLICA_PUT,
+        REPLICA_GET,
+        // Asks a node for the ring it routes by; also sent back (as a response) when a
+        // routed request reached a node that holds no replica of the key
+        TOPOLOGY,
+        REDIRECT,
+        // Value is a KeyValueBatch; MULTI_GET carries keys with empty values and is
+        // answered with the pairs that were found
+        MULTI_PUT,
+        MULTI_GET,
+        REPLICA_MULTI_PUT,
+        REPLICA_MULTI_GET,
+        // Range read; key is the start key, value a KeyValueBatch of parameters (see ScanRequest).
+        // SCAN is answered in pages of partial frames; the final frame's key is the resume token.
+        SCAN,
+        REPLICA_SCAN,
+        // Node -> node: endpoint states, one per line (see Gossiper); answered with the newer ones.
+        // MEMBERSHIP asks a node which members it knows and which of them it considers alive.
+        GOSSIP,
+        MEMBERSHIP,
+        // Joining node -> current replica: value lists "start end" token ranges (unsigned, start
+        // exclusive), answered with the entries in them as KeyValueBatch partial frames.
+        // DECOMMISSION asks a node to hand its ranges to their new owners and leave the ring.
+        STREAM_RANGE,
+        DECOMMISSION,
+        // Writes a tombstone through the same quorum and replication path as PUT
+        DELETE,
+        // Conditional writes, applied by the key's primary (see ConditionalWriter). CAS carries
+        // the expected version in the version header; INCREMENT's value is the delta (default 1).
+        // A failed condition is answered with key CONFLICT and the current value and version.
+        CAS,
+        PUT_IF_ABSENT,
+        INCREMENT
     }
 
+    // Java serialization keeps the original layout (four String-valued fields under the
+    // original class's serialVersionUID) so clients built before the binary protocol can still
+    // talk to the VIRTUAL_THREADS engine. Header fields are not part of it and do not survive.
+    private static final long serialVersionUID = -6323395693977284883L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("type", MessageType.class),
+            new ObjectStreamField("key", String.class),
+            new ObjectStreamField("value", String.class),
+            new ObjectStreamField("source", String.class)
+    };
+
+    private static final byte[] EMPTY = new byte[0];
+    // Traces and debug logs show only the start of a large value
+    private static final int TO_STRING_VALUE_BYTES = 256;
+
     private final MessageType type;
-    private final String key;
-    private final String value;
+    private final byte[] key;
+    private final byte[] value;
     private final String source;
 
+    // Optional header fields. Only ever set on a fresh copy by the with* methods below,
+    // so a Message is still effectively immutable once it has been handed to anyone.
+    private long requestId;
+    // Set on every response frame of a streamed reply except the last one
+    private boolean partial;
+    // Requested by the client on PUT/GET; null means the coordinator's default
+    private ConsistencyLevel consistency;
+    // The sender hashed the key itself and expects this node to hold a replica
+    private boolean routed;
+    // Hybrid-clock timestamp of the value carried (PUT/GET responses, REPLICA_PUT, REPLICA_GET
+    // responses); 0 when the value has none
+    private long version;
+    // Non-zero on a sampled request; nodes log each step of a traced request under this id
+    private long traceId;
+    // Lifetime requested on a PUT or MULTI_PUT; 0 means the value never expires
+    private long ttlMs;
+
+    // Decoded lazily so byte[] keys and values never have to become Strings unless asked
+    private transient String keyText;
+    private transient String valueText;
+    // Set only on the placeholder instance readObject fills in; readResolve hands this out instead
+    private transient Message resolved;
+
     public Message(MessageType type, String key, String value, String source) {
+        this(type, key, value, source, 0L);
+    }
+
+    public Message(MessageType type, String key, String value, String source, long requestId) {
+        this(type, utf8(key), utf8(value), source, requestId);
+        this.keyText = (key != null) ? key : "";
+        this.valueText = (value != null) ? value : "";
+    }
+
+    public Message(MessageType type, byte[] key, byte[] value, String source, long requestId) {
         this.type = type;
-        this.key = (key != null) ? key : "";
-        this.value = (value != null) ? value : "";
+        this.key = (key != null) ? key : EMPTY;
+        this.value = (value != null) ? value : EMPTY;
         this.source = (source != null) ? source : "";
+        this.requestId = requestId;
+    }
+
+    private Message(Message other) {
+        this(other, other.value);
+        this.valueText = other.valueText;
+    }
+
+    private Message(Message other, byte[] value) {
+        this.type = other.type;
+        this.key = other.key;
+        this.value = value;
+        this.source = other.source;
+        this.requestId = other.requestId;
+        this.partial = other.partial;
+        this.consistency = other.consistency;
+        this.routed = other.routed;
+        this.version = other.version;
+        this.traceId = other.traceId;
+        this.ttlMs = other.ttlMs;
+        this.keyText = other.keyText;
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null || s.isEmpty()) ? EMPTY : s.getBytes(StandardCharsets.UTF_8);
     }
 
     public MessageType getType() {
@@ -29,10 +145,29 @@ public class Message implements Serializable {
     }
 
     public String getKey() {
-        return key;
+        String text = keyText;
+        if (text == null) {
+            text = new String(key, StandardCharsets.UTF_8);
+            keyText = text;
+        }
+        return text;
     }
 
     public String getValue() {
+        String text = valueText;
+        if (text == null) {
+            text = new String(value, StandardCharsets.UTF_8);
+            valueText = text;
+        }
+        return text;
+    }
+
+    // Raw UTF-8 bytes; shared with the message, so callers must not modify them
+    public byte[] getKeyBytes() {
+        return key;
+    }
+
+    public byte[] getValueBytes() {
         return value;
     }
 
@@ -40,8 +175,133 @@ public class Message implements Serializable {
         return source;
     }
 
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public ConsistencyLevel getConsistency() {
+        return consistency;
+    }
+
+    public boolean isRouted() {
+        return routed;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public long getTtlMs() {
+        return ttlMs;
+    }
+
+    public boolean isTraced() {
+        return traceId != 0;
+    }
+
+    // Responses echo the request id so a multiplexed connection can match them out of order
+    public Message withRequestId(long requestId) {
+        Message copy = new Message(this);
+        copy.requestId = requestId;
+        return copy;
+    }
+
+    // Same headers around a different value; used to split and rejoin chunked values
+    Message withValueBytes(byte[] value) {
+        return new Message(this, value);
+    }
+
+    public Message asPartial() {
+        Message copy = new Message(this);
+        copy.partial = true;
+        return copy;
+    }
+
+    public Message withConsistency(ConsistencyLevel consistency) {
+        Message copy = new Message(this);
+        copy.consistency = consistency;
+        return copy;
+    }
+
+    public Message asRouted() {
+        Message copy = new Message(this);
+        copy.routed = true;
+        return copy;
+    }
+
+    public Message withVersion(long version) {
+        Message copy = new Message(this);
+        copy.version = version;
+        return copy;
+    }
+
+    public Message withTraceId(long traceId) {
+        Message copy = new Message(this);
+        copy.traceId = traceId;
+        return copy;
+    }
+
+    public Message withTtl(long ttlMs) {
+        Message copy = new Message(this);
+        copy.ttlMs = ttlMs;
+        return copy;
+    }
+
+    public boolean isBatch() {
+        return type == MessageType.MULTI_PUT || type == MessageType.MULTI_GET
+                || type == MessageType.REPLICA_MULTI_PUT || type == MessageType.REPLICA_MULTI_GET
+                || type == MessageType.SCAN || type == MessageType.REPLICA_SCAN;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("type", type);
+        fields.put("key", getKey());
+        fields.put("value", getValue());
+        fields.put("source", source);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        resolved = new Message((MessageType) fields.get("type", null), (String) fields.get("key", null),
+                (String) fields.get("value", null), (String) fields.get("source", null));
+    }
+
+    private Object readResolve() {
+        return resolved;
+    }
+
+    // Coordinated client requests, replica batches that may wait for their turn in a
+    // replication stream, and paced range transfers: none of these should hold a bounded worker
+    public boolean waitsOnPeers() {
+        switch (type) {
+            case PUT: case GET: case DELETE: case MULTI_PUT: case MULTI_GET: case SCAN:
+            case CAS: case PUT_IF_ABSENT: case INCREMENT:
+            case REPLICA_MULTI_PUT: case STREAM_RANGE: case SYNC_RANGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     @Override
     public String toString() {
-        return "[" + type + "] From: " + source + ", Key: " + key + ", Value: " + value;
+        if (isBatch()) {
+            return "[" + type + "] From: " + source + ", " + value.length + " bytes";
+        }
+        if (value.length > TO_STRING_VALUE_BYTES) {
+            return "[" + type + "] From: " + source + ", Key: " + getKey() + ", Value: "
+                    + new String(value, 0, TO_STRING_VALUE_BYTES, StandardCharsets.UTF_8) + "... (" + value.length + " bytes)";
+        }
+        return "[" + type + "] From: " + source + ", Key: " + getKey() + ", Value: " + getValue();
     }
 }
@@ -0,0 +1,470 @@
+package node;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Length-prefixed binary encoding of Message.
+//
+// Handshake (once per connection): client sends 'K' 'V' <max version>, server answers
+// 'K' 'V' <chosen version>. After that every frame is:
+//
+//   varint frameLength | varint type | varint flags (request id, partial, consistency, routed, version, trace, ttl) |
+//   [varlong requestId] | [varint consistency] | [varlong version] | [varlong traceId] | [varlong ttlMs] |
+//   varint keyLen key | varint valueLen value | varint sourceLen source | [varlong totalValueLen]
+//
+// Strings are UTF-8. Optional fields are present only when their flag bit is set.
+//
+// From protocol version 2 a value longer than CHUNK_BYTES is split across frames. The first
+// frame is an ordinary one flagged CHUNKED carrying the first CHUNK_BYTES of the value and the
+// value's full length at the end; the rest follows in CONTINUATION frames holding only
+//
+//   varint type | varint flags | [varlong requestId] | varint chunkLen chunk
+//
+// Each frame is written on its own, so frames of other requests on the same connection can
+// go out between the chunks of a large value instead of queueing behind all of it. The
+// receiver's Assembler copies chunks straight into a buffer of the final size; neither side
+// ever holds the whole encoded frame.
+public final class MessageCodec {
+
+    public static final byte MAGIC_0 = 'K';
+    public static final byte MAGIC_1 = 'V';
+    public static final int PROTOCOL_VERSION = 2;
+    static final int CHUNKED_SINCE = 2;
+
+    // First two bytes of a Java serialization stream, used to spot legacy clients
+    static final int JAVA_STREAM_MAGIC_0 = 0xAC;
+    static final int JAVA_STREAM_MAGIC_1 = 0xED;
+
+    private static final int FLAG_REQUEST_ID = 1;
+    private static final int FLAG_PARTIAL = 2;
+    private static final int FLAG_CONSISTENCY = 4;
+    private static final int FLAG_ROUTED = 8;
+    private static final int FLAG_VERSION = 16;
+    private static final int FLAG_TRACE = 32;
+    private static final int FLAG_TTL = 64;
+    private static final int FLAG_CHUNKED = 128;
+    private static final int FLAG_CONTINUATION = 256;
+
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    static final int CHUNK_BYTES = Integer.getInteger("kv.wire.chunkBytes", 128 * 1024);
+    // Values being reassembled on one connection at a time, summed
+    private static final long MAX_ASSEMBLING_BYTES = 4L * MAX_FRAME_BYTES;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final ConsistencyLevel[] LEVELS = ConsistencyLevel.values();
+
+    private MessageCodec() {
+    }
+
+    public static void writeHandshake(OutputStream out, int version) throws IOException {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(version);
+        out.flush();
+    }
+
+    // Reads the peer's handshake and returns the version it offered
+    public static int readHandshake(InputStream in) throws IOException {
+        int m0 = in.read();
+        int m1 = in.read();
+        int version = in.read();
+        if (version < 0) {
+            throw new EOFException("Connection closed during handshake");
+        }
+        if (m0 != MAGIC_0 || m1 != MAGIC_1) {
+            throw new IOException("Not a KV protocol stream");
+        }
+        return version;
+    }
+
+    public static int negotiate(int offered) throws IOException {
+        int version = Math.min(offered, PROTOCOL_VERSION);
+        if (version < 1) {
+            throw new IOException("Unsupported protocol version " + offered);
+        }
+        return version;
+    }
+
+    public static byte[] encode(Message message) {
+        byte[] source = message.getSource().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = bodyLength(message, source);
+        byte[] frame = new byte[varIntSize(bodyLength) + bodyLength];
+        int pos = putVarLong(frame, 0, bodyLength);
+        writeBody(frame, pos, message, source);
+        return frame;
+    }
+
+    public static int encodedSize(Message message) {
+        int bodyLength = bodyLength(message, message.getSource().getBytes(StandardCharsets.UTF_8));
+        return varIntSize(bodyLength) + bodyLength;
+    }
+
+    public static void write(OutputStream out, Message message) throws IOException {
+        out.write(encode(message));
+    }
+
+    @FunctionalInterface
+    interface FrameSink {
+        void write(byte[] frame) throws IOException;
+    }
+
+    // Hands the frames of one message to sink in order, encoding each only when it is due
+    static void writeFrames(Message message, int protocolVersion, FrameSink sink) throws IOException {
+        byte[] value = message.getValueBytes();
+        if (protocolVersion < CHUNKED_SINCE || value.length <= CHUNK_BYTES) {
+            sink.write(encode(message));
+            return;
+        }
+        byte[] source = message.getSource().getBytes(StandardCharsets.UTF_8);
+        Message first = message.withValueBytes(Arrays.copyOf(value, CHUNK_BYTES));
+        int bodyLength = bodyLength(first, source, FLAG_CHUNKED) + varIntSize(value.length);
+        byte[] frame = new byte[varIntSize(bodyLength) + bodyLength];
+        int pos = writeBody(frame, putVarLong(frame, 0, bodyLength), first, source, FLAG_CHUNKED);
+        putVarLong(frame, pos, value.length);
+        sink.write(frame);
+
+        long requestId = message.getRequestId();
+        int flags = FLAG_CONTINUATION | (requestId != 0 ? FLAG_REQUEST_ID : 0);
+        for (int offset = CHUNK_BYTES; offset < value.length; offset += CHUNK_BYTES) {
+            int n = Math.min(CHUNK_BYTES, value.length - offset);
+            bodyLength = varIntSize(message.getType().ordinal()) + varIntSize(flags)
+                    + (requestId != 0 ? varLongSize(requestId) : 0) + varIntSize(n) + n;
+            frame = new byte[varIntSize(bodyLength) + bodyLength];
+            pos = putVarLong(frame, 0, bodyLength);
+            pos = putVarLong(frame, pos, message.getType().ordinal());
+            pos = putVarLong(frame, pos, flags);
+            if (requestId != 0) pos = putVarLong(frame, pos, requestId);
+            pos = putVarLong(frame, pos, n);
+            System.arraycopy(value, offset, frame, pos, n);
+            sink.write(frame);
+        }
+    }
+
+    // Returns null on a clean end of stream between frames
+    public static Message read(InputStream in) throws IOException {
+        byte[] body = readFrame(in);
+        return body == null ? null : decode(body, 0, body.length);
+    }
+
+    private static byte[] readFrame(InputStream in) throws IOException {
+        long length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] body = new byte[(int) length];
+        readFully(in, body, 0, body.length);
+        return body;
+    }
+
+    // -1 on a clean end of stream
+    private static long readLength(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return -1;
+        }
+        long length = first & 0x7F;
+        int shift = 7;
+        while ((first & 0x80) != 0) {
+            first = in.read();
+            if (first < 0) throw new EOFException("Truncated frame length");
+            length |= (long) (first & 0x7F) << shift;
+            shift += 7;
+            if (shift > 35) throw new IOException("Malformed frame length");
+        }
+        if (length > MAX_FRAME_BYTES) {
+            throw new IOException("Frame of " + length + " bytes exceeds limit");
+        }
+        return length;
+    }
+
+    // For a single, unchunked frame; a connection that may carry chunked ones decodes through an Assembler
+    public static Message decode(byte[] buf, int offset, int length) throws IOException {
+        Reader r = new Reader(buf, offset, offset + length);
+        int typeCode = type(r);
+        int flags = (int) r.varLong();
+        if ((flags & (FLAG_CHUNKED | FLAG_CONTINUATION)) != 0) {
+            throw new IOException("Chunked frame outside a connection");
+        }
+        return decodeBody(r, typeCode, flags);
+    }
+
+    private static int type(Reader r) throws IOException {
+        return type(r.varLong());
+    }
+
+    private static int type(long code) throws IOException {
+        int typeCode = (int) code;
+        if (code != typeCode || typeCode < 0 || typeCode >= TYPES.length) {
+            throw new IOException("Unknown message type " + typeCode);
+        }
+        return typeCode;
+    }
+
+    private static Message decodeBody(Reader r, int typeCode, int flags) throws IOException {
+        long requestId = (flags & FLAG_REQUEST_ID) != 0 ? r.varLong() : 0L;
+        ConsistencyLevel consistency = null;
+        if ((flags & FLAG_CONSISTENCY) != 0) {
+            int level = (int) r.varLong();
+            if (level < 0 || level >= LEVELS.length) {
+                throw new IOException("Unknown consistency level " + level);
+            }
+            consistency = LEVELS[level];
+        }
+        long version = (flags & FLAG_VERSION) != 0 ? r.varLong() : 0L;
+        long traceId = (flags & FLAG_TRACE) != 0 ? r.varLong() : 0L;
+        long ttlMs = (flags & FLAG_TTL) != 0 ? r.varLong() : 0L;
+        byte[] key = r.bytes();
+        byte[] value = r.bytes();
+        String source = new String(r.bytes(), StandardCharsets.UTF_8);
+        Message message = new Message(TYPES[typeCode], key, value, source, requestId);
+        if (consistency != null) message = message.withConsistency(consistency);
+        if ((flags & FLAG_ROUTED) != 0) message = message.asRouted();
+        if (version != 0) message = message.withVersion(version);
+        if (traceId != 0) message = message.withTraceId(traceId);
+        if (ttlMs != 0) message = message.withTtl(ttlMs);
+        return (flags & FLAG_PARTIAL) != 0 ? message.asPartial() : message;
+    }
+
+    private static int bodyLength(Message m, byte[] source) {
+        return bodyLength(m, source, 0);
+    }
+
+    private static int bodyLength(Message m, byte[] source, int extraFlags) {
+        int flags = flags(m) | extraFlags;
+        int size = varIntSize(m.getType().ordinal()) + varIntSize(flags);
+        if ((flags & FLAG_REQUEST_ID) != 0) size += varLongSize(m.getRequestId());
+        if ((flags & FLAG_CONSISTENCY) != 0) size += varIntSize(m.getConsistency().ordinal());
+        if ((flags & FLAG_VERSION) != 0) size += varLongSize(m.getVersion());
+        if ((flags & FLAG_TRACE) != 0) size += varLongSize(m.getTraceId());
+        if ((flags & FLAG_TTL) != 0) size += varLongSize(m.getTtlMs());
+        size += varIntSize(m.getKeyBytes().length) + m.getKeyBytes().length;
+        size += varIntSize(m.getValueBytes().length) + m.getValueBytes().length;
+        size += varIntSize(source.length) + source.length;
+        return size;
+    }
+
+    private static int writeBody(byte[] buf, int pos, Message m, byte[] source) {
+        return writeBody(buf, pos, m, source, 0);
+    }
+
+    private static int writeBody(byte[] buf, int pos, Message m, byte[] source, int extraFlags) {
+        int flags = flags(m) | extraFlags;
+        pos = putVarLong(buf, pos, m.getType().ordinal());
+        pos = putVarLong(buf, pos, flags);
+        if ((flags & FLAG_REQUEST_ID) != 0) pos = putVarLong(buf, pos, m.getRequestId());
+        if ((flags & FLAG_CONSISTENCY) != 0) pos = putVarLong(buf, pos, m.getConsistency().ordinal());
+        if ((flags & FLAG_VERSION) != 0) pos = putVarLong(buf, pos, m.getVersion());
+        if ((flags & FLAG_TRACE) != 0) pos = putVarLong(buf, pos, m.getTraceId());
+        if ((flags & FLAG_TTL) != 0) pos = putVarLong(buf, pos, m.getTtlMs());
+        pos = putBytes(buf, pos, m.getKeyBytes());
+        pos = putBytes(buf, pos, m.getValueBytes());
+        return putBytes(buf, pos, source);
+    }
+
+    private static int flags(Message m) {
+        int flags = 0;
+        if (m.getRequestId() != 0) flags |= FLAG_REQUEST_ID;
+        if (m.isPartial()) flags |= FLAG_PARTIAL;
+        if (m.getConsistency() != null) flags |= FLAG_CONSISTENCY;
+        if (m.isRouted()) flags |= FLAG_ROUTED;
+        if (m.getVersion() != 0) flags |= FLAG_VERSION;
+        if (m.getTraceId() != 0) flags |= FLAG_TRACE;
+        if (m.getTtlMs() != 0) flags |= FLAG_TTL;
+        return flags;
+    }
+
+    private static int putBytes(byte[] buf, int pos, byte[] bytes) {
+        pos = putVarLong(buf, pos, bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    static int putVarLong(byte[] buf, int pos, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    static int varIntSize(int v) {
+        return varLongSize(v & 0xFFFFFFFFL);
+    }
+
+    static int varLongSize(long v) {
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            size++;
+            v >>>= 7;
+        }
+        return size;
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buf, offset + read, length - read);
+            if (n < 0) throw new EOFException("Truncated frame");
+            read += n;
+        }
+    }
+
+    // Turns the frames of one connection back into messages, joining chunked values. Used by
+    // that connection's reading thread only.
+    static final class Assembler {
+        private final Map<Long, Chunked> open = new HashMap<>();
+        private long assembling;
+
+        private static final class Chunked {
+            final Message header;
+            final byte[] value;
+            int filled;
+
+            Chunked(Message header, byte[] value) {
+                this.header = header;
+                this.value = value;
+            }
+        }
+
+        // Bytes of the current frame read so far by varLong(InputStream)
+        private int consumed;
+
+        // Returns null on a clean end of stream between frames. A continuation goes from the
+        // stream straight into its value, without a frame buffer in between.
+        Message read(InputStream in) throws IOException {
+            while (true) {
+                long length = readLength(in);
+                if (length < 0) return null;
+                consumed = 0;
+                int typeCode = type(varLong(in));
+                int flags = (int) varLong(in);
+                if (consumed > length) throw new IOException("Malformed frame");
+                Message message;
+                if ((flags & FLAG_CONTINUATION) != 0) {
+                    long requestId = (flags & FLAG_REQUEST_ID) != 0 ? varLong(in) : 0L;
+                    Chunked chunked = chunked(requestId);
+                    long n = varLong(in);
+                    if (n != length - consumed || n > chunked.value.length - chunked.filled) {
+                        throw new IOException("Chunk overruns its value");
+                    }
+                    readFully(in, chunked.value, chunked.filled, (int) n);
+                    chunked.filled += (int) n;
+                    message = completed(requestId, chunked);
+                } else {
+                    byte[] body = new byte[(int) (length - consumed)];
+                    readFully(in, body, 0, body.length);
+                    message = decode(new Reader(body, 0, body.length), typeCode, flags);
+                }
+                if (message != null) return message;
+            }
+        }
+
+        // Returns null for a chunk that does not complete its message
+        Message decode(byte[] buf, int offset, int length) throws IOException {
+            Reader r = new Reader(buf, offset, offset + length);
+            int typeCode = type(r);
+            int flags = (int) r.varLong();
+            if ((flags & FLAG_CONTINUATION) != 0) {
+                long requestId = (flags & FLAG_REQUEST_ID) != 0 ? r.varLong() : 0L;
+                Chunked chunked = chunked(requestId);
+                chunked.filled = r.bytesInto(chunked.value, chunked.filled);
+                return completed(requestId, chunked);
+            }
+            return decode(r, typeCode, flags);
+        }
+
+        private Message decode(Reader r, int typeCode, int flags) throws IOException {
+            Message message = decodeBody(r, typeCode, flags & ~FLAG_CHUNKED);
+            if ((flags & FLAG_CHUNKED) == 0) return message;
+
+            long total = r.varLong();
+            byte[] first = message.getValueBytes();
+            if (total < first.length || total > MAX_FRAME_BYTES) {
+                throw new IOException("Chunked value of " + total + " bytes exceeds limit");
+            }
+            if (assembling + total > MAX_ASSEMBLING_BYTES || open.containsKey(message.getRequestId())) {
+                throw new IOException("Too many chunked values in flight");
+            }
+            Chunked chunked = new Chunked(message, new byte[(int) total]);
+            System.arraycopy(first, 0, chunked.value, 0, first.length);
+            chunked.filled = first.length;
+            open.put(message.getRequestId(), chunked);
+            assembling += total;
+            return null;
+        }
+
+        private Chunked chunked(long requestId) throws IOException {
+            Chunked chunked = open.get(requestId);
+            if (chunked == null) throw new IOException("Chunk for unknown request " + requestId);
+            return chunked;
+        }
+
+        private Message completed(long requestId, Chunked chunked) {
+            if (chunked.filled < chunked.value.length) return null;
+            open.remove(requestId);
+            assembling -= chunked.value.length;
+            return chunked.header.withValueBytes(chunked.value);
+        }
+
+        private long varLong(InputStream in) throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) throw new EOFException("Truncated varint");
+                consumed++;
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+
+    static final class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+
+        Reader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        long varLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) throw new EOFException("Truncated varint");
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        boolean hasRemaining() {
+            return pos < limit;
+        }
+
+        // Copies a length-prefixed field into target at pos and returns the position after it
+        int bytesInto(byte[] target, int pos) throws IOException {
+            long length = varLong();
+            if (length < 0 || length > limit - this.pos) throw new EOFException("Truncated field");
+            if (length > target.length - pos) throw new IOException("Chunk overruns its value");
+            System.arraycopy(buf, this.pos, target, pos, (int) length);
+            this.pos += (int) length;
+            return pos + (int) length;
+        }
+
+        byte[] bytes() throws IOException {
+            long length = varLong();
+            if (length < 0 || length > limit - pos) throw new EOFException("Truncated field");
+            byte[] out = new byte[(int) length];
+            System.arraycopy(buf, pos, out, 0, out.length);
+            pos += out.length;
+            return out;
+        }
+    }
+}
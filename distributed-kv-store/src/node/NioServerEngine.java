@@ -0,0 +1,364 @@
+package node;
+
+import core.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Single selector thread doing all socket I/O and framing, with a small fixed pool running
+// the handlers. Requests that wait on other nodes or on pacing (see Message.waitsOnPeers)
+// get a virtual thread instead: a peer's workers blocked the same way would otherwise leave
+// both pools waiting on each other until timeouts fire. Speaks only the binary protocol.
+class NioServerEngine implements ServerEngine {
+
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+    // Stop reading from a client whose responses are piling up faster than it drains them
+    private static final int MAX_PENDING_WRITE_BYTES = 4 * 1024 * 1024;
+
+    private final int port;
+    private final String nodeId;
+    private final RequestHandler handler;
+    private final AdmissionControl admission;
+    private final ExecutorService workers;
+    private final ExecutorService waiters = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loop;
+
+    NioServerEngine(int port, String nodeId, ServerConfig config, RequestHandler handler) {
+        this.port = port;
+        this.nodeId = nodeId;
+        this.handler = handler;
+        this.admission = new AdmissionControl(config);
+        this.workers = Executors.newFixedThreadPool(config.getWorkerThreads(), r -> {
+            Thread t = new Thread(r, "nio-worker-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        loop = new Thread(this::eventLoop, "nio-loop-" + nodeId);
+        loop.start();
+    }
+
+    private void eventLoop() {
+        while (running) {
+            try {
+                selector.select();
+
+                Connection ready;
+                while ((ready = pendingWrites.poll()) != null) {
+                    ready.enableWrites();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) connection.onReadable();
+                            if (key.isValid() && key.isWritable()) connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        Object attachment = key.attachment();
+                        if (attachment instanceof Connection) {
+                            ((Connection) attachment).close();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    Log.error(nodeId, "Selector loop failed", e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        if (!admission.tryOpenConnection()) {
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                selector.close();
+            }
+        } catch (IOException e) {
+            Log.error(nodeId, "Failed to close server channel", e);
+        }
+        workers.shutdownNow();
+        waiters.shutdownNow();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return admission.openConnections();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return admission.inFlightRequests();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return admission.rejectedConnections();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return admission.rejectedRequests();
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        // Handlers may run on virtual threads, so waiting uses a lock rather than a monitor
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private final Condition drained = drainLock.newCondition();
+        private final MessageCodec.Assembler assembler = new MessageCodec.Assembler();
+        private volatile int protocolVersion;
+        private boolean handshakeDone;
+        private boolean readPaused;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            try {
+                if (!handshakeDone && !readHandshake()) return;
+                Message message;
+                while ((message = nextFrame()) != null) {
+                    dispatch(message);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        private boolean readHandshake() throws IOException {
+            if (readBuffer.remaining() < 3) return false;
+            int m0 = readBuffer.get() & 0xFF;
+            int m1 = readBuffer.get() & 0xFF;
+            int version = readBuffer.get() & 0xFF;
+            if (m0 != MessageCodec.MAGIC_0 || m1 != MessageCodec.MAGIC_1) {
+                // legacy Java serialization clients need the VIRTUAL_THREADS engine
+                throw new IOException("Unsupported protocol on NIO engine");
+            }
+            version = MessageCodec.negotiate(version);
+            protocolVersion = version;
+            enqueue(new byte[]{MessageCodec.MAGIC_0, MessageCodec.MAGIC_1, (byte) version});
+            handshakeDone = true;
+            return true;
+        }
+
+        // Returns the next complete message, or null if more bytes are needed. Chunks of a
+        // large value are consumed here until its last one arrives.
+        private Message nextFrame() throws IOException {
+            while (true) {
+                int start = readBuffer.position();
+                long length = 0;
+                int shift = 0;
+                int pos = start;
+                while (true) {
+                    if (pos >= readBuffer.limit()) return null;
+                    byte b = readBuffer.get(pos++);
+                    length |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) break;
+                    shift += 7;
+                    if (shift > 35) throw new IOException("Malformed frame length");
+                }
+                if (length > MessageCodec.MAX_FRAME_BYTES) {
+                    throw new IOException("Frame of " + length + " bytes exceeds limit");
+                }
+                int frameEnd = pos + (int) length;
+                if (frameEnd > readBuffer.limit()) {
+                    ensureCapacity(frameEnd - start);
+                    return null;
+                }
+                Message message = assembler.decode(readBuffer.array(), readBuffer.arrayOffset() + pos, (int) length);
+                readBuffer.position(frameEnd);
+                if (message != null) return message;
+            }
+        }
+
+        // Grow the buffer so a large frame can be assembled; still in read mode here
+        private void ensureCapacity(int frameSize) {
+            if (frameSize <= readBuffer.capacity()) return;
+            ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+
+        private void dispatch(Message message) {
+            if (!admission.tryBeginRequest()) {
+                enqueue(MessageCodec.encode(AdmissionControl.busy(message, nodeId)));
+                return;
+            }
+            try {
+                (message.waitsOnPeers() ? waiters : workers).execute(() -> {
+                    ResponseSink sink = response -> send(response.withRequestId(message.getRequestId()));
+                    try {
+                        handler.handle(message, sink);
+                    } catch (IOException e) {
+                        Log.warn(nodeId, "Failed to send response: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        // Answer anyway, or a multiplexed caller waits out its whole timeout
+                        Log.error(nodeId, message.getType() + " " + message.getKey() + " failed", e);
+                        enqueue(MessageCodec.encode(RequestHandler.failure(message, nodeId, e)));
+                    } finally {
+                        admission.endRequest();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                admission.endRequest();
+                enqueue(MessageCodec.encode(AdmissionControl.busy(message, nodeId)));
+            }
+        }
+
+        // Each chunk after the first of a large value waits for the queue to be nearly empty,
+        // so other responses go out between its chunks rather than behind all of it
+        private void send(Message response) throws IOException {
+            awaitDrain(MAX_PENDING_WRITE_BYTES);
+            int[] sent = {0};
+            MessageCodec.writeFrames(response, protocolVersion, frame -> {
+                if (sent[0]++ > 0) awaitDrain(MessageCodec.CHUNK_BYTES);
+                enqueue(frame);
+            });
+        }
+
+        // A handler streaming many frames waits here instead of growing the queue without bound
+        private void awaitDrain(long limit) throws IOException {
+            drainLock.lock();
+            try {
+                while (!closed && pendingBytes.get() > limit) {
+                    drained.await(50, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for client to drain");
+            } finally {
+                drainLock.unlock();
+            }
+            if (closed) throw new IOException("Connection closed");
+        }
+
+        // Safe from any thread; the selector thread does the actual write
+        void enqueue(byte[] frame) {
+            if (closed) return;
+            outbound.add(ByteBuffer.wrap(frame));
+            pendingBytes.addAndGet(frame.length);
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void enableWrites() {
+            if (!key.isValid()) return;
+            int ops = SelectionKey.OP_WRITE;
+            if (pendingBytes.get() > MAX_PENDING_WRITE_BYTES) {
+                readPaused = true;
+            } else if (!readPaused) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null) {
+                int written = channel.write(head);
+                if (pendingBytes.addAndGet(-written) <= MAX_PENDING_WRITE_BYTES) {
+                    signalDrained();
+                }
+                if (head.hasRemaining()) return;
+                outbound.poll();
+            }
+            readPaused = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void signalDrained() {
+            drainLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            signalDrained();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            admission.connectionClosed();
+        }
+    }
+}
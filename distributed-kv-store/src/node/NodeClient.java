@@ -1,43 +1,68 @@
 package node;
 
-import java.io.*;
-import java.net.*;
+import core.Log;
+
+import java.util.concurrent.CompletableFuture;
 
 public class NodeClient {
 
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 8000;
 
-    public static Message sendMessage(String host, int port, Message message) {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(host, port), 2000); // 2s timeout
-            socket.setSoTimeout(3000); // 3s read timeout
-
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-            out.writeObject(message);
-            out.flush();
+    private static final int CONNECT_TIMEOUT_MS = 2000; // 2s timeout
+    private static final int REQUEST_TIMEOUT_MS = 3000; // 3s read timeout
 
-            return (Message) in.readObject();
+    // Shared by every caller in the JVM: UI, coordinators, replica forwarding and recovery
+    private static final ConnectionPool pool = new ConnectionPool(
+            4,      // connections per peer
+            64,     // in-flight requests per connection before opening another
+            CONNECT_TIMEOUT_MS,
+            60_000, // close connections idle for a minute
+            15_000  // ping connections quiet for 15s
+    );
 
+    public static Message sendMessage(String host, int port, Message message) {
+        try {
+            return pool.send(host, port, message, REQUEST_TIMEOUT_MS);
         } catch (Exception e) {
-            System.err.println("Failed to connect to " + host + ":" + port);
-            e.printStackTrace();
+            Log.error(null, "Failed to connect to " + host + ":" + port, e);
             return null;
         }
     }
 
+    public static CompletableFuture<Message> sendMessageAsync(String host, int port, Message message) {
+        return pool.sendAsync(host, port, message, REQUEST_TIMEOUT_MS);
+    }
+
     public static String sendPutRequest(String key, String value, String host, int port) {
-        Message put = new Message(Message.MessageType.PUT, key, value, "UI");
+        return sendPutRequest(key, value, host, port, null);
+    }
+
+    // A null consistency level leaves the choice to the coordinating node
+    public static String sendPutRequest(String key, String value, String host, int port, ConsistencyLevel consistency) {
+        Message put = new Message(Message.MessageType.PUT, key, value, "UI").withConsistency(consistency);
         Message resp = sendMessage(host, port, put);
         return resp != null ? resp.toString() : "PUT failed or no response for key: " + key;
     }
 
     public static String sendGetRequest(String key, String host, int port) {
-        Message get = new Message(Message.MessageType.GET, key, null, "UI");
+        return sendGetRequest(key, host, port, null);
+    }
+
+    public static String sendGetRequest(String key, String host, int port, ConsistencyLevel consistency) {
+        Message get = new Message(Message.MessageType.GET, key, null, "UI").withConsistency(consistency);
         Message resp = sendMessage(host, port, get);
         return resp != null ? resp.toString() : "GET failed or no response for key: " + key;
     }
 
+    public static String sendDeleteRequest(String key, String host, int port) {
+        Message delete = new Message(Message.MessageType.DELETE, key, null, "UI");
+        Message resp = sendMessage(host, port, delete);
+        return resp != null ? resp.toString() : "DELETE failed or no response for key: " + key;
+    }
+
+    public static ConnectionPool getPool() {
+        return pool;
+    }
+
 }
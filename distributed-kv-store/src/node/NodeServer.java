@@ -1,16 +1,23 @@
 package node;
 
+import core.Log;
+import core.Node;
 import core.RingManager;
+import core.Versioned;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import metrics.MetricsServer;
+import storage.StorageConfig;
+import storage.StorageEngine;
 
 import java.io.*;
-import java.net.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NodeServer {
 
@@ -19,213 +26,582 @@ public class NodeServer {
     private RingManager ring;
     private int replicationFactor;
 
-    private final Map<String, String> dataStore = new ConcurrentHashMap<>();
-    private final ExecutorService replicationExecutor = Executors.newFixedThreadPool(3);
+    private StorageEngine dataStore;
+    private VersionedStore versionedStore;
+    // Optional (kv.cache.bytes); serves hot GETs at ONE for keys this coordinator does not
+    // replicate without a replica round trip
+    private final HotKeyCache cache = HotKeyCache.fromSystemProperties();
+    private AntiEntropy antiEntropy;
+    private QuorumCoordinator coordinator;
+    private final Gossiper gossiper;
+    private Rebalancer rebalancer;
+    private Expirer expirer;
+    private ConditionalWriter conditionalWriter;
+    // Set when this node joins a running cluster and has to stream its ranges in first
+    private final boolean bootstrap;
+    private final ReplicationSequencer sequencer = new ReplicationSequencer();
     private volatile boolean running = true;
 
-    private ServerSocket serverSocket;
+    private final ServerConfig config;
+    private ServerEngine engine;
 
-    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+    private final StorageConfig storage;
+
+    private final ConsistencyLevel readConsistency =
+            ConsistencyLevel.fromSystemProperty("kv.consistency.read", ConsistencyLevel.QUORUM);
+    private final ConsistencyLevel writeConsistency =
+            ConsistencyLevel.fromSystemProperty("kv.consistency.write", ConsistencyLevel.QUORUM);
+    private final long requestTimeoutMs = Long.getLong("kv.request.timeoutMs", 2000);
+
+    // Share of client requests that get a trace id and are logged at every step
+    private static final double TRACE_SAMPLE_RATE = Double.parseDouble(System.getProperty("kv.trace.sampleRate", "0.001"));
+
+    private final MetricsRegistry metrics;
+    private final RequestMetrics[] requestMetrics = new RequestMetrics[Message.MessageType.values().length];
+    private final LongAdder recoveryBytes;
+    private final LongAdder recoveryEntries;
 
     public NodeServer(int port, String nodeId, RingManager ring, int replicationFactor) {
+        this(port, nodeId, ring, replicationFactor, ServerConfig.fromSystemProperties(),
+                StorageConfig.fromSystemProperties(nodeId));
+    }
+
+    public NodeServer(int port, String nodeId, RingManager ring, int replicationFactor, ServerConfig config,
+                      StorageConfig storage) {
         this.port = port;
         this.nodeId = nodeId;
         this.ring = ring;
         this.replicationFactor = replicationFactor;
+        this.config = config;
+        this.storage = storage;
+        this.metrics = new MetricsRegistry(nodeId);
+        this.recoveryBytes = metrics.counter("recovery_bytes");
+        this.recoveryEntries = metrics.counter("recovery_entries");
+        // A node started on its own joins the ring it learns from its seeds. If those seeds are
+        // other nodes it bootstraps (kv.rebalance.bootstrap, on by default): it takes writes for
+        // its future ranges and streams the existing data in before it serves any reads.
+        Node self = ring.getNode(nodeId);
+        List<InetSocketAddress> seeds = seeds();
+        this.bootstrap = self == null && hasOtherSeeds(seeds)
+                && Boolean.parseBoolean(System.getProperty("kv.rebalance.bootstrap", "true"));
+        if (self == null) {
+            self = new Node(nodeId, System.getProperty("kv.node.host", "localhost"), port);
+            if (bootstrap) ring.addJoiningNode(self);
+            else ring.addNode(self);
+        }
+        this.gossiper = new Gossiper(self, bootstrap ? Gossiper.Status.JOINING : Gossiper.Status.NORMAL,
+                ring, seeds, NodeClient.getPool());
+    }
+
+    private boolean hasOtherSeeds(List<InetSocketAddress> seeds) {
+        String host = System.getProperty("kv.node.host", "localhost");
+        for (InetSocketAddress seed : seeds) {
+            if (seed.getPort() != port || !seed.getHostString().equals(host)) return true;
+        }
+        return false;
+    }
+
+    // kv.gossip.seeds (host:port,...); by default every other node already on the ring
+    private List<InetSocketAddress> seeds() {
+        String configured = System.getProperty("kv.gossip.seeds");
+        if (configured != null) return Gossiper.parseSeeds(configured);
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (Node node : ring.getNodes()) {
+            if (!node.getId().equals(nodeId)) seeds.add(addressOf(node.getId()));
+        }
+        return seeds;
+    }
 
+    // Rebuild the local copy from disk first so only what changed while we were down
+    // has to come over the network
+    private void openStorage() throws IOException {
+        long start = System.nanoTime();
+        dataStore = storage.open();
+        versionedStore = new VersionedStore(dataStore, cache);
+        antiEntropy = new AntiEntropy(nodeId, ring, replicationFactor, versionedStore);
+        coordinator = new QuorumCoordinator(nodeId, ring, replicationFactor, versionedStore,
+                this::addressOf, gossiper::isAlive, readConsistency, writeConsistency, requestTimeoutMs, storage.getDurability(), cache, metrics);
+        rebalancer = new Rebalancer(nodeId, ring, replicationFactor, versionedStore, gossiper, this::addressOf, metrics);
+        expirer = new Expirer(nodeId, versionedStore, metrics);
+        conditionalWriter = new ConditionalWriter(nodeId, ring, replicationFactor, coordinator,
+                gossiper::isAlive, this::addressOf, requestTimeoutMs, metrics);
+        long expiring = versionedStore.scheduleStored();
+        Log.info(nodeId, "Opened " + storage + " with " + dataStore.size() + " keys (" + expiring
+                + " expiring or deleted) in " + (System.nanoTime() - start) / 1_000_000 + "ms");
     }
 
+    // Catch up with every peer we share token ranges with; only divergent Merkle leaves travel
     private void fetchMissingDataFromReplicas() {
-        List<String> replicas = ring.getNNodesForKey("recovery:" + nodeId, replicationFactor);
-        for (String replicaId : replicas) {
-            if (replicaId.equals(nodeId)) continue;
+        for (String peerId : ring.getNodeIds()) {
+            if (peerId.equals(nodeId)) continue;
+            if (!gossiper.isAlive(peerId)) {
+                Log.info(nodeId, "Skipping anti-entropy with " + peerId + ", suspected down");
+                continue;
+            }
 
             try {
-                String host = "localhost";
-                int port = getPortFromNodeId(replicaId); // ✅ FIXED
-
-                Message recoveryRequest = new Message(Message.MessageType.RECOVERY, null, null, nodeId);
-                Message response = NodeClient.sendMessage(host, port, recoveryRequest);
-
-                if (response != null && response.getType() == Message.MessageType.RESPONSE && response.getValue() != null) {
-                    String serialized = response.getValue(); // key1=value1;key2=value2
-                    String[] pairs = serialized.split(";");
-                    for (String pair : pairs) {
-                        String[] kv = pair.split("=", 2);
-                        if (kv.length == 2) {
-                            dataStore.put(kv[0], kv[1]);
-                        }
-                    }
-                    System.out.println("Recovered from " + replicaId + ": " + dataStore.keySet());
-                }
+                InetSocketAddress address = addressOf(peerId);
+                long start = System.nanoTime();
+                AntiEntropy.SyncResult result = antiEntropy.syncWith(peerId, address.getHostString(), address.getPort());
+                recoveryBytes.add(result.bytes);
+                recoveryEntries.add(result.received);
+                Log.info(nodeId, "Anti-entropy with " + peerId + ": " + result.divergentLeaves + " divergent ranges, "
+                        + result.received + " entries received, " + result.applied + " applied in "
+                        + (System.nanoTime() - start) / 1_000_000 + "ms");
             } catch (Exception e) {
-                System.err.println("Recovery failed from " + replicaId + ": " + e.getMessage());
+                Log.warn(nodeId, "Recovery failed from " + peerId + ": " + e.getMessage());
             }
         }
     }
 
-
     public void start() {
-        new Thread(() -> {
-            try (ServerSocket server = new ServerSocket(port)) {
-                serverSocket = server;
-                log(nodeId + " listening on port " + port);
-
-                // Delay recovery slightly to allow all nodes to start
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(2000); // Wait 2 seconds for other servers to come up
-                        fetchMissingDataFromReplicas();  // Now safe to call
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        e.printStackTrace();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }).start();
+        engine = config.createEngine(port, nodeId, this::dispatch);
+        try {
+            openStorage();
+            engine.start();
+        } catch (IOException e) {
+            Log.error(nodeId, "Failed to start", e);
+            return;
+        }
+        gossiper.start();
+        expirer.start();
+        registerMetrics();
+        Log.info(nodeId, nodeId + " listening on port " + port + " using " + config);
 
-                while (running) {
-                    Socket clientSocket = server.accept();
-                    new Thread(new ClientHandler(clientSocket)).start();
-                }
-            } catch (IOException e) {
-                if (running) {
-                    e.printStackTrace();
-                } else {
-                    log(nodeId + " Server stopped.");
+        if (bootstrap) {
+            new Thread(() -> {
+                try {
+                    rebalancer.bootstrap();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    Log.error(nodeId, "Bootstrap failed", e);
                 }
+            }, "bootstrap-" + nodeId).start();
+            return;
+        }
+
+        // Delay recovery slightly to allow all nodes to start
+        new Thread(() -> {
+            try {
+                Thread.sleep(2000); // Wait 2 seconds for other servers to come up
+                fetchMissingDataFromReplicas();  // Now safe to call
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                Log.error(nodeId, "Recovery failed", e);
             }
         }).start();
     }
 
-    public void stop() {
-        running = false;
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
+    // Streams this node's ranges to the nodes taking them over, then leaves the ring and stops
+    public void decommission() throws InterruptedException {
+        rebalancer.decommission();
+        stop();
+    }
+
+    private void registerMetrics() {
+        metrics.gauge("open_connections", engine::getOpenConnections);
+        metrics.gauge("in_flight_requests", engine::getInFlightRequests);
+        metrics.gauge("rejected_connections", engine::getRejectedConnections);
+        metrics.gauge("rejected_requests", engine::getRejectedRequests);
+        metrics.gauge("outbound_connections", () -> NodeClient.getPool().openConnections());
+        metrics.gauge("live_nodes", gossiper::liveCount);
+        metrics.gauge("down_nodes", gossiper::downCount);
+        if (cache != null) {
+            metrics.gauge("cache_hits", cache::getHits);
+            metrics.gauge("cache_misses", cache::getMisses);
+            metrics.gauge("cache_evictions", cache::getEvictions);
+            metrics.gauge("cache_bytes", cache::weightedBytes);
+        }
+        metrics.gauge("storage_keys", dataStore::size);
+        if (dataStore.partitions() > 1) {
+            for (int p = 0; p < dataStore.partitions(); p++) {
+                int partition = p;
+                String label = String.valueOf(p);
+                metrics.gauge(MetricsRegistry.name("storage_partition_keys", "partition", label), () -> dataStore.size(partition));
+                metrics.gauge(MetricsRegistry.name("storage_partition_bytes", "partition", label), () -> dataStore.byteSize(partition));
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        replicationExecutor.shutdown();
-        log(nodeId + " server and executor stopped.");
+        metrics.register();
+        MetricsServer.startFromSystemProperties();
     }
 
-    private class ClientHandler implements Runnable {
-        private Socket socket;
-
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+    public void stop() {
+        running = false;
+        gossiper.stop();
+        if (expirer != null) expirer.stop();
+        if (engine != null) {
+            engine.stop();
         }
+        if (coordinator != null) {
+            coordinator.shutdown();
+        }
+        closeStorage();
+        metrics.unregister();
+        Log.info(nodeId, nodeId + " server and coordinator stopped.");
+    }
 
-        public void run() {
-            try (
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())
-            ) {
-                Message message = (Message) in.readObject();
-                log("Received: " + message);
-
-                Message response;
+    void dispatch(Message message, ResponseSink sink) throws IOException {
+        long start = System.nanoTime();
+        RequestMetrics m = requestMetrics(message.getType());
+        if (!message.isTraced() && isClientRequest(message.getType())
+                && ThreadLocalRandom.current().nextDouble() < TRACE_SAMPLE_RATE) {
+            message = message.withTraceId(ThreadLocalRandom.current().nextLong() >>> 1 | 1);
+        }
+        if (message.isTraced()) {
+            Log.info(nodeId, "trace=" + Long.toHexString(message.getTraceId()) + " received " + message);
+        }
+        boolean failed = false;
+        switch (message.getType()) {
+            case MERKLE_TREE:
+                antiEntropy.serveTree(message, sink);
+                break;
+            case SYNC_RANGE:
+                antiEntropy.serveRange(message, sink);
+                break;
+            case STREAM_RANGE:
+                rebalancer.serve(message, sink);
+                break;
+            case SCAN:
+                coordinator.scan(message, sink);
+                break;
+            default:
+                Message response = handle(message);
+                failed = "ERROR".equals(response.getKey());
+                if (message.isTraced()) {
+                    Log.info(nodeId, "trace=" + Long.toHexString(message.getTraceId()) + " answered "
+                            + (failed ? "ERROR " + response.getValue() : "OK") + " in "
+                            + (System.nanoTime() - start) / 1000 + "us");
+                }
+                sink.send(response);
+        }
+        m.latency.record(System.nanoTime() - start);
+        m.requests.increment();
+        if (failed) m.errors.increment();
+    }
 
-                switch (message.getType()) {
-                    case RECOVERY:
-                        StringBuilder builder = new StringBuilder();
-                        for (Map.Entry<String, String> entry : dataStore.entrySet()) {
-                            builder.append(entry.getKey()).append("=").append(entry.getValue()).append(";");
-                        }
-                        String recovered = builder.toString();
-                        response = new Message(Message.MessageType.RESPONSE, null, recovered, nodeId);
-                        break;
+    private static boolean isClientRequest(Message.MessageType type) {
+        return type == Message.MessageType.PUT || type == Message.MessageType.GET
+                || type == Message.MessageType.MULTI_PUT || type == Message.MessageType.MULTI_GET
+                || type == Message.MessageType.SCAN || type == Message.MessageType.DELETE
+                || type == Message.MessageType.CAS || type == Message.MessageType.PUT_IF_ABSENT
+                || type == Message.MessageType.INCREMENT;
+    }
 
-                    case PUT:
-                        dataStore.put(message.getKey(), message.getValue());
-                        log("Stored: " + message.getKey() + " -> " + message.getValue());
+    // Created on first use; a race only means two threads look up the same registry entries
+    private RequestMetrics requestMetrics(Message.MessageType type) {
+        RequestMetrics m = requestMetrics[type.ordinal()];
+        if (m == null) {
+            m = new RequestMetrics(metrics, type.name());
+            requestMetrics[type.ordinal()] = m;
+        }
+        return m;
+    }
 
-                        List<String> responsibleNodes = ring.getNNodesForKey(message.getKey(), replicationFactor);
-                        if (responsibleNodes.get(0).equals(nodeId)) {
-                            forwardToReplicas(message);
-                        }
+    Message handle(Message message) {
+        if (Log.isEnabled(Log.Level.TRACE) && message.getType() != Message.MessageType.PING
+                && message.getType() != Message.MessageType.GOSSIP) {
+            Log.trace(nodeId, "Received: " + message);
+        }
 
+        Message response;
+
+        switch (message.getType()) {
+            case RECOVERY:
+                // Triggered from the UI when a node is marked up again
+                new Thread(this::fetchMissingDataFromReplicas, "anti-entropy-" + nodeId).start();
+                response = new Message(Message.MessageType.RESPONSE, null,
+                        "Anti-entropy started, " + dataStore.size() + " keys held locally", nodeId);
+                break;
+
+            case TOPOLOGY:
+                response = new Message(Message.MessageType.RESPONSE, "TOPOLOGY",
+                        Topology.encode(ring, replicationFactor), nodeId);
+                break;
+
+            case PUT:
+                if (misrouted(message)) {
+                    response = redirect(message);
+                    break;
+                }
+                response = coordinator.write(message);
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug(nodeId, "PUT: " + message.getKey() + " -> " + message.getValue()
+                            + ("ERROR".equals(response.getKey()) ? " failed, " + response.getValue() : ""));
+                }
+                break;
 
-                        response = new Message(Message.MessageType.RESPONSE, message.getKey(), message.getValue(), nodeId);
-                        break;
+            case DELETE:
+                if (misrouted(message)) {
+                    response = redirect(message);
+                    break;
+                }
+                response = coordinator.write(message);
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug(nodeId, "DELETE: " + message.getKey()
+                            + ("ERROR".equals(response.getKey()) ? " failed, " + response.getValue() : ""));
+                }
+                break;
+
+            case CAS:
+            case PUT_IF_ABSENT:
+            case INCREMENT:
+                if (misrouted(message)) {
+                    response = redirect(message);
+                    break;
+                }
+                response = conditionalWriter.handle(message);
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug(nodeId, message.getType() + ": " + message.getKey() + " => " + response.getKey()
+                            + " " + response.getValue());
+                }
+                break;
 
-                    case GET:
-                        String value = dataStore.getOrDefault(message.getKey(), "NOT_FOUND");
-                        log("GET: " + message.getKey() + " => " + value);
-                        response = new Message(Message.MessageType.RESPONSE, message.getKey(), value, nodeId);
-                        break;
+            case GET:
+                if (misrouted(message)) {
+                    response = redirect(message);
+                    break;
+                }
+                response = coordinator.read(message);
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug(nodeId, "GET: " + message.getKey() + " => " + response.getValue());
+                }
+                break;
 
-                    default:
-                        response = new Message(Message.MessageType.RESPONSE, "ERROR", "Unsupported operation", nodeId);
+            case REPLICA_PUT:
+                try {
+                    putData(message.getKey(), message.getVersion() != 0
+                            ? new Versioned(message.getVersion(), message.getValue())
+                            : Versioned.decode(message.getValue()));
+                } catch (UncheckedIOException e) {
+                    Log.error(nodeId, "Write failed for " + message.getKey() + ": " + e.getCause().getMessage());
+                    response = new Message(Message.MessageType.RESPONSE, "ERROR", "Write not persisted", nodeId);
+                    break;
                 }
+                response = new Message(Message.MessageType.RESPONSE, message.getKey(), "OK", nodeId);
+                break;
+
+            case REPLICA_GET:
+                Versioned stored = getData(message.getKey());
+                response = stored == null
+                        ? new Message(Message.MessageType.RESPONSE, message.getKey(), QuorumCoordinator.NOT_FOUND, nodeId)
+                        : new Message(Message.MessageType.RESPONSE, message.getKey(), stored.encode(), nodeId)
+                                .withVersion(stored.getVersion());
+                break;
+
+            case MULTI_PUT:
+                response = coordinator.multiWrite(message);
+                break;
+
+            case MULTI_GET:
+                response = coordinator.multiRead(message);
+                break;
+
+            case REPLICA_MULTI_PUT:
+                response = applyBatch(message);
+                break;
+
+            case REPLICA_MULTI_GET:
+                response = readBatch(message);
+                break;
+
+            case REPLICA_SCAN:
+                response = readRange(message);
+                break;
+
+            case PING:
+                response = new Message(Message.MessageType.RESPONSE, null, "PONG", nodeId);
+                break;
+
+            case GOSSIP:
+                response = gossiper.receive(message);
+                break;
+
+            case MEMBERSHIP:
+                response = new Message(Message.MessageType.RESPONSE, "MEMBERSHIP", gossiper.describe(), nodeId);
+                break;
+
+            case DECOMMISSION:
+                if (!ring.getNodeIds().contains(nodeId) || ring.isLeaving(nodeId)) {
+                    response = new Message(Message.MessageType.RESPONSE, "ERROR", "Not an owner of any range", nodeId);
+                    break;
+                }
+                new Thread(() -> {
+                    try {
+                        decommission();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        Log.error(nodeId, "Decommission failed", e);
+                    }
+                }, "decommission-" + nodeId).start();
+                response = new Message(Message.MessageType.RESPONSE, null, "Decommission started", nodeId);
+                break;
 
-                out.writeObject(response);
+            default:
+                response = new Message(Message.MessageType.RESPONSE, "ERROR", "Unsupported operation", nodeId);
+        }
 
-            } catch (Exception e) {
-                e.printStackTrace();
+        return response;
+    }
+
+    private Message applyBatch(Message message) {
+        try {
+            int applied = sequencer.apply(message.getSource(), message.getKey(), () -> KeyValueBatch.decode(
+                    message.getValueBytes(), (key, value) -> versionedStore.apply(
+                            new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8))));
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug(nodeId, "Replica batch from " + message.getSource() + ": " + applied + " writes");
             }
+            return new Message(Message.MessageType.RESPONSE, "OK", String.valueOf(applied), nodeId);
+        } catch (Exception e) {
+            Log.error(nodeId, "Batch write failed: " + e.getMessage());
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "Write not persisted", nodeId);
         }
     }
 
-    private void forwardToReplicas(Message message) {
-        System.out.println("Current Ring:");
-        ring.printRing();
-
-        List<String> replicas = ring.getNNodesForKey(message.getKey(), replicationFactor);
-        System.out.println("Replicas for key " + message.getKey() + ": " + replicas);
-
-        for (String replicaNode : replicas) {
-            if (replicaNode.equals(this.nodeId)) continue;
+    private Message readBatch(Message message) {
+        KeyValueBatch found = new KeyValueBatch();
+        try {
+            KeyValueBatch.decode(message.getValueBytes(), (key, ignored) -> {
+                String value = dataStore.get(new String(key, StandardCharsets.UTF_8));
+                if (value != null) found.add(key, value.getBytes(StandardCharsets.UTF_8));
+            });
+        } catch (IOException e) {
+            Log.error(nodeId, "Batch read failed: " + e.getMessage());
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "Read failed", nodeId);
+        }
+        return new Message(Message.MessageType.RESPONSE, null, found.toByteArray(), nodeId, 0L);
+    }
 
-            replicationExecutor.submit(() -> {
-                try {
-                    int replicaPort = getPortFromNodeId(replicaNode);
-                    log("Forwarding PUT to replica: " + replicaNode);
+    // Stored values go back with their version so the coordinator can merge replicas
+    private Message readRange(Message message) {
+        KeyValueBatch found = new KeyValueBatch();
+        try {
+            ScanRequest scan = ScanRequest.decode(message);
+            for (Map.Entry<String, String> e : dataStore.scan(scan.from(), scan.endKey, scan.limit)) {
+                found.add(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error(nodeId, "Range read failed: " + e.getMessage());
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "Read failed", nodeId);
+        }
+        return new Message(Message.MessageType.RESPONSE, null, found.toByteArray(), nodeId, 0L);
+    }
 
-                    Message replicaPut = new Message(Message.MessageType.PUT, message.getKey(), message.getValue(), nodeId);
-                    Message resp = NodeClient.sendMessage("localhost", replicaPort, replicaPut);
+    // A routing client picked us from its copy of the ring, but we hold no replica of the key:
+    // its ring is stale, so send ours back rather than coordinating through an extra hop
+    private boolean misrouted(Message message) {
+        return message.isRouted() && !ring.getNNodesForKey(message.getKey(), replicationFactor).contains(nodeId);
+    }
 
-                    log("Replica " + replicaNode + " response: " + resp);
-                } catch (Exception e) {
-                    System.err.println("Failed to forward PUT to replica " + replicaNode);
-                    e.printStackTrace();
-                }
-            });
+    private Message redirect(Message message) {
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug(nodeId, "Redirecting " + message.getType() + " " + message.getKey() + " to "
+                    + ring.getNodeForKey(message.getKey()));
         }
+        return new Message(Message.MessageType.REDIRECT, message.getKey(),
+                Topology.encode(ring, replicationFactor), nodeId);
     }
-    
+
     public void shutdownGracefully() {
         running = false;
+        gossiper.announceShutdown();
+        if (expirer != null) expirer.stop();
+        if (engine != null) {
+            engine.stop();
+        }
+        if (coordinator != null) {
+            coordinator.shutdown();
+        }
+        closeStorage();
+        metrics.unregister();
+        Log.info(nodeId, "Gracefully shut down.");
+    }
+
+    private void closeStorage() {
+        if (dataStore == null) return;
         try {
-            serverSocket.close();
-            System.out.println("[" + nodeId + "] Gracefully shut down.");
+            dataStore.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error(nodeId, "Failed to close storage", e);
         }
     }
 
+    public ServerEngine getEngine() {
+        return engine;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // This node's view of the cluster, as answered to MEMBERSHIP
+    public String describeMembership() {
+        return gossiper.describe();
+    }
+
+    // null when the cache is disabled
+    public HotKeyCache getCache() {
+        return cache;
+    }
+
 
-    private int getPortFromNodeId(String nodeId) {
-        return switch (nodeId) {
-            case "Node-A" -> 5000;
-            case "Node-B" -> 5001;
-            case "Node-C" -> 5002;
-            default -> throw new IllegalArgumentException("Unknown nodeId: " + nodeId);
-        };
+    // Peers are found through the ring, which gossip keeps up to date
+    private InetSocketAddress addressOf(String peer) {
+        Node node = ring.lookupNode(peer);
+        if (node == null) throw new IllegalArgumentException("Unknown node: " + peer);
+        return InetSocketAddress.createUnresolved(node.getIp(), node.getPort());
     }
 
-    public void putData(String key, String value) {
-        dataStore.put(key, value);
-        log("Replica PUT: " + key + " -> " + value);
+    // A write without a version is stamped here, so it still orders against everything else
+    public void putData(String key, Versioned value) {
+        if (value.getVersion() == 0) {
+            value = new Versioned(versionedStore.clock().now(), value.getValue());
+        }
+        boolean stored;
+        try {
+            stored = versionedStore.apply(key, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug(nodeId, "Replica PUT: " + key + " -> " + value + (stored ? "" : " (older than stored copy, ignored)"));
+        }
     }
 
-    public String getData(String key) {
-        return dataStore.getOrDefault(key, "NOT_FOUND");
+    // null when absent or unreadable
+    public Versioned getData(String key) {
+        try {
+            return versionedStore.get(key);
+        } catch (IOException e) {
+            Log.error(nodeId, "Read failed for " + key + ": " + e.getMessage());
+            return null;
+        }
     }
 
-    private void log(String message) {
-        System.out.println("[" + dtf.format(LocalDateTime.now()) + "][" + nodeId + "] " + message);
+    private static final class RequestMetrics {
+        final LongAdder requests;
+        final LongAdder errors;
+        final LatencyHistogram latency;
+
+        RequestMetrics(MetricsRegistry registry, String type) {
+            requests = registry.counter(MetricsRegistry.name("requests", "type", type));
+            errors = registry.counter(MetricsRegistry.name("request_errors", "type", type));
+            latency = registry.histogram(MetricsRegistry.name("request_latency", "type", type));
+        }
+    }
+
+    // java -cp out [-Dkv.gossip.seeds=host:port,...] node.NodeServer <nodeId> <port> [replicationFactor]
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: NodeServer <nodeId> <port> [replicationFactor]");
+            System.exit(1);
+        }
+        NodeServer server = new NodeServer(Integer.parseInt(args[1]), args[0], new RingManager(),
+                args.length > 2 ? Integer.parseInt(args[2]) : 3);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdownGracefully, "shutdown-" + args[0]));
+        server.start();
     }
 }
@@ -0,0 +1,176 @@
+package node;
+
+import core.Log;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// A long-lived connection to one peer. Many requests can be in flight at once;
+// a reader thread matches responses back to callers by request id.
+class PooledConnection implements Closeable {
+
+    private final String peer;
+    private final Socket socket;
+    private final OutputStream out;
+    // Not synchronized: a socket write can block, and callers are often virtual threads.
+    // Fair, so a large value written chunk by chunk takes turns with other requests' frames.
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final InputStream in;
+    private final int protocolVersion;
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    PooledConnection(String host, int port, int connectTimeoutMs) throws IOException {
+        this.peer = host + ":" + port;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+
+            socket.setSoTimeout(connectTimeoutMs); // bound the handshake only
+            MessageCodec.writeHandshake(out, MessageCodec.PROTOCOL_VERSION);
+            protocolVersion = MessageCodec.negotiate(MessageCodec.readHandshake(in));
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        Thread reader = new Thread(this::readLoop, "conn-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static final class Pending {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        final Consumer<Message> onPartial;
+
+        Pending(Consumer<Message> onPartial) {
+            this.onPartial = onPartial;
+        }
+    }
+
+    CompletableFuture<Message> send(Message message) {
+        return stream(message, null);
+    }
+
+    // Partial response frames go to onPartial on the reader thread; the future
+    // completes with the final frame
+    CompletableFuture<Message> stream(Message message, Consumer<Message> onPartial) {
+        Pending slot = new Pending(onPartial);
+        CompletableFuture<Message> future = slot.future;
+        if (closed) {
+            future.completeExceptionally(new IOException("Connection to " + peer + " is closed"));
+            return future;
+        }
+
+        long requestId = message.getRequestId();
+        pending.put(requestId, slot);
+        if (message.getType() != Message.MessageType.PING) {
+            lastUsed = System.currentTimeMillis(); // health checks must not keep an idle connection alive
+        }
+        try {
+            MessageCodec.writeFrames(message, protocolVersion, frame -> {
+                writeLock.lock();
+                try {
+                    out.write(frame);
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            });
+        } catch (IOException e) {
+            pending.remove(requestId);
+            future.completeExceptionally(e);
+            close();
+        }
+        return future;
+    }
+
+    // Called when a caller gives up waiting so the slot does not leak
+    void abandon(long requestId) {
+        pending.remove(requestId);
+    }
+
+    private void readLoop() {
+        MessageCodec.Assembler assembler = new MessageCodec.Assembler();
+        try {
+            while (!closed) {
+                Message response = assembler.read(in);
+                if (response == null) {
+                    break;
+                }
+                if (response.isPartial()) {
+                    Pending slot = pending.get(response.getRequestId());
+                    if (slot != null && slot.onPartial != null) {
+                        try {
+                            slot.onPartial.accept(response);
+                        } catch (RuntimeException e) {
+                            pending.remove(response.getRequestId());
+                            slot.future.completeExceptionally(e);
+                        }
+                    }
+                    continue;
+                }
+                Pending slot = pending.remove(response.getRequestId());
+                if (slot != null) {
+                    slot.future.complete(response);
+                }
+            }
+        } catch (Exception e) {
+            if (!closed) {
+                Log.warn(null, "Connection to " + peer + " lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    int inFlight() {
+        return pending.size();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    boolean isOpen() {
+        return !closed && !socket.isClosed();
+    }
+
+    String getPeer() {
+        return peer;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        IOException cause = new IOException("Connection to " + peer + " closed");
+        for (Long id : pending.keySet()) {
+            Pending slot = pending.remove(id);
+            if (slot != null) {
+                slot.future.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,892 @@
+package node;
+
+import core.HashUtil;
+import core.Log;
+import core.RingManager;
+import core.Versioned;
+import metrics.MetricsRegistry;
+import storage.DurabilityConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+// Dynamo-style coordinator. A client PUT goes to all N replicas of the key in parallel
+// and is acknowledged once W of them have applied it; a GET asks R replicas and answers
+// once R have replied. Every request has a deadline. A read that has not completed
+// within the recent replica p99 is retried against a replica not yet asked.
+//
+// Every write is stamped here with a hybrid-clock version and replicas keep only the newest
+// version they see. A read returns the newest version among the replies and, in the
+// background, sends it to the replicas that answered with an older one or none (read repair).
+// With a HotKeyCache, keys this node does not replicate are cached after a read, and a GET at
+// ONE for a cached key is answered without contacting any replica; stronger levels always go
+// to a quorum. Writes through this coordinator update the cached copy.
+//
+// MULTI_PUT / MULTI_GET apply the same rules per key. Replica writes, single or batched,
+// go through one ReplicationChannel per replica, an ordered stream of REPLICA_MULTI_PUT batches
+// that hints writes to disk while the replica is down; multi-key reads send one
+// REPLICA_MULTI_GET per replica.
+//
+// SCAN asks every replica set whose token ranges overlap the key range: all of them under a
+// hashing partitioner, only the arc covering the range under the order-preserving one.
+//
+// Replicas the failure detector suspects are never waited on: reads and scans skip them,
+// writes to them are hinted straight away, and a request that cannot reach its consistency
+// level among the live replicas fails as UNAVAILABLE before anything is sent.
+class QuorumCoordinator {
+
+    static final String NOT_FOUND = "NOT_FOUND";
+    private static final int SCAN_PAGE_ENTRIES = Integer.getInteger("kv.scan.pageEntries", 256);
+
+    private final String nodeId;
+    private final RingManager ring;
+    private final int replicationFactor;
+    private final VersionedStore store;
+    private final Function<String, InetSocketAddress> addressOf;
+    private final Predicate<String> isAlive;
+    private final ConsistencyLevel defaultRead;
+    private final ConsistencyLevel defaultWrite;
+    private final long timeoutMs;
+
+    private final ConnectionPool pool = NodeClient.getPool();
+    // Connecting to a dead replica blocks; doing it off the request thread keeps fan-out parallel
+    private final ExecutorService sender = Executors.newVirtualThreadPerTaskExecutor();
+    private final LatencyTracker replicaReads = new LatencyTracker(
+            TimeUnit.MILLISECONDS.toNanos(20), TimeUnit.MILLISECONDS.toNanos(1));
+    private final Map<String, ReplicationChannel> channels = new ConcurrentHashMap<>();
+    private final Path hintsRoot;
+    private final DurabilityConfig durability;
+    private final HotKeyCache cache;
+    private final MetricsRegistry metrics;
+
+    private final AtomicLong speculativeReads = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong unavailable = new AtomicLong();
+    private final AtomicLong readRepairs = new AtomicLong();
+
+    QuorumCoordinator(String nodeId, RingManager ring, int replicationFactor, VersionedStore store,
+                      Function<String, InetSocketAddress> addressOf, Predicate<String> isAlive,
+                      ConsistencyLevel defaultRead,
+                      ConsistencyLevel defaultWrite, long timeoutMs, DurabilityConfig durability,
+                      HotKeyCache cache, MetricsRegistry metrics) throws IOException {
+        this.nodeId = nodeId;
+        this.ring = ring;
+        this.replicationFactor = replicationFactor;
+        this.store = store;
+        this.addressOf = addressOf;
+        this.isAlive = isAlive;
+        this.defaultRead = defaultRead;
+        this.defaultWrite = defaultWrite;
+        this.timeoutMs = timeoutMs;
+        this.durability = durability;
+        this.cache = cache;
+        this.metrics = metrics;
+        metrics.gauge("speculative_reads", speculativeReads::get);
+        metrics.gauge("quorum_timeouts", timeouts::get);
+        metrics.gauge("quorum_unavailable", unavailable::get);
+        metrics.gauge("read_repairs", readRepairs::get);
+        // Without a data dir hints only survive as long as the process does
+        this.hintsRoot = durability.isEnabled()
+                ? durability.getDataDir().resolve("hints")
+                : Files.createTempDirectory("kv-hints-" + nodeId);
+        resumeHintedReplicas();
+    }
+
+    // Hints written before a restart are replayed by their channel, so open one for each
+    private void resumeHintedReplicas() throws IOException {
+        if (!Files.isDirectory(hintsRoot)) return;
+        try (var dirs = Files.list(hintsRoot)) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                if (Files.isDirectory(dir) && !dir.getFileName().toString().equals(nodeId)) {
+                    channelFor(dir.getFileName().toString());
+                }
+            }
+        }
+    }
+
+    Message write(Message request) {
+        return write(request, null);
+    }
+
+    // With `computed` set, writes that version instead of stamping the request's own value;
+    // see ConditionalWriter
+    Message write(Message request, LongFunction<Versioned> computed) {
+        ConsistencyLevel level = request.getConsistency() != null ? request.getConsistency() : defaultWrite;
+        List<String> replicas = ring.getWriteNodesForKey(request.getKey(), replicationFactor);
+        Quorum quorum = new Quorum(writeQuorum(level, request.getKey(), replicas));
+        int live = live(replicas).size();
+        if (live < quorum.required) {
+            return unavailable(request.getType() + " " + request.getKey(), live, quorum.required, level);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        long version = store.clock().now();
+        Versioned written = computed != null ? computed.apply(version) : stamp(request, version, request.getValue());
+        Message replicaPut = new Message(Message.MessageType.REPLICA_PUT, request.getKey(), written.encode(), nodeId);
+        for (String replica : replicas) {
+            contact(replica, replicaPut, quorum, deadline, null);
+        }
+
+        if (!quorum.await(replicas, replicas.size(), deadline, null)) {
+            // Some replicas may have it, some not: the cached copy can no longer be trusted
+            if (cache != null) cache.invalidate(request.getKey());
+            return failure(request, quorum, level);
+        }
+        if (cache != null) cache.refresh(request.getKey(), written);
+        // The ack carries the version only; echoing the value would send a large one all the way back
+        return new Message(Message.MessageType.RESPONSE, request.getKeyBytes(), null, nodeId, 0L).withVersion(version);
+    }
+
+    // What a client write stores: a tombstone for DELETE, otherwise the value, expiring if a TTL was asked
+    // for. Large values are compressed here, once, and stay compressed on every replica.
+    static Versioned stamp(Message request, long version, String value) {
+        long now = System.currentTimeMillis();
+        if (request.getType() == Message.MessageType.DELETE) {
+            return Versioned.tombstone(version, now + VersionedStore.TOMBSTONE_GRACE_MS);
+        }
+        return new Versioned(version, value, request.getTtlMs() > 0 ? now + request.getTtlMs() : 0L).compressed();
+    }
+
+    Message read(Message request) {
+        ConsistencyLevel level = request.getConsistency() != null ? request.getConsistency() : defaultRead;
+        // A cached copy can trail a quorum write made through another coordinator, so only ONE uses it
+        if (cache != null && level == ConsistencyLevel.ONE) {
+            Versioned cached = cache.get(request.getKey());
+            if (cached != null && !cached.isLive(System.currentTimeMillis())) {
+                return new Message(Message.MessageType.RESPONSE, request.getKey(), NOT_FOUND, nodeId);
+            }
+            if (cached != null) {
+                return new Message(Message.MessageType.RESPONSE, request.getKeyBytes(), cached.getValueBytes(), nodeId, 0L)
+                        .withVersion(cached.getVersion());
+            }
+        }
+        List<String> replicas = ring.getNNodesForKey(request.getKey(), replicationFactor);
+        Quorum quorum = new Quorum(level.required(replicas.size()));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        List<String> order = readOrder(replicas);
+        if (order.size() < quorum.required) {
+            return unavailable(request.getType() + " " + request.getKey(), order.size(), quorum.required, level);
+        }
+
+        Message replicaGet = new Message(Message.MessageType.REPLICA_GET, request.getKeyBytes(), null, nodeId, 0L)
+                .withTraceId(request.getTraceId());
+        for (int i = 0; i < quorum.required; i++) {
+            contact(order.get(i), replicaGet, quorum, deadline, replicaReads);
+        }
+
+        Speculation speculation = replica -> contact(replica, replicaGet, quorum, deadline, replicaReads);
+        if (!quorum.await(order, quorum.required, deadline, speculation)) {
+            return failure(request, quorum, level);
+        }
+        return resolve(request.getKey(), quorum, !replicas.contains(nodeId));
+    }
+
+    // While a range moves, writes also go to its pending replicas and need their acks on top of
+    // the usual quorum, so a write acknowledged by the old owners cannot be missing on the new
+    private int writeQuorum(ConsistencyLevel level, String key, List<String> targets) {
+        int owners = ring.getNNodesForKey(key, replicationFactor).size();
+        return Math.min(targets.size(), level.required(owners) + targets.size() - owners);
+    }
+
+    // Ourselves first when we hold a copy, then the other live replicas in preference order
+    private List<String> readOrder(List<String> replicas) {
+        List<String> order = new ArrayList<>(replicas.size());
+        if (replicas.contains(nodeId)) order.add(nodeId);
+        for (String replica : replicas) {
+            if (!replica.equals(nodeId) && isAlive.test(replica)) order.add(replica);
+        }
+        return order;
+    }
+
+    private List<String> live(List<String> replicas) {
+        List<String> live = new ArrayList<>(replicas.size());
+        for (String replica : replicas) {
+            if (isAlive.test(replica)) live.add(replica);
+        }
+        return live;
+    }
+
+    private Message unavailable(String what, int live, int required, ConsistencyLevel level) {
+        unavailable.incrementAndGet();
+        String reason = "UNAVAILABLE: " + live + "/" + required + " replicas alive for " + level;
+        Log.warn(nodeId, what + " failed, " + reason);
+        return new Message(Message.MessageType.RESPONSE, "ERROR", reason, nodeId);
+    }
+
+    private Message resolve(String key, Quorum quorum, boolean cacheable) {
+        Map<String, Versioned> replies = new HashMap<>();
+        quorum.lock.lock();
+        try {
+            for (int i = 0; i < quorum.responses.size(); i++) {
+                Message response = quorum.responses.get(i);
+                // Replicas answer with the stored encoding, which keeps tombstones and expiry
+                boolean missing = NOT_FOUND.equals(response.getValue());
+                replies.put(quorum.responders.get(i), missing ? null : Versioned.decode(response.getValue()));
+            }
+        } finally {
+            quorum.lock.unlock();
+        }
+        Versioned newest = newest(replies.values());
+        if (newest == null) {
+            return new Message(Message.MessageType.RESPONSE, key, NOT_FOUND, nodeId);
+        }
+        Map<String, KeyValueBatch> repairs = new HashMap<>();
+        addRepairs(key, newest, replies, repairs);
+        sendRepairs(repairs);
+        if (cache != null && cacheable) cache.put(key, newest);
+        if (!newest.isLive(System.currentTimeMillis())) {
+            return new Message(Message.MessageType.RESPONSE, key, NOT_FOUND, nodeId);
+        }
+        return new Message(Message.MessageType.RESPONSE, key.getBytes(StandardCharsets.UTF_8), newest.getValueBytes(), nodeId, 0L)
+                .withVersion(newest.getVersion());
+    }
+
+    private static Versioned newest(Iterable<Versioned> versions) {
+        Versioned newest = null;
+        for (Versioned v : versions) {
+            if (v != null && v.isNewerThan(newest)) newest = v;
+        }
+        return newest;
+    }
+
+    // Queues the newest version for every replica that answered with something older
+    private void addRepairs(String key, Versioned newest, Map<String, Versioned> replies,
+                            Map<String, KeyValueBatch> repairs) {
+        byte[] keyBytes = null;
+        byte[] valueBytes = null;
+        for (Map.Entry<String, Versioned> reply : replies.entrySet()) {
+            if (!newest.isNewerThan(reply.getValue())) continue;
+            if (keyBytes == null) {
+                keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                valueBytes = newest.encode().getBytes(StandardCharsets.UTF_8);
+            }
+            repairs.computeIfAbsent(reply.getKey(), r -> new KeyValueBatch()).add(keyBytes, valueBytes);
+        }
+    }
+
+    // Fire and forget: the read has its answer, a repair that fails is left to anti-entropy
+    private void sendRepairs(Map<String, KeyValueBatch> repairs) {
+        for (Map.Entry<String, KeyValueBatch> e : repairs.entrySet()) {
+            readRepairs.addAndGet(e.getValue().count());
+            if (!e.getKey().equals(nodeId)) {
+                channelFor(e.getKey()).enqueue(e.getValue(), System.nanoTime());
+                continue;
+            }
+            try {
+                KeyValueBatch.decode(e.getValue().toByteArray(), (k, v) -> store.apply(
+                        new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            } catch (IOException ex) {
+                Log.error(nodeId, "Local read repair failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    Message multiWrite(Message request) {
+        ConsistencyLevel level = request.getConsistency() != null ? request.getConsistency() : defaultWrite;
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        try {
+            KeyValueBatch.decode(request.getValueBytes(), (k, v) -> {
+                keys.add(k);
+                values.add(v);
+            });
+        } catch (IOException e) {
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "Malformed batch: " + e.getMessage(), nodeId);
+        }
+        // Nothing is written unless every key has enough live replicas
+        List<List<String>> replicaLists = new ArrayList<>(keys.size());
+        int[] requiredAcks = new int[keys.size()];
+        for (byte[] key : keys) {
+            String k = new String(key, StandardCharsets.UTF_8);
+            List<String> replicas = ring.getWriteNodesForKey(k, replicationFactor);
+            int live = live(replicas).size();
+            int required = writeQuorum(level, k, replicas);
+            if (live < required) {
+                return unavailable(request.getType() + " " + k, live, required, level);
+            }
+            replicaLists.add(replicas);
+            requiredAcks[replicaLists.size() - 1] = required;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long version = store.clock().now();
+        for (int i = 0; i < values.size(); i++) {
+            String value = new String(values.get(i), StandardCharsets.UTF_8);
+            values.set(i, stamp(request, version, value).encode().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // One batch per replica for the whole request, so acks are counted per replica, not per key
+        KeyQuorums quorums = new KeyQuorums(keys.size());
+        Map<String, KeyValueBatch> perReplica = new HashMap<>();
+        Map<String, List<Integer>> indexes = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = new String(keys.get(i), StandardCharsets.UTF_8);
+            List<String> replicas = replicaLists.get(i);
+            quorums.expect(i, requiredAcks[i], replicas.size());
+            for (String replica : replicas) {
+                if (replica.equals(nodeId)) {
+                    try {
+                        store.apply(key, new String(values.get(i), StandardCharsets.UTF_8));
+                        quorums.ack(List.of(i));
+                    } catch (IOException e) {
+                        Log.error(nodeId, "Local put of " + key + " failed: " + e.getMessage());
+                        quorums.fail(List.of(i));
+                    }
+                } else {
+                    perReplica.computeIfAbsent(replica, r -> new KeyValueBatch()).add(keys.get(i), values.get(i));
+                    indexes.computeIfAbsent(replica, r -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        for (Map.Entry<String, KeyValueBatch> e : perReplica.entrySet()) {
+            List<Integer> covered = indexes.get(e.getKey());
+            if (!isAlive.test(e.getKey())) channelFor(e.getKey()).suspect();
+            channelFor(e.getKey()).enqueue(e.getValue(), deadline).whenComplete((ok, error) -> {
+                if (error != null) quorums.fail(covered);
+                else quorums.ack(covered);
+            });
+        }
+
+        boolean written = quorums.await(deadline);
+        if (cache != null) {
+            for (int i = 0; i < keys.size(); i++) {
+                String key = new String(keys.get(i), StandardCharsets.UTF_8);
+                if (written) cache.refresh(key, Versioned.decode(new String(values.get(i), StandardCharsets.UTF_8)));
+                else cache.invalidate(key);
+            }
+        }
+        if (!written) {
+            return multiFailure(request, quorums.timedOut, quorums.satisfied(), keys.size(), level);
+        }
+        return new Message(Message.MessageType.RESPONSE, "MULTI_PUT", String.valueOf(keys.size()), nodeId);
+    }
+
+    // Reads run in rounds: each key still short of R replies asks its next unasked replicas,
+    // with all keys bound for one replica sharing a single REPLICA_MULTI_GET. A replica that
+    // fails simply leaves its keys for the next round.
+    Message multiRead(Message request) {
+        ConsistencyLevel level = request.getConsistency() != null ? request.getConsistency() : defaultRead;
+        List<String> keys = new ArrayList<>();
+        try {
+            KeyValueBatch.decode(request.getValueBytes(), (k, v) -> keys.add(new String(k, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            return new Message(Message.MessageType.RESPONSE, "ERROR", "Malformed batch: " + e.getMessage(), nodeId);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        int n = keys.size();
+        List<List<String>> orders = new ArrayList<>(n);
+        List<Map<String, Versioned>> replies = new ArrayList<>(n);
+        int[] required = new int[n];
+        int[] asked = new int[n];
+        for (int i = 0; i < n; i++) {
+            List<String> replicas = ring.getNNodesForKey(keys.get(i), replicationFactor);
+            orders.add(readOrder(replicas));
+            replies.add(new HashMap<>());
+            required[i] = level.required(replicas.size());
+        }
+
+        boolean timedOut = false;
+        while (true) {
+            Map<String, List<Integer>> plan = new HashMap<>();
+            boolean shortOfReplicas = false;
+            for (int i = 0; i < n; i++) {
+                int need = required[i] - replies.get(i).size();
+                while (need > 0 && asked[i] < orders.get(i).size()) {
+                    plan.computeIfAbsent(orders.get(i).get(asked[i]++), r -> new ArrayList<>()).add(i);
+                    need--;
+                }
+                if (need > 0) shortOfReplicas = true;
+            }
+            if (shortOfReplicas || plan.isEmpty()) break;
+
+            Map<String, CompletableFuture<Message>> inFlight = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> e : plan.entrySet()) {
+                String replica = e.getKey();
+                if (replica.equals(nodeId)) continue;
+                KeyValueBatch batch = new KeyValueBatch();
+                for (int i : e.getValue()) batch.add(keys.get(i).getBytes(StandardCharsets.UTF_8), new byte[0]);
+                Message get = new Message(Message.MessageType.REPLICA_MULTI_GET, null, batch.toByteArray(), nodeId, 0L)
+                        .withTraceId(request.getTraceId());
+                long remainingMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                InetSocketAddress address = addressOf.apply(replica);
+                inFlight.put(replica, CompletableFuture
+                        .supplyAsync(() -> pool.sendAsync(address.getHostString(), address.getPort(), get, remainingMs), sender)
+                        .thenCompose(f -> f));
+            }
+
+            List<Integer> local = plan.get(nodeId);
+            if (local != null) {
+                for (int i : local) {
+                    try {
+                        replies.get(i).put(nodeId, store.get(keys.get(i)));
+                    } catch (IOException e) {
+                        Log.error(nodeId, "Local get of " + keys.get(i) + " failed: " + e.getMessage());
+                    }
+                }
+            }
+
+            for (Map.Entry<String, CompletableFuture<Message>> e : inFlight.entrySet()) {
+                Map<String, String> found = new HashMap<>();
+                try {
+                    long remaining = deadline - System.nanoTime();
+                    Message response = e.getValue().get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                    if ("ERROR".equals(response.getKey())) continue;
+                    KeyValueBatch.decode(response.getValueBytes(), (k, v) -> found.put(
+                            new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+                } catch (TimeoutException ex) {
+                    timedOut = true;
+                    continue;
+                } catch (Exception ex) {
+                    if (ex instanceof InterruptedException) Thread.currentThread().interrupt();
+                    continue;
+                }
+                for (int i : plan.get(e.getKey())) {
+                    replies.get(i).put(e.getKey(), Versioned.decode(found.get(keys.get(i))));
+                }
+            }
+            if (timedOut || System.nanoTime() >= deadline) {
+                timedOut = true;
+                break;
+            }
+        }
+
+        KeyValueBatch result = new KeyValueBatch();
+        Map<String, KeyValueBatch> repairs = new HashMap<>();
+        long now = System.currentTimeMillis();
+        int satisfied = 0;
+        for (int i = 0; i < n; i++) {
+            if (replies.get(i).size() < required[i]) continue;
+            satisfied++;
+            Versioned newest = newest(replies.get(i).values());
+            if (newest != null) {
+                if (newest.isLive(now)) {
+                    result.add(keys.get(i).getBytes(StandardCharsets.UTF_8), newest.getValueBytes());
+                }
+                addRepairs(keys.get(i), newest, replies.get(i), repairs);
+            }
+        }
+        sendRepairs(repairs);
+        if (satisfied < n) {
+            return multiFailure(request, timedOut, satisfied, n, level);
+        }
+        // Keys missing from the reply were not found
+        return new Message(Message.MessageType.RESPONSE, null, result.toByteArray(), nodeId, 0L);
+    }
+
+    private Message multiFailure(Message request, boolean timedOut, int satisfied, int total, ConsistencyLevel level) {
+        (timedOut ? timeouts : unavailable).incrementAndGet();
+        String reason = (timedOut ? "TIMEOUT" : "UNAVAILABLE") + ": " + satisfied + "/" + total
+                + " keys reached " + level;
+        Log.warn(nodeId, request.getType() + " failed, " + reason);
+        return new Message(Message.MessageType.RESPONSE, "ERROR", reason, nodeId);
+    }
+
+    // Every contacted node returns its first `limit` keys of the range; the union, newest
+    // version per key, holds the true first `limit`. At least one replica of each replica set
+    // has to answer. Pages go back as partial frames; the final frame's key is the last key
+    // returned when more may follow, empty when the range is exhausted.
+    void scan(Message request, ResponseSink sink) throws IOException {
+        ScanRequest scan;
+        try {
+            scan = ScanRequest.decode(request);
+        } catch (IOException | IllegalArgumentException e) {
+            sink.send(new Message(Message.MessageType.RESPONSE, "ERROR", "Malformed scan: " + e.getMessage(), nodeId));
+            return;
+        }
+        String from = scan.from();
+        List<List<String>> replicaSets = HashUtil.algorithm().isOrdered()
+                ? ring.getReplicaSetsForTokens(from == null ? 0 : HashUtil.token(from),
+                        scan.endKey == null ? -1L : HashUtil.token(scan.endKey), replicationFactor)
+                : ring.getReplicaSetsForTokens(0, -1L, replicationFactor);
+        Set<String> nodes = new LinkedHashSet<>();
+        for (List<String> set : replicaSets) nodes.addAll(live(set));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        Message replicaScan = new ScanRequest(from, scan.endKey, scan.limit, null)
+                .toMessage(Message.MessageType.REPLICA_SCAN, nodeId).withTraceId(request.getTraceId());
+        Map<String, CompletableFuture<Message>> pending = new HashMap<>();
+        for (String node : nodes) {
+            if (node.equals(nodeId)) continue;
+            InetSocketAddress address = addressOf.apply(node);
+            pending.put(node, pool.sendAsync(address.getHostString(), address.getPort(), replicaScan, timeoutMs));
+        }
+
+        TreeMap<String, Versioned> merged = new TreeMap<>();
+        Set<String> answered = new HashSet<>();
+        boolean truncated = false;
+        if (nodes.contains(nodeId)) {
+            try {
+                List<Map.Entry<String, String>> local = store.engine().scan(from, scan.endKey, scan.limit);
+                for (Map.Entry<String, String> e : local) newest(merged, e.getKey(), Versioned.decode(e.getValue()));
+                truncated = local.size() >= scan.limit;
+                answered.add(nodeId);
+            } catch (IOException e) {
+                Log.error(nodeId, "Local scan failed: " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<Message>> e : pending.entrySet()) {
+            try {
+                Message reply = e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if ("ERROR".equals(reply.getKey())) continue;
+                int count = KeyValueBatch.decode(reply.getValueBytes(), (k, v) -> newest(merged,
+                        new String(k, StandardCharsets.UTF_8), Versioned.decode(new String(v, StandardCharsets.UTF_8))));
+                truncated |= count >= scan.limit;
+                answered.add(e.getKey());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception ex) {
+                // counted below as a missing replica
+            }
+        }
+        for (List<String> set : replicaSets) {
+            if (Collections.disjoint(set, answered)) {
+                unavailable.incrementAndGet();
+                String reason = "UNAVAILABLE: no replica of " + set + " answered the scan";
+                Log.warn(nodeId, "SCAN failed, " + reason);
+                sink.send(new Message(Message.MessageType.RESPONSE, "ERROR", reason, nodeId));
+                return;
+            }
+        }
+
+        // Deleted and expired keys count against the limit, since replicas counted them too,
+        // so a page can hold fewer than `limit` keys and still be followed by more
+        KeyValueBatch page = new KeyValueBatch();
+        String last = null;
+        int seen = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Versioned> e : merged.entrySet()) {
+            if (seen == scan.limit) {
+                truncated = true;
+                break;
+            }
+            if (page.count() >= SCAN_PAGE_ENTRIES) {
+                sink.send(new Message(Message.MessageType.RESPONSE, null, page.toByteArray(), nodeId, 0L).asPartial());
+                page.clear();
+            }
+            if (e.getValue().isLive(now)) {
+                page.add(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue().getValueBytes());
+            }
+            last = e.getKey();
+            seen++;
+        }
+        byte[] resume = truncated && last != null ? last.getBytes(StandardCharsets.UTF_8) : null;
+        sink.send(new Message(Message.MessageType.RESPONSE, resume, page.toByteArray(), nodeId, 0L));
+    }
+
+    private static void newest(Map<String, Versioned> merged, String key, Versioned candidate) {
+        merged.merge(key, candidate, (a, b) -> b.isNewerThan(a) ? b : a);
+    }
+
+    private ReplicationChannel channelFor(String replica) {
+        return channels.computeIfAbsent(replica, r -> {
+            InetSocketAddress address = addressOf.apply(r);
+            ReplicationChannel channel = new ReplicationChannel(nodeId, r, address.getHostString(), address.getPort(),
+                    pool, timeoutMs, hintsRoot.resolve(r), durability.getFsyncPolicy(), durability.getFsyncIntervalMs(),
+                    metrics.histogram(MetricsRegistry.name("replication_lag", "replica", r)));
+            metrics.gauge(MetricsRegistry.name("replication_queue_depth", "replica", r), channel::queued);
+            metrics.gauge(MetricsRegistry.name("replication_hint_backlog", "replica", r),
+                    () -> channel.getHinted() - channel.getReplayed());
+            metrics.gauge(MetricsRegistry.name("replication_backpressured", "replica", r), channel::getBackpressured);
+            metrics.gauge(MetricsRegistry.name("replica_up", "replica", r),
+                    () -> channel.getState() == ReplicationChannel.State.UP ? 1 : 0);
+            return channel;
+        });
+    }
+
+    private Message failure(Message request, Quorum quorum, ConsistencyLevel level) {
+        boolean timedOut;
+        int acks;
+        quorum.lock.lock();
+        try {
+            timedOut = quorum.timedOut;
+            acks = quorum.acks;
+        } finally {
+            quorum.lock.unlock();
+        }
+        (timedOut ? timeouts : unavailable).incrementAndGet();
+        String reason = (timedOut ? "TIMEOUT" : "UNAVAILABLE") + ": " + acks + "/" + quorum.required
+                + " replicas answered for " + level;
+        Log.warn(nodeId, request.getType() + " " + request.getKey() + " failed, " + reason);
+        return new Message(Message.MessageType.RESPONSE, "ERROR", reason, nodeId);
+    }
+
+    private void contact(String replica, Message message, Quorum quorum, long deadline, LatencyTracker latency) {
+        if (replica.equals(nodeId)) {
+            applyLocally(message, quorum);
+            return;
+        }
+        if (message.getType() == Message.MessageType.REPLICA_PUT) {
+            if (!isAlive.test(replica)) channelFor(replica).suspect();
+            channelFor(replica).enqueue(message.getKeyBytes(), message.getValueBytes(), deadline).whenComplete((ok, error) -> {
+                if (error != null) quorum.failed();
+                else quorum.succeeded(replica, message);
+            });
+            return;
+        }
+        long start = System.nanoTime();
+        long remainingMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - start));
+        InetSocketAddress address = addressOf.apply(replica);
+        CompletableFuture
+                .supplyAsync(() -> pool.sendAsync(address.getHostString(), address.getPort(), message, remainingMs), sender)
+                .thenCompose(f -> f)
+                .whenComplete((response, error) -> {
+                    if (error != null || response == null || "ERROR".equals(response.getKey())) {
+                        quorum.failed();
+                        return;
+                    }
+                    if (latency != null) latency.record(System.nanoTime() - start);
+                    quorum.succeeded(replica, response);
+                });
+    }
+
+    private void applyLocally(Message message, Quorum quorum) {
+        try {
+            if (message.getType() == Message.MessageType.REPLICA_PUT) {
+                store.apply(message.getKey(), message.getValue());
+                quorum.succeeded(nodeId, message);
+            } else {
+                Versioned stored = store.get(message.getKey());
+                quorum.succeeded(nodeId, stored == null
+                        ? new Message(Message.MessageType.RESPONSE, message.getKey(), NOT_FOUND, nodeId)
+                        : new Message(Message.MessageType.RESPONSE, message.getKey(), stored.encode(), nodeId)
+                                .withVersion(stored.getVersion()));
+            }
+        } catch (IOException e) {
+            Log.error(nodeId, "Local " + message.getType() + " failed: " + e.getMessage());
+            quorum.failed();
+        }
+    }
+
+    long getSpeculativeReads() {
+        return speculativeReads.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    long getUnavailable() {
+        return unavailable.get();
+    }
+
+    long getReadRepairs() {
+        return readRepairs.get();
+    }
+
+    long getReplicaReadP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(replicaReads.p99Nanos());
+    }
+
+    // replica -> "state queued=N hinted=N replayed=N"
+    Map<String, String> replicationStatus() {
+        Map<String, String> status = new java.util.TreeMap<>();
+        for (Map.Entry<String, ReplicationChannel> e : channels.entrySet()) {
+            ReplicationChannel c = e.getValue();
+            status.put(e.getKey(), c.getState() + " queued=" + c.queued() + " hinted=" + c.getHinted()
+                    + " replayed=" + c.getReplayed() + " backpressured=" + c.getBackpressured());
+        }
+        return status;
+    }
+
+    void shutdown() {
+        for (ReplicationChannel channel : channels.values()) channel.stop();
+        sender.shutdownNow();
+    }
+
+    // Per-key write quorums for a MULTI_PUT; done when every key has W acks, or as soon as
+    // one key can no longer get them
+    private static final class KeyQuorums {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final int[] required;
+        final int[] replicas;
+        final int[] acks;
+        final int[] failures;
+        int satisfied;
+        int doomed;
+        boolean timedOut;
+
+        KeyQuorums(int keys) {
+            required = new int[keys];
+            replicas = new int[keys];
+            acks = new int[keys];
+            failures = new int[keys];
+        }
+
+        void expect(int key, int required, int replicas) {
+            lock.lock();
+            try {
+                this.required[key] = required;
+                this.replicas[key] = replicas;
+                if (required == 0) satisfied++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void ack(List<Integer> keys) {
+            lock.lock();
+            try {
+                for (int key : keys) {
+                    if (++acks[key] == required[key]) satisfied++;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void fail(List<Integer> keys) {
+            lock.lock();
+            try {
+                for (int key : keys) {
+                    if (++failures[key] == replicas[key] - required[key] + 1) doomed++;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int satisfied() {
+            lock.lock();
+            try {
+                return satisfied;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean await(long deadline) {
+            lock.lock();
+            try {
+                while (satisfied < required.length && doomed == 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timedOut = true;
+                        return false;
+                    }
+                    changed.awaitNanos(remaining);
+                }
+                return doomed == 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private interface Speculation {
+        void contact(String replica);
+    }
+
+    // Guarded by a lock rather than a monitor so a coordinator waiting on a virtual thread
+    // does not pin its carrier
+    private final class Quorum {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final int required;
+        final List<String> responders = new ArrayList<>();
+        final List<Message> responses = new ArrayList<>();
+        int acks;
+        int failures;
+        boolean timedOut;
+
+        Quorum(int required) {
+            this.required = required;
+        }
+
+        void succeeded(String replica, Message response) {
+            lock.lock();
+            try {
+                acks++;
+                responders.add(replica);
+                responses.add(response);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void failed() {
+            lock.lock();
+            try {
+                failures++;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Waits until enough replicas answered. Of the candidates, the first `contacted` have
+        // been asked already; with a speculation hook the rest are asked one at a time, after a
+        // p99 without an answer or straight away when an asked replica fails.
+        boolean await(List<String> candidates, int contacted, long deadline, Speculation speculation) {
+            lock.lock();
+            try {
+                return awaitLocked(candidates, contacted, deadline, speculation);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean awaitLocked(List<String> candidates, int contacted, long deadline, Speculation speculation) {
+            long speculateAt = System.nanoTime() + replicaReads.p99Nanos();
+            while (acks < required) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    timedOut = true;
+                    return false;
+                }
+                int outstanding = contacted - acks - failures;
+                boolean shortOfReplicas = acks + outstanding < required;
+                if (speculation != null && contacted < candidates.size() && (shortOfReplicas || now >= speculateAt)) {
+                    if (!shortOfReplicas) speculativeReads.incrementAndGet();
+                    speculation.contact(candidates.get(contacted++));
+                    speculateAt = now + replicaReads.p99Nanos();
+                    continue;
+                }
+                if (shortOfReplicas) {
+                    return false;
+                }
+                long wakeAt = speculation != null && contacted < candidates.size()
+                        ? Math.min(deadline, speculateAt) : deadline;
+                try {
+                    changed.awaitNanos(wakeAt - now);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
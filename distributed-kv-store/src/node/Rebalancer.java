@@ -0,0 +1,347 @@
+package node;
+
+import core.HashUtil;
+import core.Log;
+import core.RangeMove;
+import core.RingManager;
+import metrics.MetricsRegistry;
+import storage.StorageSnapshot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Moves data when the ring changes, so keys stay reachable on their new owners.
+//
+// A bootstrapping node is JOINING: coordinators send it writes for the ranges it is about
+// to own but keep reading from the current owners. After kv.rebalance.ringDelayMs, long
+// enough for every coordinator to have heard, it pulls each range it gains from one live
+// current replica (STREAM_RANGE, one request per source listing all of that source's
+// ranges, answered in partial-frame chunks) and then announces NORMAL, which makes it an
+// owner everywhere. A decommissioned node does the reverse: LEAVING, the same delay, a push
+// of every range to the node that gains it, then LEFT.
+//
+// Senders pace themselves to kv.rebalance.bytesPerSec so a transfer does not crowd out
+// foreground requests. On a partitioned engine they read only the partitions whose tokens
+// overlap the ranges being moved. Streamed values go through VersionedStore and never replace a newer
+// write that reached the new owner directly. Old owners keep their copies; they are no
+// longer read.
+final class Rebalancer {
+
+    private static final long RING_DELAY_MS = Long.getLong("kv.rebalance.ringDelayMs", 5 * Gossiper.INTERVAL_MS);
+    private static final long BYTES_PER_SEC = Long.getLong("kv.rebalance.bytesPerSec", 16L * 1024 * 1024);
+    private static final int CHUNK_ENTRIES = 512;
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final long STREAM_TIMEOUT_MS = 10 * 60_000;
+    private static final long PUSH_TIMEOUT_MS = 30_000;
+
+    private final String nodeId;
+    private final RingManager ring;
+    private final int replicationFactor;
+    private final VersionedStore store;
+    private final Gossiper gossiper;
+    private final Function<String, InetSocketAddress> addressOf;
+    private final LongAdder streamedBytes;
+    private final LongAdder streamedEntries;
+
+    Rebalancer(String nodeId, RingManager ring, int replicationFactor, VersionedStore store, Gossiper gossiper,
+               Function<String, InetSocketAddress> addressOf, MetricsRegistry metrics) {
+        this.nodeId = nodeId;
+        this.ring = ring;
+        this.replicationFactor = replicationFactor;
+        this.store = store;
+        this.gossiper = gossiper;
+        this.addressOf = addressOf;
+        this.streamedBytes = metrics.counter("rebalance_bytes");
+        this.streamedEntries = metrics.counter("rebalance_entries");
+    }
+
+    // Streams in every range this node gains, then makes it an owner
+    void bootstrap() throws InterruptedException {
+        // Nothing to stream until gossip has told us who owns what
+        if (ring.getNodeIds().isEmpty()) Log.info(nodeId, "Joining; waiting to hear the ring from a seed");
+        while (ring.getNodeIds().isEmpty()) Thread.sleep(Gossiper.INTERVAL_MS);
+        Log.info(nodeId, "Joining; streaming starts in " + RING_DELAY_MS + "ms, once the cluster sends writes here");
+        Thread.sleep(RING_DELAY_MS);
+        long start = System.nanoTime();
+        List<RangeMove> moves = new ArrayList<>();
+        for (RangeMove move : ring.getPendingMoves(replicationFactor)) {
+            if (move.getTarget().equals(nodeId)) moves.add(move);
+        }
+
+        // Each round asks every range's next live replica; ranges whose source failed go again
+        long[] counts = new long[2]; // entries, bytes
+        for (int attempt = 0; attempt < replicationFactor && !moves.isEmpty(); attempt++) {
+            Map<String, List<RangeMove>> bySource = new LinkedHashMap<>();
+            List<RangeMove> unsourced = new ArrayList<>();
+            for (RangeMove move : moves) {
+                List<String> live = new ArrayList<>();
+                for (String source : move.getSources()) {
+                    if (!source.equals(nodeId) && gossiper.isAlive(source)) live.add(source);
+                }
+                if (attempt < live.size()) bySource.computeIfAbsent(live.get(attempt), s -> new ArrayList<>()).add(move);
+                else unsourced.add(move);
+            }
+            moves = unsourced;
+            for (Map.Entry<String, List<RangeMove>> e : bySource.entrySet()) {
+                try {
+                    pull(e.getKey(), e.getValue(), counts);
+                } catch (IOException | RuntimeException ex) {
+                    Log.warn(nodeId, "Streaming " + e.getValue().size() + " ranges from " + e.getKey() + " failed: "
+                            + ex.getMessage());
+                    moves.addAll(e.getValue());
+                }
+            }
+        }
+        if (!moves.isEmpty()) {
+            Log.warn(nodeId, moves.size() + " ranges had no reachable source; anti-entropy will fill them in");
+        }
+
+        ring.completePending(nodeId);
+        gossiper.announce(Gossiper.Status.NORMAL);
+        Log.info(nodeId, "Joined: " + counts[0] + " entries (" + counts[1] / 1024 + " KB) streamed in "
+                + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    // Hands every range this node holds to the node that takes it over, then leaves the ring
+    void decommission() throws InterruptedException {
+        ring.markLeaving(nodeId);
+        gossiper.announce(Gossiper.Status.LEAVING);
+        Log.info(nodeId, "Leaving; streaming starts in " + RING_DELAY_MS + "ms");
+        Thread.sleep(RING_DELAY_MS);
+        long start = System.nanoTime();
+
+        Map<String, List<RangeMove>> byTarget = new LinkedHashMap<>();
+        for (RangeMove move : ring.getPendingMoves(replicationFactor)) {
+            if (move.getSources().contains(nodeId)) {
+                byTarget.computeIfAbsent(move.getTarget(), t -> new ArrayList<>()).add(move);
+            }
+        }
+        long[] counts = new long[2];
+        try {
+            push(byTarget, counts);
+        } catch (IOException e) {
+            Log.error(nodeId, "Streaming out failed: " + e.getMessage() + "; the remaining replicas still hold the data");
+        }
+
+        ring.completePending(nodeId);
+        gossiper.announce(Gossiper.Status.LEFT);
+        Log.info(nodeId, "Left the ring: " + counts[0] + " entries (" + counts[1] / 1024 + " KB) streamed in "
+                + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    private void pull(String source, List<RangeMove> moves, long[] counts) throws IOException {
+        StringBuilder ranges = new StringBuilder();
+        for (RangeMove move : moves) {
+            ranges.append(Long.toUnsignedString(move.getStart())).append(' ')
+                    .append(Long.toUnsignedString(move.getEnd())).append('\n');
+        }
+        InetSocketAddress address = addressOf.apply(source);
+        Message request = new Message(Message.MessageType.STREAM_RANGE, null, ranges.toString(), nodeId);
+        // Chunks are applied on the connection's reader thread, which also paces the sender
+        Message last = NodeClient.getPool().stream(address.getHostString(), address.getPort(), request,
+                STREAM_TIMEOUT_MS, chunk -> apply(chunk, counts));
+        if ("ERROR".equals(last.getKey())) throw new IOException(source + " refused: " + last.getValue());
+        apply(last, counts);
+    }
+
+    private void apply(Message chunk, long[] counts) {
+        counts[1] += chunk.getValueBytes().length;
+        streamedBytes.add(chunk.getValueBytes().length);
+        try {
+            int applied = KeyValueBatch.decode(chunk.getValueBytes(), (k, v) ->
+                    store.apply(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            counts[0] += applied;
+            streamedEntries.add(applied);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to apply streamed chunk: " + e.getMessage(), e);
+        }
+    }
+
+    // STREAM_RANGE: every stored entry whose token falls in one of the requested ranges
+    void serve(Message request, ResponseSink sink) throws IOException {
+        TokenRanges ranges;
+        try {
+            List<long[]> parsed = new ArrayList<>();
+            for (String line : request.getValue().split("\n")) {
+                if (line.isBlank()) continue;
+                String[] f = line.trim().split(" ");
+                parsed.add(new long[]{Long.parseUnsignedLong(f[0]), Long.parseUnsignedLong(f[1])});
+            }
+            ranges = new TokenRanges(parsed);
+        } catch (RuntimeException e) {
+            sink.send(new Message(Message.MessageType.RESPONSE, "ERROR", "Malformed ranges: " + e.getMessage(), nodeId));
+            return;
+        }
+
+        long start = System.nanoTime();
+        long sent = 0;
+        KeyValueBatch batch = new KeyValueBatch();
+        for (int p : partitionsOverlapping(List.of(ranges))) {
+            try (StorageSnapshot entries = store.engine().snapshot(p)) {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> e = entries.next();
+                    if (!ranges.contains(HashUtil.token(e.getKey()))) continue;
+                    batch.add(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue().getBytes(StandardCharsets.UTF_8));
+                    if (batch.count() >= CHUNK_ENTRIES || batch.byteSize() >= CHUNK_BYTES) {
+                        sent += batch.byteSize();
+                        sink.send(new Message(Message.MessageType.RESPONSE, null, batch.toByteArray(), nodeId, 0L).asPartial());
+                        batch.clear();
+                        pace(start, sent);
+                    }
+                }
+            }
+        }
+        sink.send(new Message(Message.MessageType.RESPONSE, null, batch.toByteArray(), nodeId, 0L));
+    }
+
+    // One pass over the local store, batching each entry for every target whose ranges hold it
+    private void push(Map<String, List<RangeMove>> byTarget, long[] counts) throws IOException {
+        Map<String, TokenRanges> ranges = new HashMap<>();
+        Map<String, KeyValueBatch> batches = new HashMap<>();
+        for (Map.Entry<String, List<RangeMove>> e : byTarget.entrySet()) {
+            List<long[]> list = new ArrayList<>();
+            for (RangeMove move : e.getValue()) list.add(new long[]{move.getStart(), move.getEnd()});
+            ranges.put(e.getKey(), new TokenRanges(list));
+            batches.put(e.getKey(), new KeyValueBatch());
+        }
+        long start = System.nanoTime();
+        long[] sent = {0};
+        for (int p : partitionsOverlapping(ranges.values())) {
+            try (StorageSnapshot entries = store.engine().snapshot(p)) {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> e = entries.next();
+                    long token = HashUtil.token(e.getKey());
+                    for (Map.Entry<String, TokenRanges> target : ranges.entrySet()) {
+                        if (!target.getValue().contains(token)) continue;
+                        KeyValueBatch batch = batches.get(target.getKey());
+                        batch.add(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue().getBytes(StandardCharsets.UTF_8));
+                        if (batch.count() >= CHUNK_ENTRIES || batch.byteSize() >= CHUNK_BYTES) {
+                            send(target.getKey(), batch, counts, sent);
+                            pace(start, sent[0]);
+                        }
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, KeyValueBatch> e : batches.entrySet()) {
+            if (!e.getValue().isEmpty()) send(e.getKey(), e.getValue(), counts, sent);
+        }
+    }
+
+    // Partitions split the uniform token, which is the ring token unless the partitioner is
+    // ORDERED; then any partition may hold any range
+    private List<Integer> partitionsOverlapping(Collection<TokenRanges> wanted) {
+        int n = store.engine().partitions();
+        int bits = Integer.numberOfTrailingZeros(n);
+        List<Integer> partitions = new ArrayList<>();
+        for (int p = 0; p < n; p++) {
+            if (n == 1 || HashUtil.algorithm().isOrdered()) {
+                partitions.add(p);
+                continue;
+            }
+            long first = (long) p << (64 - bits);
+            for (TokenRanges ranges : wanted) {
+                if (ranges.overlaps(first, first + (-1L >>> bits))) {
+                    partitions.add(p);
+                    break;
+                }
+            }
+        }
+        return partitions;
+    }
+
+    // Without a sequence header the replica applies the batch as it comes (see ReplicationSequencer)
+    private void send(String target, KeyValueBatch batch, long[] counts, long[] sent) throws IOException {
+        InetSocketAddress address = addressOf.apply(target);
+        Message put = new Message(Message.MessageType.REPLICA_MULTI_PUT, null, batch.toByteArray(), nodeId, 0L);
+        Message response = NodeClient.getPool().send(address.getHostString(), address.getPort(), put, PUSH_TIMEOUT_MS);
+        if ("ERROR".equals(response.getKey())) throw new IOException(target + " rejected a chunk: " + response.getValue());
+        counts[0] += batch.count();
+        counts[1] += batch.byteSize();
+        sent[0] += batch.byteSize();
+        streamedEntries.add(batch.count());
+        streamedBytes.add(batch.byteSize());
+        batch.clear();
+    }
+
+    // Sleeps until the bytes sent so far fit the configured rate
+    private static void pace(long startNanos, long bytes) throws IOException {
+        long due = startNanos + bytes * TimeUnit.SECONDS.toNanos(1) / BYTES_PER_SEC;
+        long wait = due - System.nanoTime();
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    // Unsigned (start, end] ranges, possibly wrapping, flattened into sorted, disjoint inclusive
+    // intervals in sign-flipped form, so membership is one binary search
+    private static final class TokenRanges {
+        private final long[] from;
+        private final long[] to;
+
+        TokenRanges(List<long[]> ranges) {
+            List<long[]> intervals = new ArrayList<>();
+            for (long[] r : ranges) {
+                long start = r[0], end = r[1];
+                if (start == end) {
+                    intervals.add(new long[]{0, -1L});
+                } else if (Long.compareUnsigned(start, end) < 0) {
+                    intervals.add(new long[]{start + 1, end});
+                } else {
+                    if (start != -1L) intervals.add(new long[]{start + 1, -1L});
+                    intervals.add(new long[]{0, end});
+                }
+            }
+            for (long[] i : intervals) {
+                i[0] ^= Long.MIN_VALUE;
+                i[1] ^= Long.MIN_VALUE;
+            }
+            intervals.sort((a, b) -> Long.compare(a[0], b[0]));
+            List<long[]> merged = new ArrayList<>();
+            for (long[] i : intervals) {
+                long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (last != null && i[0] <= last[1] + 1 && last[1] != Long.MAX_VALUE) {
+                    last[1] = Math.max(last[1], i[1]);
+                } else if (last == null || last[1] != Long.MAX_VALUE) {
+                    merged.add(i);
+                }
+            }
+            from = new long[merged.size()];
+            to = new long[merged.size()];
+            for (int i = 0; i < merged.size(); i++) {
+                from[i] = merged.get(i)[0];
+                to[i] = merged.get(i)[1];
+            }
+        }
+
+        boolean contains(long token) {
+            long t = token ^ Long.MIN_VALUE;
+            int i = Arrays.binarySearch(from, t);
+            if (i < 0) i = -i - 2;
+            return i >= 0 && t <= to[i];
+        }
+
+        // Whether any token in the unsigned, inclusive [lo, hi] is held
+        boolean overlaps(long lo, long hi) {
+            long t = hi ^ Long.MIN_VALUE;
+            int i = Arrays.binarySearch(from, t);
+            if (i < 0) i = -i - 2;
+            return i >= 0 && to[i] >= (lo ^ Long.MIN_VALUE);
+        }
+    }
+}
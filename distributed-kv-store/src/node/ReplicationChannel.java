@@ -0,0 +1,423 @@
+package node;
+
+import core.Log;
+import metrics.LatencyHistogram;
+import storage.FsyncPolicy;
+import storage.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ordered replication stream from this node to one replica.
+//
+// Writes go into a bounded queue; a drainer coalesces them into REPLICA_MULTI_PUT batches
+// (flushed on size or linger time) and keeps up to MAX_IN_FLIGHT batches outstanding
+// without waiting for each ack. Batches carry "<epoch>:<seq>" in the key so the replica
+// applies them in order (see ReplicationSequencer). A full queue blocks the writer until
+// its deadline, which is the backpressure.
+//
+// When a batch fails, or the failure detector suspects the replica, it is marked down and
+// every write for it, queued or new, is appended to a hint log in WAL format under the
+// hints directory instead. A probe
+// pings the replica; once it answers, the hints are replayed in bulk, oldest first, and
+// the channel switches back to direct sends only after the last hint has been applied.
+// Hinted writes still fail their future: they do not count towards a write quorum.
+// Replication lag is measured per batch, from the oldest write in it being queued to the ack.
+class ReplicationChannel {
+
+    enum State { UP, DOWN, REPLAYING }
+
+    private static final int MAX_BATCH_BYTES = Integer.getInteger("kv.replication.batchBytes", 64 * 1024);
+    private static final int MAX_BATCH_COUNT = Integer.getInteger("kv.replication.batchCount", 1024);
+    private static final long LINGER_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(Long.getLong("kv.replication.lingerMicros", 200));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("kv.replication.queueCapacity", 16_384);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("kv.replication.maxInFlightBatches", 8);
+    private static final long PROBE_INTERVAL_MS = Long.getLong("kv.replication.probeIntervalMs", 1000);
+    // A replay pass that moves fewer hints than this is followed by the final, blocking pass
+    private static final int FINAL_PASS_THRESHOLD = 1024;
+
+    private final String nodeId;
+    private final String replica;
+    private final String host;
+    private final int port;
+    private final ConnectionPool pool;
+    private final long timeoutMs;
+    private final Path hintDir;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+    // Guards state changes; writers check the state under it so none slips past a switch
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private volatile State state = State.UP;
+    // Hint appends run here, one at a time and in submission order
+    private final ExecutorService hinter = Executors.newSingleThreadExecutor(Thread.ofVirtual().factory());
+    private WriteAheadLog hints;
+
+    private volatile long epoch = newEpoch();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong hinted = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong backpressured = new AtomicLong();
+    private final LatencyHistogram lag;
+
+    private final Thread drainer;
+    private final Thread prober;
+    private volatile boolean running = true;
+
+    ReplicationChannel(String nodeId, String replica, String host, int port, ConnectionPool pool, long timeoutMs,
+                       Path hintDir, FsyncPolicy fsyncPolicy, long fsyncIntervalMs, LatencyHistogram lag) {
+        this.nodeId = nodeId;
+        this.replica = replica;
+        this.host = host;
+        this.port = port;
+        this.pool = pool;
+        this.timeoutMs = timeoutMs;
+        this.hintDir = hintDir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.lag = lag;
+
+        // Hints left from before a restart must reach the replica before anything newer
+        try {
+            if (WriteAheadLog.hasRecords(hintDir)) {
+                state = State.DOWN;
+                log("Found hints from a previous run, replaying once reachable");
+            }
+        } catch (IOException e) {
+            Log.error(nodeId, "Cannot read hints for " + replica + ": " + e.getMessage());
+        }
+
+        this.drainer = Thread.ofVirtual().name("replicate-" + nodeId + "-" + replica).start(this::drain);
+        this.prober = Thread.ofVirtual().name("replica-probe-" + nodeId + "-" + replica).start(this::probe);
+    }
+
+    CompletableFuture<Void> enqueue(byte[] key, byte[] value, long deadlineNanos) {
+        KeyValueBatch one = new KeyValueBatch();
+        one.add(key, value);
+        return enqueue(one, deadlineNanos);
+    }
+
+    // Several writes that succeed or fail together
+    CompletableFuture<Void> enqueue(KeyValueBatch writes, long deadlineNanos) {
+        Write write = new Write(writes.toByteArray(), writes.count());
+        if (!running) {
+            write.future.completeExceptionally(new IOException("Replication to " + replica + " stopped"));
+            return write.future;
+        }
+        stateLock.lock();
+        try {
+            if (state != State.UP) {
+                hint(List.of(write), "replica " + replica + " is " + state);
+                return write.future;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        try {
+            if (!queue.offer(write, Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                backpressured.incrementAndGet();
+                hint(List.of(write), "replication queue to " + replica + " is full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            hint(List.of(write), "interrupted");
+        }
+        return write.future;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    long getHinted() {
+        return hinted.get();
+    }
+
+    long getReplayed() {
+        return replayed.get();
+    }
+
+    long getBackpressured() {
+        return backpressured.get();
+    }
+
+    void stop() {
+        running = false;
+        drainer.interrupt();
+        prober.interrupt();
+        List<Write> left = new ArrayList<>();
+        queue.drainTo(left);
+        hint(left, "node stopping");
+        hinter.shutdown();
+        try {
+            hinter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (hints != null) {
+            try {
+                hints.close();
+            } catch (IOException e) {
+                Log.error(nodeId, "Failed to close hints for " + replica, e);
+            }
+        }
+    }
+
+    private void drain() {
+        KeyValueBatch batch = new KeyValueBatch();
+        List<Write> inBatch = new ArrayList<>();
+        try {
+            while (running) {
+                Write first = queue.take();
+                if (state != State.UP) {
+                    List<Write> rest = new ArrayList<>();
+                    rest.add(first);
+                    queue.drainTo(rest);
+                    hint(rest, "replica " + replica + " is " + state);
+                    continue;
+                }
+                batch.addEncoded(first.entries, first.count);
+                inBatch.add(first);
+
+                long flushAt = System.nanoTime() + LINGER_NANOS;
+                while (batch.byteSize() < MAX_BATCH_BYTES && batch.count() < MAX_BATCH_COUNT) {
+                    Write next = queue.poll();
+                    if (next == null) {
+                        long wait = flushAt - System.nanoTime();
+                        if (wait <= 0) break;
+                        next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                    }
+                    batch.addEncoded(next.entries, next.count);
+                    inBatch.add(next);
+                }
+
+                window.acquire();
+                List<Write> writes = new ArrayList<>(inBatch);
+                send(batch.toByteArray()).whenComplete((response, error) -> {
+                    window.release();
+                    if (error == null) {
+                        lag.record(System.nanoTime() - writes.get(0).queuedAt);
+                        for (Write w : writes) w.future.complete(null);
+                    } else {
+                        markDown(error);
+                        hint(writes, error.getMessage());
+                    }
+                });
+                batch.clear();
+                inBatch.clear();
+            }
+        } catch (InterruptedException e) {
+            // stopping
+        }
+    }
+
+    private CompletableFuture<Message> send(byte[] entries) {
+        String header = epoch + ":" + sequence.getAndIncrement();
+        Message request = new Message(Message.MessageType.REPLICA_MULTI_PUT, header.getBytes(), entries, nodeId, 0L);
+        sentBatches.incrementAndGet();
+        return pool.sendAsync(host, port, request, timeoutMs).thenApply(response -> {
+            if ("ERROR".equals(response.getKey())) {
+                throw new java.util.concurrent.CompletionException(
+                        new IOException("Replica " + replica + " rejected batch: " + response.getValue()));
+            }
+            return response;
+        });
+    }
+
+    // The failure detector suspects the replica: hint from now on rather than let a batch
+    // find out by timing out
+    void suspect() {
+        if (state == State.UP) markDown(new IOException("suspected by the failure detector"));
+    }
+
+    private void markDown(Throwable cause) {
+        stateLock.lock();
+        try {
+            if (state == State.UP) {
+                state = State.DOWN;
+                log("Replica " + replica + " unreachable (" + rootMessage(cause) + "), hinting writes");
+            } else if (state == State.REPLAYING) {
+                state = State.DOWN;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    // Appends the writes to the hint log on the hinter thread and fails their futures
+    private void hint(List<Write> writes, String reason) {
+        if (writes.isEmpty()) return;
+        IOException failure = new IOException("Not replicated to " + replica + " (" + reason + "), hinted");
+        for (Write w : writes) w.future.completeExceptionally(failure);
+        try {
+            hinter.execute(() -> {
+                try {
+                    WriteAheadLog log = hints();
+                    for (Write w : writes) {
+                        KeyValueBatch.decode(w.entries, (key, value) -> log.append(WriteAheadLog.OP_PUT, key, value));
+                        hinted.addAndGet(w.count);
+                    }
+                } catch (IOException e) {
+                    Log.error(nodeId, "Lost " + writes.size() + " hinted writes for " + replica + ": " + e.getMessage());
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            Log.warn(nodeId, "Dropped " + writes.size() + " writes for " + replica + " during shutdown");
+        }
+    }
+
+    private WriteAheadLog hints() throws IOException {
+        if (hints == null) {
+            hints = new WriteAheadLog(hintDir, fsyncPolicy, fsyncIntervalMs);
+        }
+        return hints;
+    }
+
+    private void probe() {
+        while (running) {
+            try {
+                Thread.sleep(PROBE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (state != State.DOWN) continue;
+            try {
+                pool.send(host, port, new Message(Message.MessageType.PING, (String) null, null, nodeId), timeoutMs);
+            } catch (IOException e) {
+                continue;
+            }
+            replay();
+        }
+    }
+
+    // Drains the hint log into the replica. Writes keep going to the log while this runs;
+    // the last pass holds the state lock so nothing can overtake the final hints.
+    private void replay() {
+        stateLock.lock();
+        try {
+            if (state != State.DOWN) return;
+            state = State.REPLAYING;
+        } finally {
+            stateLock.unlock();
+        }
+        epoch = newEpoch(); // lets the replica drop whatever ordering it kept for batches we lost
+        sequence.set(0);
+        log("Replica " + replica + " is back, replaying hints");
+
+        try {
+            while (true) {
+                long moved = replayPass();
+                if (moved < FINAL_PASS_THRESHOLD) break;
+            }
+            stateLock.lock();
+            try {
+                replayPass();
+                state = State.UP;
+            } finally {
+                stateLock.unlock();
+            }
+            log("Hint replay to " + replica + " complete, " + replayed.get() + " writes delivered so far");
+        } catch (IOException e) {
+            markDown(e);
+            log("Hint replay to " + replica + " interrupted: " + e.getMessage());
+        }
+    }
+
+    // Replays everything hinted so far and deletes it; returns the number of writes moved
+    private long replayPass() throws IOException {
+        long upTo;
+        try {
+            upTo = hinter.submit(() -> hints().rollover()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        KeyValueBatch batch = new KeyValueBatch();
+        long[] moved = {0};
+        IOException[] failed = {null};
+        WriteAheadLog.replay(hintDir, 0, upTo, (op, key, value) -> {
+            if (failed[0] != null) return;
+            batch.add(key, value);
+            if (batch.byteSize() >= MAX_BATCH_BYTES || batch.count() >= MAX_BATCH_COUNT) {
+                failed[0] = sendAndWait(batch);
+                moved[0] += batch.count();
+                batch.clear();
+            }
+        });
+        if (failed[0] == null && !batch.isEmpty()) {
+            failed[0] = sendAndWait(batch);
+            moved[0] += batch.count();
+        }
+        if (failed[0] != null) throw failed[0];
+
+        hints().deleteSegmentsBefore(upTo);
+        replayed.addAndGet(moved[0]);
+        return moved[0];
+    }
+
+    private IOException sendAndWait(KeyValueBatch batch) {
+        try {
+            send(batch.toByteArray()).get(timeoutMs, TimeUnit.MILLISECONDS);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new IOException("Interrupted", e);
+        } catch (ExecutionException | TimeoutException e) {
+            return new IOException(rootMessage(e));
+        }
+    }
+
+    private static long newEpoch() {
+        return System.currentTimeMillis() * 1000 + (System.nanoTime() & 0x3FF);
+    }
+
+    private static String rootMessage(Throwable t) {
+        while (t.getCause() != null) t = t.getCause();
+        return t.getMessage() != null ? t.getMessage() : t.toString();
+    }
+
+    private void log(String message) {
+        Log.info(nodeId, message);
+    }
+
+    private static final class Write {
+        final byte[] entries;
+        final int count;
+        final long queuedAt = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Write(byte[] entries, int count) {
+            this.entries = entries;
+            this.count = count;
+        }
+    }
+}
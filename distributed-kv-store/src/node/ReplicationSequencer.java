@@ -0,0 +1,70 @@
+package node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Receiving end of a ReplicationChannel. Batches from one coordinator carry "<epoch>:<seq>"
+// and may arrive out of order over different pooled connections; each is applied only after
+// the one before it. A gap that is not filled within GAP_WAIT_MS is given up on (the sender
+// will have hinted that batch and replays it later). A newer epoch starts the count again;
+// batches from an older epoch are stragglers and are applied as they come.
+class ReplicationSequencer {
+
+    interface Apply<T> {
+        T run() throws Exception;
+    }
+
+    private static final long GAP_WAIT_MS = Long.getLong("kv.replication.gapWaitMs", 1000);
+
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    <T> T apply(String source, String header, Apply<T> action) throws Exception {
+        int colon = header != null ? header.indexOf(':') : -1;
+        if (source == null || colon < 0) {
+            return action.run(); // not from a channel
+        }
+        long epoch = Long.parseLong(header.substring(0, colon));
+        long seq = Long.parseLong(header.substring(colon + 1));
+        return streams.computeIfAbsent(source, s -> new Stream()).apply(epoch, seq, action);
+    }
+
+    private static final class Stream {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition advanced = lock.newCondition();
+        long epoch = -1;
+        long next;
+
+        <T> T apply(long batchEpoch, long seq, Apply<T> action) throws Exception {
+            lock.lock();
+            try {
+                if (batchEpoch > epoch) {
+                    epoch = batchEpoch;
+                    next = 0;
+                    advanced.signalAll();
+                } else if (batchEpoch < epoch) {
+                    return action.run();
+                }
+
+                long waitNanos = TimeUnit.MILLISECONDS.toNanos(GAP_WAIT_MS);
+                while (seq > next && epoch == batchEpoch && waitNanos > 0) {
+                    waitNanos = advanced.awaitNanos(waitNanos);
+                }
+                if (epoch != batchEpoch) {
+                    return action.run();
+                }
+
+                T result = action.run();
+                if (seq >= next) {
+                    next = seq + 1;
+                    advanced.signalAll();
+                }
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
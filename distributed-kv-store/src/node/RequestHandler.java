@@ -0,0 +1,13 @@
+package node;
+
+import java.io.IOException;
+
+public interface RequestHandler {
+
+    void handle(Message request, ResponseSink sink) throws IOException;
+
+    // What an engine answers when handle() throws instead of responding
+    static Message failure(Message request, String nodeId, RuntimeException e) {
+        return new Message(Message.MessageType.RESPONSE, "ERROR", "Internal error: " + e, nodeId, request.getRequestId());
+    }
+}
@@ -0,0 +1,10 @@
+package node;
+
+import java.io.IOException;
+
+// Where a RequestHandler writes its reply. Streamed replies send any number of
+// partial frames (Message.asPartial()) followed by exactly one final frame.
+public interface ResponseSink {
+
+    void send(Message response) throws IOException;
+}
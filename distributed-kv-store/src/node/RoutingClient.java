@@ -0,0 +1,390 @@
+package node;
+
+import core.HashUtil;
+import core.Log;
+import core.Node;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client that hashes keys itself and sends each request straight to the key's primary
+// replica, saving the coordinator hop a randomly chosen node would need.
+//
+// The ring comes from any reachable seed (TOPOLOGY) and is cached. Requests are marked
+// as routed; a node that holds no replica of the key answers REDIRECT with its own,
+// newer topology, which the client installs before retrying. If the primary cannot be
+// reached the next replica in the preference list is tried.
+public class RoutingClient {
+
+    private static final int MAX_REDIRECTS = 2;
+    // Upper bounds for one MULTI_PUT / MULTI_GET; bigger groups are split
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+    private static final int MAX_BATCH_KEYS = 4096;
+
+    private final List<InetSocketAddress> seeds;
+    private final ConnectionPool pool;
+    private final long timeoutMs;
+    private final String clientId;
+
+    private volatile Topology topology;
+
+    private final AtomicLong redirects = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+
+    public RoutingClient(List<InetSocketAddress> seeds) {
+        this(seeds, NodeClient.getPool(), 3000, "router");
+    }
+
+    public RoutingClient(List<InetSocketAddress> seeds, ConnectionPool pool, long timeoutMs, String clientId) {
+        if (seeds.isEmpty()) throw new IllegalArgumentException("At least one seed node is required");
+        this.seeds = new ArrayList<>(seeds);
+        this.pool = pool;
+        this.timeoutMs = timeoutMs;
+        this.clientId = clientId;
+    }
+
+    public Message put(String key, String value) throws IOException {
+        return await(putAsync(key, value, null));
+    }
+
+    public Message put(String key, String value, ConsistencyLevel consistency) throws IOException {
+        return await(putAsync(key, value, consistency));
+    }
+
+    // The value expires ttlMs after the coordinator stamps it
+    public Message put(String key, String value, long ttlMs) throws IOException {
+        return await(putAsync(key, value, ttlMs, null));
+    }
+
+    public Message get(String key) throws IOException {
+        return await(getAsync(key, null));
+    }
+
+    public Message get(String key, ConsistencyLevel consistency) throws IOException {
+        return await(getAsync(key, consistency));
+    }
+
+    public Message delete(String key) throws IOException {
+        return await(deleteAsync(key, null));
+    }
+
+    public Message delete(String key, ConsistencyLevel consistency) throws IOException {
+        return await(deleteAsync(key, consistency));
+    }
+
+    // Succeeds only while the key is still at expectedVersion (0: absent); otherwise the
+    // response key is CONFLICT and it carries the current value and version
+    public Message compareAndSet(String key, long expectedVersion, String value) throws IOException {
+        return await(compareAndSetAsync(key, expectedVersion, value, null));
+    }
+
+    public Message putIfAbsent(String key, String value) throws IOException {
+        return await(putIfAbsentAsync(key, value, 0, null));
+    }
+
+    // A lease: taken only if nobody holds it, released by expiry
+    public Message putIfAbsent(String key, String value, long ttlMs) throws IOException {
+        return await(putIfAbsentAsync(key, value, ttlMs, null));
+    }
+
+    // The response value is the counter after the increment
+    public Message increment(String key, long delta) throws IOException {
+        return await(incrementAsync(key, delta, null));
+    }
+
+    public CompletableFuture<Message> compareAndSetAsync(String key, long expectedVersion, String value,
+                                                         ConsistencyLevel consistency) {
+        return route(new Message(Message.MessageType.CAS, key, value, clientId).withConsistency(consistency)
+                .withVersion(expectedVersion));
+    }
+
+    public CompletableFuture<Message> putIfAbsentAsync(String key, String value, long ttlMs, ConsistencyLevel consistency) {
+        return route(new Message(Message.MessageType.PUT_IF_ABSENT, key, value, clientId).withConsistency(consistency)
+                .withTtl(ttlMs));
+    }
+
+    public CompletableFuture<Message> incrementAsync(String key, long delta, ConsistencyLevel consistency) {
+        return route(new Message(Message.MessageType.INCREMENT, key, Long.toString(delta), clientId)
+                .withConsistency(consistency));
+    }
+
+    public CompletableFuture<Message> putAsync(String key, String value, ConsistencyLevel consistency) {
+        return putAsync(key, value, 0, consistency);
+    }
+
+    public CompletableFuture<Message> putAsync(String key, String value, long ttlMs, ConsistencyLevel consistency) {
+        return route(new Message(Message.MessageType.PUT, key, value, clientId).withConsistency(consistency).withTtl(ttlMs));
+    }
+
+    public CompletableFuture<Message> deleteAsync(String key, ConsistencyLevel consistency) {
+        return route(new Message(Message.MessageType.DELETE, key, null, clientId).withConsistency(consistency));
+    }
+
+    public CompletableFuture<Message> getAsync(String key, ConsistencyLevel consistency) {
+        return route(new Message(Message.MessageType.GET, key, null, clientId).withConsistency(consistency));
+    }
+
+    // Writes every pair with one MULTI_PUT per primary (split by size), instead of one
+    // round trip per key. Completes with the number of keys written.
+    public CompletableFuture<Integer> multiPutAsync(Map<String, String> entries, ConsistencyLevel consistency) {
+        return multiPutAsync(entries, 0, consistency);
+    }
+
+    // Every value in the batch expires ttlMs after it is written
+    public CompletableFuture<Integer> multiPutAsync(Map<String, String> entries, long ttlMs, ConsistencyLevel consistency) {
+        Topology t;
+        try {
+            t = topology();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Map<String, List<KeyValueBatch>> batches = new HashMap<>();
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            append(batches, t.ring.getNodeForKey(e.getKey()), e.getKey().getBytes(StandardCharsets.UTF_8),
+                    e.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<CompletableFuture<Integer>> sent = new ArrayList<>();
+        for (Map.Entry<String, List<KeyValueBatch>> e : batches.entrySet()) {
+            for (KeyValueBatch batch : e.getValue()) {
+                Message request = new Message(Message.MessageType.MULTI_PUT, null, batch.toByteArray(), clientId, 0L)
+                        .withConsistency(consistency).withTtl(ttlMs);
+                sent.add(sendBatch(t, e.getKey(), request).thenApply(response -> batch.count()));
+            }
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            int written = 0;
+            for (CompletableFuture<Integer> f : sent) written += f.join();
+            return written;
+        });
+    }
+
+    // Keys that do not exist are absent from the result
+    public CompletableFuture<Map<String, String>> multiGetAsync(Collection<String> keys, ConsistencyLevel consistency) {
+        Topology t;
+        try {
+            t = topology();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Map<String, List<KeyValueBatch>> batches = new HashMap<>();
+        byte[] empty = new byte[0];
+        for (String key : keys) {
+            append(batches, t.ring.getNodeForKey(key), key.getBytes(StandardCharsets.UTF_8), empty);
+        }
+
+        List<CompletableFuture<Message>> sent = new ArrayList<>();
+        for (Map.Entry<String, List<KeyValueBatch>> e : batches.entrySet()) {
+            for (KeyValueBatch batch : e.getValue()) {
+                Message request = new Message(Message.MessageType.MULTI_GET, null, batch.toByteArray(), clientId, 0L)
+                        .withConsistency(consistency);
+                sent.add(sendBatch(t, e.getKey(), request));
+            }
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Map<String, String> result = new HashMap<>();
+            for (CompletableFuture<Message> f : sent) {
+                try {
+                    KeyValueBatch.decode(f.join().getValueBytes(), (k, val) -> result.put(
+                            new String(k, StandardCharsets.UTF_8), new String(val, StandardCharsets.UTF_8)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return result;
+        });
+    }
+
+    public int multiPut(Map<String, String> entries, ConsistencyLevel consistency) throws IOException {
+        return await(multiPutAsync(entries, consistency));
+    }
+
+    public Map<String, String> multiGet(Collection<String> keys, ConsistencyLevel consistency) throws IOException {
+        return await(multiGetAsync(keys, consistency));
+    }
+
+    // One page of the keys in [startKey, endKey) (null bounds are open) that come after
+    // resumeToken, which is null for the first page. Any node can coordinate a scan; the
+    // owner of the start key is asked.
+    public CompletableFuture<ScanPage> scanAsync(String startKey, String endKey, int limit, String resumeToken) {
+        Topology t;
+        Message request;
+        try {
+            t = topology();
+            request = new ScanRequest(startKey, endKey, limit, resumeToken).toMessage(Message.MessageType.SCAN, clientId);
+        } catch (IOException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Node target = t.ring.getNode(t.ring.getNodeForKey(startKey != null ? startKey : ""));
+        List<Map.Entry<String, String>> entries = new ArrayList<>();
+        // Partial frames are delivered in order on the connection's reader, before the final one
+        return pool.streamAsync(target.getIp(), target.getPort(), request, timeoutMs, page -> collect(page, entries))
+                .thenApply(last -> {
+                    if ("ERROR".equals(last.getKey())) {
+                        throw new CompletionException(new IOException("SCAN via " + target.getId() + " failed: "
+                                + last.getValue()));
+                    }
+                    collect(last, entries);
+                    return new ScanPage(entries, last.getKeyBytes().length > 0 ? last.getKey() : null);
+                });
+    }
+
+    public ScanPage scan(String startKey, String endKey, int limit, String resumeToken) throws IOException {
+        return await(scanAsync(startKey, endKey, limit, resumeToken));
+    }
+
+    private static void collect(Message page, List<Map.Entry<String, String>> entries) {
+        try {
+            KeyValueBatch.decode(page.getValueBytes(), (k, v) -> entries.add(Map.entry(
+                    new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void append(Map<String, List<KeyValueBatch>> batches, String node, byte[] key, byte[] value) {
+        List<KeyValueBatch> forNode = batches.computeIfAbsent(node, n -> new ArrayList<>());
+        KeyValueBatch last = forNode.isEmpty() ? null : forNode.get(forNode.size() - 1);
+        if (last == null || last.byteSize() >= MAX_BATCH_BYTES || last.count() >= MAX_BATCH_KEYS) {
+            last = new KeyValueBatch();
+            forNode.add(last);
+        }
+        last.add(key, value);
+    }
+
+    // A batch may span ranges the node does not own, so it is never marked routed; any
+    // node can coordinate it, the primary just saves the most hops
+    private CompletableFuture<Message> sendBatch(Topology t, String nodeId, Message request) {
+        Node target = t.ring.getNode(nodeId);
+        return pool.sendAsync(target.getIp(), target.getPort(), request, timeoutMs).thenApply(response -> {
+            if ("ERROR".equals(response.getKey())) {
+                throw new CompletionException(
+                        new IOException(request.getType() + " via " + nodeId + " failed: " + response.getValue()));
+            }
+            return response;
+        });
+    }
+
+    // Node that would coordinate a request for this key
+    public String primaryFor(String key) throws IOException {
+        return topology().ring.getNodeForKey(key);
+    }
+
+    private CompletableFuture<Message> route(Message request) {
+        try {
+            return attempt(request.asRouted(), topology(), 0, 0);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<Message> attempt(Message request, Topology t, int replicaIndex, int redirectCount) {
+        List<String> replicas = t.ring.getNNodesForKey(request.getKey(), t.replicationFactor);
+        if (replicaIndex >= replicas.size()) {
+            return CompletableFuture.failedFuture(
+                    new IOException("No replica of " + request.getKey() + " is reachable"));
+        }
+        Node target = t.ring.getNode(replicas.get(replicaIndex));
+
+        return pool.sendAsync(target.getIp(), target.getPort(), request, timeoutMs)
+                .handle((response, error) -> {
+                    if (error != null) {
+                        failovers.incrementAndGet();
+                        return attempt(request, t, replicaIndex + 1, redirectCount);
+                    }
+                    if (response.getType() == Message.MessageType.REDIRECT) {
+                        redirects.incrementAndGet();
+                        Topology latest = install(response.getValue());
+                        if (redirectCount < MAX_REDIRECTS) {
+                            return attempt(request, latest, 0, redirectCount + 1);
+                        }
+                        // Still disagreeing about ownership; let that node coordinate for us
+                        return pool.sendAsync(target.getIp(), target.getPort(),
+                                new Message(request.getType(), request.getKeyBytes(), request.getValueBytes(),
+                                        clientId, 0L).withConsistency(request.getConsistency())
+                                        .withTtl(request.getTtlMs()).withVersion(request.getVersion()), timeoutMs);
+                    }
+                    return CompletableFuture.completedFuture(response);
+                })
+                .thenCompose(f -> f);
+    }
+
+    private Topology topology() throws IOException {
+        Topology t = topology;
+        return t != null ? t : refresh();
+    }
+
+    // Fetches the ring from the first seed or known node that answers
+    public synchronized Topology refresh() throws IOException {
+        List<InetSocketAddress> candidates = new ArrayList<>(seeds);
+        Topology known = topology;
+        if (known != null) {
+            for (Node node : known.ring.getNodes()) {
+                candidates.add(InetSocketAddress.createUnresolved(node.getIp(), node.getPort()));
+            }
+        }
+        IOException last = null;
+        for (InetSocketAddress address : candidates) {
+            try {
+                Message response = pool.send(address.getHostString(), address.getPort(),
+                        new Message(Message.MessageType.TOPOLOGY, (String) null, null, clientId), timeoutMs);
+                refreshes.incrementAndGet();
+                return install(response.getValue());
+            } catch (IOException | RuntimeException e) {
+                last = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+        throw new IOException("No seed node answered a topology request", last);
+    }
+
+    private synchronized Topology install(String encoded) {
+        Topology incoming = Topology.decode(encoded);
+        Topology current = topology;
+        if (current != null && current.version >= incoming.version
+                && current.ring.getNodeIds().equals(incoming.ring.getNodeIds())) {
+            return current;
+        }
+        if (incoming.algorithm != HashUtil.algorithm()) {
+            Log.warn(null, "Cluster hashes keys with " + incoming.algorithm + " but this client uses "
+                    + HashUtil.algorithm() + " (kv.hash); requests will be redirected");
+        }
+        topology = incoming;
+        return incoming;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    public long getRedirects() {
+        return redirects.get();
+    }
+
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+}
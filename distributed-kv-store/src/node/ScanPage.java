@@ -0,0 +1,30 @@
+package node;
+
+import java.util.List;
+import java.util.Map;
+
+// One page of a range scan. Pass getResumeToken() back as the resume token to read the next
+// page; it is null once the range is exhausted.
+public final class ScanPage {
+
+    private final List<Map.Entry<String, String>> entries;
+    private final String resumeToken;
+
+    ScanPage(List<Map.Entry<String, String>> entries, String resumeToken) {
+        this.entries = entries;
+        this.resumeToken = resumeToken;
+    }
+
+    // In key order
+    public List<Map.Entry<String, String>> getEntries() {
+        return entries;
+    }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    public boolean hasMore() {
+        return resumeToken != null;
+    }
+}
@@ -0,0 +1,64 @@
+package node;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Parameters of a SCAN / REPLICA_SCAN: keys in [startKey, endKey) after the resume token, at
+// most limit of them, in key order. The key of the message is the start key; the value is a
+// KeyValueBatch of the optional fields "end", "limit" and "after". A null bound is open.
+final class ScanRequest {
+
+    static final int MAX_LIMIT = Integer.getInteger("kv.scan.maxLimit", 10_000);
+
+    private static final byte[] END = "end".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LIMIT = "limit".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] AFTER = "after".getBytes(StandardCharsets.UTF_8);
+
+    final String startKey;
+    final String endKey;
+    final int limit;
+    // Last key of the previous page; the scan continues strictly after it
+    final String after;
+
+    ScanRequest(String startKey, String endKey, int limit, String after) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be > 0");
+        this.startKey = startKey;
+        this.endKey = endKey;
+        this.limit = Math.min(limit, MAX_LIMIT);
+        this.after = after;
+    }
+
+    // Inclusive lower bound once the resume token is applied; null when open
+    String from() {
+        if (after == null) return startKey;
+        String next = after + '\u0000'; // smallest key greater than after
+        return startKey == null || next.compareTo(startKey) > 0 ? next : startKey;
+    }
+
+    Message toMessage(Message.MessageType type, String source) {
+        KeyValueBatch fields = new KeyValueBatch();
+        if (endKey != null) fields.add(END, endKey.getBytes(StandardCharsets.UTF_8));
+        fields.add(LIMIT, String.valueOf(limit).getBytes(StandardCharsets.UTF_8));
+        if (after != null) fields.add(AFTER, after.getBytes(StandardCharsets.UTF_8));
+        byte[] start = startKey != null ? startKey.getBytes(StandardCharsets.UTF_8) : null;
+        return new Message(type, start, fields.toByteArray(), source, 0L);
+    }
+
+    static ScanRequest decode(Message message) throws IOException {
+        String[] end = {null};
+        String[] after = {null};
+        int[] limit = {MAX_LIMIT};
+        KeyValueBatch.decode(message.getValueBytes(), (k, v) -> {
+            String field = new String(k, StandardCharsets.UTF_8);
+            String value = new String(v, StandardCharsets.UTF_8);
+            switch (field) {
+                case "end" -> end[0] = value;
+                case "limit" -> limit[0] = Integer.parseInt(value);
+                case "after" -> after[0] = value;
+                default -> { } // from a newer client; ignored
+            }
+        });
+        String start = message.getKeyBytes().length > 0 ? message.getKey() : null;
+        return new ScanRequest(start, end[0], limit[0], after[0]);
+    }
+}
@@ -0,0 +1,69 @@
+package node;
+
+// Limits and engine choice for a NodeServer. Defaults can be overridden with
+// -Dkv.server.engine=NIO|VIRTUAL_THREADS, -Dkv.server.maxConnections=...,
+// -Dkv.server.maxInFlight=... and -Dkv.server.workers=...
+public class ServerConfig {
+
+    public enum EngineType {
+        VIRTUAL_THREADS,
+        NIO
+    }
+
+    private final EngineType engineType;
+    private final int maxConnections;
+    private final int maxInFlightRequests;
+    private final int workerThreads;
+
+    public ServerConfig(EngineType engineType, int maxConnections, int maxInFlightRequests, int workerThreads) {
+        if (maxConnections <= 0 || maxInFlightRequests <= 0 || workerThreads <= 0) {
+            throw new IllegalArgumentException("Server limits must be positive");
+        }
+        this.engineType = engineType;
+        this.maxConnections = maxConnections;
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.workerThreads = workerThreads;
+    }
+
+    public static ServerConfig defaults() {
+        return new ServerConfig(EngineType.VIRTUAL_THREADS, 1024, 4096, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig d = defaults();
+        return new ServerConfig(
+                EngineType.valueOf(System.getProperty("kv.server.engine", d.engineType.name())),
+                Integer.getInteger("kv.server.maxConnections", d.maxConnections),
+                Integer.getInteger("kv.server.maxInFlight", d.maxInFlightRequests),
+                Integer.getInteger("kv.server.workers", d.workerThreads));
+    }
+
+    public ServerEngine createEngine(int port, String nodeId, RequestHandler handler) {
+        return switch (engineType) {
+            case VIRTUAL_THREADS -> new VirtualThreadServerEngine(port, nodeId, this, handler);
+            case NIO -> new NioServerEngine(port, nodeId, this, handler);
+        };
+    }
+
+    public EngineType getEngineType() {
+        return engineType;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    @Override
+    public String toString() {
+        return engineType + " (maxConnections=" + maxConnections + ", maxInFlight=" + maxInFlightRequests
+                + ", workers=" + workerThreads + ")";
+    }
+}
@@ -0,0 +1,19 @@
+package node;
+
+import java.io.IOException;
+
+// Accepts connections for a NodeServer and feeds decoded requests to its RequestHandler.
+public interface ServerEngine {
+
+    void start() throws IOException;
+
+    void stop();
+
+    int getOpenConnections();
+
+    int getInFlightRequests();
+
+    long getRejectedConnections();
+
+    long getRejectedRequests();
+}
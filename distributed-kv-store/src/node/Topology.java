@@ -0,0 +1,69 @@
+package node;
+
+import core.HashUtil;
+import core.Node;
+import core.RingManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A node's view of the ring, in the text form carried by TOPOLOGY and REDIRECT:
+//
+//   version defaultVirtualNodes hashAlgorithm replicationFactor
+//   id ip port virtualNodes weight        (one line per node)
+//
+// Rebuilding a RingManager from it gives the same token placement as the sender's.
+final class Topology {
+
+    final long version;
+    final int replicationFactor;
+    final HashUtil.Algorithm algorithm;
+    final RingManager ring;
+
+    private Topology(long version, int replicationFactor, HashUtil.Algorithm algorithm, RingManager ring) {
+        this.version = version;
+        this.replicationFactor = replicationFactor;
+        this.algorithm = algorithm;
+        this.ring = ring;
+    }
+
+    static String encode(RingManager ring, int replicationFactor) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(ring.getVersion()).append(' ')
+                .append(ring.getDefaultVirtualNodes()).append(' ')
+                .append(HashUtil.algorithm()).append(' ')
+                .append(replicationFactor).append('\n');
+        for (Node node : ring.getNodes()) {
+            sb.append(node.getId()).append(' ')
+                    .append(node.getIp()).append(' ')
+                    .append(node.getPort()).append(' ')
+                    .append(node.getVirtualNodes()).append(' ')
+                    .append(node.getWeight()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static Topology decode(String text) {
+        String[] lines = text.split("\n");
+        String[] header = lines[0].trim().split(" ");
+        if (header.length != 4) {
+            throw new IllegalArgumentException("Malformed topology header: " + lines[0]);
+        }
+        long version = Long.parseLong(header[0]);
+        int defaultVirtualNodes = Integer.parseInt(header[1]);
+        HashUtil.Algorithm algorithm = HashUtil.Algorithm.valueOf(header[2]);
+        int replicationFactor = Integer.parseInt(header[3]);
+
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty()) continue;
+            String[] f = line.split(" ");
+            if (f.length != 5) {
+                throw new IllegalArgumentException("Malformed topology line: " + line);
+            }
+            nodes.add(new Node(f[0], f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]), Double.parseDouble(f[4])));
+        }
+        return new Topology(version, replicationFactor, algorithm, new RingManager(defaultVirtualNodes, nodes, version));
+    }
+}
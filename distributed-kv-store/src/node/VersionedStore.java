@@ -0,0 +1,124 @@
+package node;
+
+import core.HybridClock;
+import core.TimingWheel;
+import core.Versioned;
+import storage.StorageEngine;
+import storage.StorageSnapshot;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Resolves conflicts on write: a replica only stores a value when it is newer than the
+// copy it already holds, so a late replica write, a replayed hint or an anti-entropy
+// chunk can never overwrite newer data. The read-compare-write is serialized per key
+// through a fixed set of striped locks. Every stored write also refreshes the coordinator's
+// hot-key cache, if there is one and it holds the key.
+//
+// Every stored value with a TTL, and every tombstone, is put on a timing wheel at its
+// deadline. When it comes due (see Expirer) an expired value shrinks to a tombstone, which
+// is kept for kv.tombstone.graceMs so the delete still reaches replicas that missed it
+// through hints, read repair and anti-entropy, and is then removed.
+class VersionedStore {
+
+    private static final int STRIPES = 256;
+    static final long TOMBSTONE_GRACE_MS = Long.getLong("kv.tombstone.graceMs", 3 * 60 * 60_000L);
+    static final long TICK_MS = Long.getLong("kv.ttl.tickMs", 100);
+
+    enum Expiry { NONE, EXPIRED, PURGED }
+
+    private final StorageEngine store;
+    private final HybridClock clock = new HybridClock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final HotKeyCache cache;
+    private final TimingWheel wheel = new TimingWheel(TICK_MS, System.currentTimeMillis());
+
+    VersionedStore(StorageEngine store, HotKeyCache cache) {
+        this.store = store;
+        this.cache = cache;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    StorageEngine engine() {
+        return store;
+    }
+
+    HybridClock clock() {
+        return clock;
+    }
+
+    // Returns true if the write was stored, false if it lost to what was already there
+    boolean apply(String key, Versioned incoming) throws IOException {
+        clock.observe(incoming.getVersion());
+        ReentrantLock lock = stripes[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+        lock.lock();
+        try {
+            if (!incoming.isNewerThan(Versioned.decode(store.get(key)))) return false;
+            store.put(key, incoming.encode());
+            if (cache != null) cache.refresh(key, incoming);
+            if (incoming.getExpiresAt() != 0) wheel.schedule(key, incoming.getExpiresAt());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean apply(String key, String encoded) throws IOException {
+        return apply(key, Versioned.decode(encoded));
+    }
+
+    // null when the key is absent; may be a tombstone or an expired value, which the
+    // coordinator still needs to pick the newest version
+    Versioned get(String key) throws IOException {
+        return Versioned.decode(store.get(key));
+    }
+
+    TimingWheel wheel() {
+        return wheel;
+    }
+
+    // After a restart the wheel is empty: put back everything on disk that expires. A
+    // partitioned engine is rescanned one partition per fork-join worker.
+    long scheduleStored() throws IOException {
+        LongAdder scheduled = new LongAdder();
+        store.forEachPartition(p -> {
+            try (StorageSnapshot entries = store.snapshot(p)) {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> e = entries.next();
+                    long expiresAt = Versioned.expiresAt(e.getValue());
+                    if (expiresAt != 0) {
+                        wheel.schedule(e.getKey(), expiresAt);
+                        scheduled.increment();
+                    }
+                }
+            }
+        });
+        return scheduled.sum();
+    }
+
+    // Called for a key the wheel reports due. Rewritten keys have their own, later entry
+    // on the wheel, so anything not actually due yet is left alone.
+    Expiry expire(String key, long nowMillis) throws IOException {
+        ReentrantLock lock = stripes[(key.hashCode() & 0x7FFFFFFF) % STRIPES];
+        lock.lock();
+        try {
+            Versioned stored = Versioned.decode(store.get(key));
+            if (stored == null || stored.getExpiresAt() == 0 || nowMillis < stored.getExpiresAt()) return Expiry.NONE;
+            if (stored.isTombstone()) {
+                store.delete(key);
+                if (cache != null) cache.invalidate(key);
+                return Expiry.PURGED;
+            }
+            // Same version, so replicas that expire it on their own agree with this one
+            Versioned tombstone = Versioned.tombstone(stored.getVersion(), stored.getExpiresAt() + TOMBSTONE_GRACE_MS);
+            store.put(key, tombstone.encode());
+            if (cache != null) cache.invalidate(key);
+            wheel.schedule(key, tombstone.getExpiresAt());
+            return Expiry.EXPIRED;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package node;
+
+import core.Log;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Blocking sockets with one virtual thread per connection and per request.
+// Also the only engine that still serves legacy Java-serialized clients.
+class VirtualThreadServerEngine implements ServerEngine {
+
+    private final int port;
+    private final String nodeId;
+    private final RequestHandler handler;
+    private final AdmissionControl admission;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+
+    VirtualThreadServerEngine(int port, String nodeId, ServerConfig config, RequestHandler handler) {
+        this.port = port;
+        this.nodeId = nodeId;
+        this.handler = handler;
+        this.admission = new AdmissionControl(config);
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "accept-" + nodeId);
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                Socket clientSocket = serverSocket.accept();
+                if (!admission.tryOpenConnection()) {
+                    clientSocket.close();
+                    continue;
+                }
+                executor.execute(new ClientHandler(clientSocket));
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error(nodeId, "Accept failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            Log.error(nodeId, "Failed to close server socket", e);
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return admission.openConnections();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return admission.inFlightRequests();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return admission.rejectedConnections();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return admission.rejectedRequests();
+    }
+
+    private class ClientHandler implements Runnable {
+        private Socket socket;
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+                // Peek at the first two bytes: Java serialization streams start with 0xACED,
+                // everything else must open with the binary protocol handshake.
+                in.mark(2);
+                int b0 = in.read();
+                int b1 = in.read();
+                in.reset();
+
+                if (b0 == MessageCodec.JAVA_STREAM_MAGIC_0 && b1 == MessageCodec.JAVA_STREAM_MAGIC_1) {
+                    serveLegacy(in, out);
+                } else if (b0 >= 0) {
+                    serveBinary(in, out);
+                }
+
+            } catch (EOFException e) {
+                // client closed the connection
+            } catch (Exception e) {
+                if (running) {
+                    Log.error(nodeId, "Connection failed", e);
+                }
+            } finally {
+                admission.connectionClosed();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void serveBinary(InputStream in, OutputStream out) throws IOException {
+            int version = MessageCodec.negotiate(MessageCodec.readHandshake(in));
+            MessageCodec.writeHandshake(out, version);
+
+            // Handlers write from their own virtual threads; a lock (not synchronized) keeps a
+            // blocked write from pinning the carrier. It is taken per frame and fair, so a
+            // chunked response does not hold up the small ones behind it.
+            ReentrantLock writeLock = new ReentrantLock(true);
+            MessageCodec.Assembler assembler = new MessageCodec.Assembler();
+            Message message;
+            while (running && (message = assembler.read(in)) != null) {
+                dispatch(message, response -> MessageCodec.writeFrames(response, version, frame -> {
+                    writeLock.lock();
+                    try {
+                        out.write(frame);
+                        out.flush();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }));
+            }
+        }
+
+        private void serveLegacy(InputStream rawIn, OutputStream rawOut) throws IOException, ClassNotFoundException {
+            ObjectInputStream in = new ObjectInputStream(rawIn);
+            ObjectOutputStream out = new ObjectOutputStream(rawOut);
+            out.flush();
+
+            ReentrantLock writeLock = new ReentrantLock();
+            while (running) {
+                Message message = (Message) in.readObject();
+                dispatch(message, response -> {
+                    writeLock.lock();
+                    try {
+                        out.writeObject(response);
+                        out.reset();
+                        out.flush();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                });
+            }
+        }
+
+        // Pooled clients keep the connection open and pipeline requests; each one is
+        // handled on its own so responses can go back in whatever order they finish.
+        private void dispatch(Message message, ResponseSink writer) throws IOException {
+            if (!admission.tryBeginRequest()) {
+                writer.send(AdmissionControl.busy(message, nodeId));
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    ResponseSink sink = response -> writer.send(response.withRequestId(message.getRequestId()));
+                    try {
+                        handler.handle(message, sink);
+                    } catch (IOException e) {
+                        Log.warn(nodeId, "Failed to send response: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        // Answer anyway, or a multiplexed caller waits out its whole timeout
+                        Log.error(nodeId, message.getType() + " " + message.getKey() + " failed", e);
+                        try {
+                            sink.send(RequestHandler.failure(message, nodeId, e));
+                        } catch (IOException ignored) {
+                        }
+                    } finally {
+                        admission.endRequest();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                admission.endRequest(); // engine is stopping
+            }
+        }
+    }
+}
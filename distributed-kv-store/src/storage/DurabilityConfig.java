@@ -0,0 +1,63 @@
+package storage;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Where and how a node persists its data. Overridable with -Dkv.data.dir=...,
+// -Dkv.wal.fsync=ALWAYS|INTERVAL|OS, -Dkv.wal.fsyncIntervalMs=... and
+// -Dkv.snapshot.intervalMs=...; -Dkv.durability=false keeps the node memory-only.
+public class DurabilityConfig {
+
+    private final boolean enabled;
+    private final Path dataDir;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+    private final long snapshotIntervalMs;
+
+    public DurabilityConfig(boolean enabled, Path dataDir, FsyncPolicy fsyncPolicy, long fsyncIntervalMs,
+                            long snapshotIntervalMs) {
+        this.enabled = enabled;
+        this.dataDir = dataDir;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.snapshotIntervalMs = snapshotIntervalMs;
+    }
+
+    public static DurabilityConfig disabled() {
+        return new DurabilityConfig(false, null, FsyncPolicy.OS, 0, 0);
+    }
+
+    public static DurabilityConfig fromSystemProperties(String nodeId) {
+        return new DurabilityConfig(
+                Boolean.parseBoolean(System.getProperty("kv.durability", "true")),
+                Paths.get(System.getProperty("kv.data.dir", "data"), nodeId),
+                FsyncPolicy.valueOf(System.getProperty("kv.wal.fsync", FsyncPolicy.INTERVAL.name())),
+                Long.getLong("kv.wal.fsyncIntervalMs", 50),
+                Long.getLong("kv.snapshot.intervalMs", 60_000));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public long getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    public long getSnapshotIntervalMs() {
+        return snapshotIntervalMs;
+    }
+
+    @Override
+    public String toString() {
+        return enabled ? dataDir + " (fsync=" + fsyncPolicy + ", snapshot every " + snapshotIntervalMs + "ms)" : "memory-only";
+    }
+}
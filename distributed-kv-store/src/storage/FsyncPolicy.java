@@ -0,0 +1,7 @@
+package storage;
+
+public enum FsyncPolicy {
+    ALWAYS,   // fsync every group commit before acknowledging it
+    INTERVAL, // fsync at most every fsyncIntervalMs; a crash can lose that window
+    OS        // never fsync, leave flushing to the page cache
+}
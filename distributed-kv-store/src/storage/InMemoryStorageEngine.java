@@ -0,0 +1,92 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// The original on-heap map. Unordered, it has the fastest point operations and scans sort a
+// filtered copy; ordered (a skip list), point operations are O(log n) and a scan walks only
+// the requested range.
+public class InMemoryStorageEngine implements StorageEngine {
+
+    // Map node, entry and the two String objects around the characters
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Map<String, String> data;
+    private final NavigableMap<String, String> ordered;
+    // Estimated heap held by the entries; Latin-1 strings take a byte per char
+    private final LongAdder bytes = new LongAdder();
+
+    public InMemoryStorageEngine() {
+        this(false);
+    }
+
+    public InMemoryStorageEngine(boolean ordered) {
+        this.ordered = ordered ? new ConcurrentSkipListMap<>() : null;
+        this.data = ordered ? this.ordered : new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void put(String key, String value) {
+        String previous = data.put(key, value);
+        bytes.add(previous == null ? ENTRY_OVERHEAD + key.length() + value.length() : value.length() - previous.length());
+    }
+
+    @Override
+    public String get(String key) {
+        return data.get(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        String previous = data.remove(key);
+        if (previous != null) bytes.add(-(ENTRY_OVERHEAD + key.length() + previous.length()));
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) {
+        if (ordered != null) {
+            NavigableMap<String, String> range = ordered;
+            if (startKey != null) range = range.tailMap(startKey, true);
+            if (endKey != null) range = range.headMap(endKey, false);
+            List<Map.Entry<String, String>> result = new ArrayList<>(Math.min(limit, 1024));
+            for (Map.Entry<String, String> e : range.entrySet()) {
+                if (result.size() >= limit) break;
+                result.add(Map.entry(e.getKey(), e.getValue()));
+            }
+            return result;
+        }
+        List<Map.Entry<String, String>> matches = new ArrayList<>();
+        for (Map.Entry<String, String> e : data.entrySet()) {
+            String key = e.getKey();
+            if ((startKey == null || key.compareTo(startKey) >= 0) && (endKey == null || key.compareTo(endKey) < 0)) {
+                matches.add(Map.entry(key, e.getValue()));
+            }
+        }
+        matches.sort(Map.Entry.comparingByKey());
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    @Override
+    public StorageSnapshot snapshot() {
+        return StorageSnapshot.of(data.entrySet().iterator());
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public long byteSize(int partition) {
+        return bytes.sum();
+    }
+
+    @Override
+    public void close() {
+    }
+}
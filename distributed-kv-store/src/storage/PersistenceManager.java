@@ -0,0 +1,199 @@
+package storage;
+
+import core.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Local durability for an in-memory engine: every mutation goes to the WAL before the
+// engine, a periodic snapshot compacts it, and startup rebuilds the engine from
+// snapshot + WAL tail.
+public class PersistenceManager implements StorageEngine {
+
+    private final DurabilityConfig config;
+    private final Path dir;
+    private final StorageEngine data;
+    // Mutations log and apply under the read lock; a snapshot's WAL rollover takes the
+    // write lock so every record in the old segments is already visible in the engine.
+    private final ReadWriteLock mutationLock = new ReentrantReadWriteLock();
+    private WriteAheadLog wal;
+    private ScheduledExecutorService snapshotter;
+
+    private volatile long lastRecoveryMillis;
+    private volatile long lastSnapshotMillis;
+
+    public PersistenceManager(DurabilityConfig config, StorageEngine data) {
+        this.config = config;
+        this.dir = config.getDataDir();
+        this.data = data;
+    }
+
+    // Loads the latest snapshot, replays the WAL after it, then opens the WAL for writing.
+    // Returns the number of records applied.
+    public long recover() throws IOException {
+        long start = System.nanoTime();
+        long[] applied = {0};
+        IOException[] failure = {null};
+
+        long fromSegment = SnapshotFile.readLatest(dir, (k, v) -> {
+            apply(WriteAheadLog.OP_PUT, k, v, failure);
+            applied[0]++;
+        });
+        applied[0] += WriteAheadLog.replay(dir, fromSegment, (op, k, v) -> apply(op, k, v, failure));
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        wal = new WriteAheadLog(dir, config.getFsyncPolicy(), config.getFsyncIntervalMs());
+        lastRecoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        return applied[0];
+    }
+
+    private void apply(byte op, byte[] key, byte[] value, IOException[] failure) {
+        try {
+            if (op == WriteAheadLog.OP_PUT) {
+                data.put(utf8(key), utf8(value));
+            } else if (op == WriteAheadLog.OP_DELETE) {
+                data.delete(utf8(key));
+            }
+        } catch (IOException e) {
+            failure[0] = e;
+        }
+    }
+
+    public void scheduleSnapshots() {
+        long interval = config.getSnapshotIntervalMs();
+        if (interval <= 0) return;
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.error(null, "Snapshot failed in " + dir + ": " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        mutationLock.readLock().lock();
+        try {
+            wal.append(WriteAheadLog.OP_PUT, key, value);
+            data.put(key, value);
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        mutationLock.readLock().lock();
+        try {
+            wal.append(WriteAheadLog.OP_DELETE, key, null);
+            data.delete(key);
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        return data.get(key);
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws IOException {
+        return data.scan(startKey, endKey, limit);
+    }
+
+    @Override
+    public StorageSnapshot snapshot() throws IOException {
+        return data.snapshot();
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public int partitions() {
+        return data.partitions();
+    }
+
+    @Override
+    public int partitionFor(long uniformToken) {
+        return data.partitionFor(uniformToken);
+    }
+
+    @Override
+    public StorageSnapshot snapshot(int partition) throws IOException {
+        return data.snapshot(partition);
+    }
+
+    @Override
+    public long size(int partition) {
+        return data.size(partition);
+    }
+
+    @Override
+    public long byteSize(int partition) {
+        return data.byteSize(partition);
+    }
+
+    // Rolls the WAL, writes the engine to a new snapshot file, then drops the snapshot
+    // and segments it supersedes. Writes racing with the copy land in the new segment
+    // and are replayed on top, which is idempotent.
+    public synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        long segment;
+        mutationLock.writeLock().lock();
+        try {
+            segment = wal.rollover();
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        Path written;
+        try (StorageSnapshot entries = data.snapshot()) {
+            written = SnapshotFile.write(dir, segment, entries);
+        }
+        SnapshotFile.deleteOlderThan(dir, written);
+        wal.deleteSegmentsBefore(segment);
+        lastSnapshotMillis = (System.nanoTime() - start) / 1_000_000;
+    }
+
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    public long getLastSnapshotMillis() {
+        return lastSnapshotMillis;
+    }
+
+    private static String utf8(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (snapshotter != null) {
+            snapshotter.shutdownNow();
+        }
+        if (wal != null) {
+            wal.close();
+        }
+        data.close();
+    }
+}
@@ -0,0 +1,121 @@
+package storage;
+
+import core.HashUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// The on-heap map split into a power-of-two number of independent partitions by token:
+// partition p holds the keys whose HashUtil.uniformToken has p as its top bits. Under the
+// hashing partitioners that is the ring token, so a replica's token ranges and the Merkle
+// tree's leaves each fall into a known set of partitions, and streaming a range to a peer
+// walks only those instead of the whole store. Each partition is its own map with its own
+// byte count, so bulk work on one does not contend with writes landing in the others, and
+// whole-store passes (anti-entropy trees, expiry rescans) fan out over the partitions with
+// forEachPartition.
+//
+// Capped at 1024 partitions so that none is finer than a Merkle leaf.
+public class ShardedStorageEngine implements StorageEngine {
+
+    public static final int MAX_PARTITIONS = 1024;
+
+    private final int shift;
+    private final InMemoryStorageEngine[] partitions;
+
+    public ShardedStorageEngine(int partitions, boolean ordered) {
+        int n = 1;
+        while (n < partitions && n < MAX_PARTITIONS) n <<= 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(n);
+        this.partitions = new InMemoryStorageEngine[n];
+        for (int i = 0; i < n; i++) this.partitions[i] = new InMemoryStorageEngine(ordered);
+    }
+
+    private InMemoryStorageEngine partition(String key) {
+        return partitions[partitionFor(HashUtil.uniformToken(key))];
+    }
+
+    @Override
+    public void put(String key, String value) {
+        partition(key).put(key, value);
+    }
+
+    @Override
+    public String get(String key) {
+        return partition(key).get(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        partition(key).delete(key);
+    }
+
+    // Keys are spread by hash, so every partition contributes its first `limit` and the union is cut down
+    @Override
+    public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) {
+        List<Map.Entry<String, String>> merged = new ArrayList<>();
+        for (InMemoryStorageEngine p : partitions) merged.addAll(p.scan(startKey, endKey, limit));
+        merged.sort(Map.Entry.comparingByKey());
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    // Partition after partition; each is weakly consistent like the single map
+    @Override
+    public StorageSnapshot snapshot() {
+        return StorageSnapshot.of(new Iterator<>() {
+            private int next;
+            private Iterator<Map.Entry<String, String>> current = partitions[0].snapshot();
+
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (++next >= partitions.length) return false;
+                    current = partitions[next].snapshot();
+                }
+                return true;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        });
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (InMemoryStorageEngine p : partitions) size += p.size();
+        return size;
+    }
+
+    @Override
+    public int partitions() {
+        return partitions.length;
+    }
+
+    @Override
+    public int partitionFor(long uniformToken) {
+        return shift == 64 ? 0 : (int) (uniformToken >>> shift);
+    }
+
+    @Override
+    public StorageSnapshot snapshot(int partition) {
+        return partitions[partition].snapshot();
+    }
+
+    @Override
+    public long size(int partition) {
+        return partitions[partition].size();
+    }
+
+    @Override
+    public long byteSize(int partition) {
+        return partitions[partition].byteSize(0);
+    }
+
+    @Override
+    public void close() {
+    }
+}
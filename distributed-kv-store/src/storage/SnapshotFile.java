@@ -0,0 +1,153 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Compacted point-in-time copy of the store, written and read through memory-mapped
+// windows. Layout: [long magic][long walSegment][long entryCount] then
+// [int keyLen][key][int valueLen][value] per entry. The WAL segment recorded in the
+// header is the first one that must be replayed on top of the snapshot.
+public final class SnapshotFile {
+
+    private static final long MAGIC = 0x4B56534E41500001L; // "KVSNAP" v1
+    private static final int HEADER_BYTES = 24;
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    public interface EntryVisitor {
+        void visit(byte[] key, byte[] value);
+    }
+
+    private SnapshotFile() {
+    }
+
+    // Writes to a temp file and renames it into place, so a crash never leaves a half snapshot
+    public static Path write(Path dir, long walSegment, Iterator<Map.Entry<String, String>> entries) throws IOException {
+        Path target = dir.resolve(String.format("%s%016d%s", PREFIX, walSegment, SUFFIX));
+        Path tmp = dir.resolve(target.getFileName() + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Window w = new Window(ch, FileChannel.MapMode.READ_WRITE);
+            w.ensure(HEADER_BYTES);
+            w.buf.position(HEADER_BYTES);
+
+            long count = 0;
+            while (entries.hasNext()) {
+                Map.Entry<String, String> e = entries.next();
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);
+                w.ensure(8 + key.length + value.length);
+                w.buf.putInt(key.length).put(key).putInt(value.length).put(value);
+                count++;
+            }
+            long size = w.position();
+
+            w.seek(0);
+            w.ensure(HEADER_BYTES);
+            w.buf.putLong(MAGIC).putLong(walSegment).putLong(count);
+            w.buf.force();
+            w.release();
+            ch.truncate(size);
+            ch.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    // Returns the WAL segment to resume replay from, or 1 if there is no snapshot
+    public static long readLatest(Path dir, EntryVisitor visitor) throws IOException {
+        List<Path> snapshots = list(dir);
+        if (snapshots.isEmpty()) return 1;
+        Path latest = snapshots.get(snapshots.size() - 1);
+
+        try (FileChannel ch = FileChannel.open(latest, StandardOpenOption.READ)) {
+            Window w = new Window(ch, FileChannel.MapMode.READ_ONLY);
+            w.ensure(HEADER_BYTES);
+            if (w.buf.getLong() != MAGIC) {
+                throw new IOException("Corrupt snapshot " + latest);
+            }
+            long walSegment = w.buf.getLong();
+            long count = w.buf.getLong();
+            for (long i = 0; i < count; i++) {
+                w.ensure(4);
+                byte[] key = new byte[w.buf.getInt()];
+                w.ensure(key.length + 4);
+                w.buf.get(key);
+                byte[] value = new byte[w.buf.getInt()];
+                w.ensure(value.length);
+                w.buf.get(value);
+                visitor.visit(key, value);
+            }
+            return walSegment;
+        }
+    }
+
+    // Keeps only the newest snapshot
+    public static void deleteOlderThan(Path dir, Path keep) throws IOException {
+        for (Path p : list(dir)) {
+            if (!p.equals(keep)) Files.deleteIfExists(p);
+        }
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return result;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : files) result.add(p);
+        }
+        result.sort(null); // zero-padded segment numbers sort lexically
+        return result;
+    }
+
+    // A sliding mapped region over the file; remaps whenever the next read or write would cross its end
+    private static final class Window {
+        private final FileChannel ch;
+        private final FileChannel.MapMode mode;
+        private long base;
+        MappedByteBuffer buf;
+
+        Window(FileChannel ch, FileChannel.MapMode mode) {
+            this.ch = ch;
+            this.mode = mode;
+        }
+
+        long position() {
+            return buf == null ? base : base + buf.position();
+        }
+
+        void seek(long pos) throws IOException {
+            release();
+            base = pos;
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buf != null && buf.remaining() >= bytes) return;
+            long pos = position();
+            release();
+            base = pos;
+            long length = Math.max(WINDOW_BYTES, bytes);
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                length = Math.min(length, ch.size() - pos);
+                if (length < bytes) throw new IOException("Truncated snapshot");
+            }
+            buf = ch.map(mode, pos, length);
+        }
+
+        void release() {
+            if (buf != null) {
+                if (mode == FileChannel.MapMode.READ_WRITE) buf.force();
+                base += buf.position();
+                buf = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package storage;
+
+import storage.lsm.LsmStorageEngine;
+import storage.offheap.OffHeapStorageEngine;
+
+import java.io.IOException;
+
+// Which StorageEngine a node runs and how it is tuned. -Dkv.storage.engine=MEMORY|ORDERED|SHARDED|OFF_HEAP|LSM
+// picks the engine; -Dkv.lsm.memtableBytes and -Dkv.lsm.levelBaseBytes tune the LSM,
+// -Dkv.offheap.slabBytes the off-heap slabs and -Dkv.storage.partitions the SHARDED map
+// (default four per core). All engines put their files under the
+// DurabilityConfig data directory.
+public class StorageConfig {
+
+    public enum EngineType {
+        MEMORY,   // on-heap map, optionally made durable by WAL + snapshots
+        ORDERED,  // on-heap skip list: like MEMORY, but range scans do not sort the whole map
+        SHARDED,  // MEMORY split into partitions by token, each with its own map and byte count
+        OFF_HEAP, // keys and values in direct-buffer slabs, same durability options as MEMORY
+        LSM       // memtable + SSTables on disk, for datasets larger than the heap
+    }
+
+    private static final int PARTITIONS = Integer.getInteger("kv.storage.partitions",
+            4 * Runtime.getRuntime().availableProcessors());
+
+    private final EngineType engineType;
+    private final DurabilityConfig durability;
+    private final long memtableBytes;
+    private final long levelBaseBytes;
+
+    public StorageConfig(EngineType engineType, DurabilityConfig durability, long memtableBytes, long levelBaseBytes) {
+        this.engineType = engineType;
+        this.durability = durability;
+        this.memtableBytes = memtableBytes;
+        this.levelBaseBytes = levelBaseBytes;
+    }
+
+    public static StorageConfig memoryOnly() {
+        return new StorageConfig(EngineType.MEMORY, DurabilityConfig.disabled(), 0, 0);
+    }
+
+    public static StorageConfig fromSystemProperties(String nodeId) {
+        return new StorageConfig(
+                EngineType.valueOf(System.getProperty("kv.storage.engine", EngineType.MEMORY.name())),
+                DurabilityConfig.fromSystemProperties(nodeId),
+                Long.getLong("kv.lsm.memtableBytes", 4L * 1024 * 1024),
+                Long.getLong("kv.lsm.levelBaseBytes", 10L * 1024 * 1024));
+    }
+
+    // Opens the engine and brings it back to its last durable state
+    public StorageEngine open() throws IOException {
+        switch (engineType) {
+            case LSM:
+                if (durability.getDataDir() == null) {
+                    throw new IllegalArgumentException("LSM engine needs a data directory");
+                }
+                return LsmStorageEngine.open(durability.getDataDir(), durability.getFsyncPolicy(),
+                        durability.getFsyncIntervalMs(), memtableBytes, levelBaseBytes);
+            case OFF_HEAP:
+            case ORDERED:
+            case SHARDED:
+            case MEMORY:
+            default:
+                StorageEngine memory = engineType == EngineType.OFF_HEAP ? new OffHeapStorageEngine()
+                        : engineType == EngineType.SHARDED ? new ShardedStorageEngine(PARTITIONS, false)
+                        : new InMemoryStorageEngine(engineType == EngineType.ORDERED);
+                if (!durability.isEnabled()) {
+                    return memory;
+                }
+                PersistenceManager persistent = new PersistenceManager(durability, memory);
+                persistent.recover();
+                persistent.scheduleSnapshots();
+                return persistent;
+        }
+    }
+
+    public EngineType getEngineType() {
+        return engineType;
+    }
+
+    public DurabilityConfig getDurability() {
+        return durability;
+    }
+
+    @Override
+    public String toString() {
+        return engineType + " engine, " + durability;
+    }
+}
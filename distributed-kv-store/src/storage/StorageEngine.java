@@ -0,0 +1,77 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+// Local key/value storage behind a NodeServer.
+public interface StorageEngine extends Closeable {
+
+    void put(String key, String value) throws IOException;
+
+    // Returns null when the key is absent or deleted
+    String get(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+
+    // Live entries with startKey <= key < endKey in key order; a null bound is open
+    List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws IOException;
+
+    // Iterates every live entry; must be closed so the engine can release what it pins
+    StorageSnapshot snapshot() throws IOException;
+
+    long size();
+
+    // Engines split into partitions by token (see ShardedStorageEngine) let bulk work go one
+    // partition at a time or run over all of them in parallel. Everything else is a single
+    // partition. With n partitions (a power of two), partition p holds the keys whose
+    // HashUtil.uniformToken has p as its top log2(n) bits.
+    default int partitions() {
+        return 1;
+    }
+
+    default int partitionFor(long uniformToken) {
+        return 0;
+    }
+
+    default StorageSnapshot snapshot(int partition) throws IOException {
+        return snapshot();
+    }
+
+    default long size(int partition) {
+        return size();
+    }
+
+    // Estimated heap held by the partition's entries; 0 for engines that do not track it
+    default long byteSize(int partition) {
+        return 0;
+    }
+
+    @FunctionalInterface
+    interface PartitionVisitor {
+        void visit(int partition) throws IOException;
+    }
+
+    // Visits every partition, in parallel on the common fork-join pool when there are several.
+    // The calling thread takes part, so this returns once all of them are done.
+    default void forEachPartition(PartitionVisitor visitor) throws IOException {
+        if (partitions() == 1) {
+            visitor.visit(0);
+            return;
+        }
+        try {
+            IntStream.range(0, partitions()).parallel().forEach(p -> {
+                try {
+                    visitor.visit(p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package storage;
+
+import java.util.Iterator;
+import java.util.Map;
+
+public interface StorageSnapshot extends Iterator<Map.Entry<String, String>>, AutoCloseable {
+
+    @Override
+    void close();
+
+    static StorageSnapshot of(Iterator<Map.Entry<String, String>> entries) {
+        return new StorageSnapshot() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public Map.Entry<String, String> next() {
+                return entries.next();
+            }
+
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,305 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// Append-only log split into numbered segment files (wal-<n>.log).
+//
+// Appends are queued and a single writer thread drains everything waiting into one
+// write (group commit), then fsyncs according to the FsyncPolicy before releasing
+// the callers. Each record is [int length][int crc32][body] so a torn tail left by a
+// crash is detected and ignored on replay.
+public class WriteAheadLog implements Closeable {
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_DELETE = 2;
+
+    private static final int MAX_BATCH = 1024;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    public interface RecordVisitor {
+        void visit(byte op, byte[] key, byte[] value);
+    }
+
+    private static final class Pending {
+        final ByteBuffer record; // null marks a rollover request
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Pending(ByteBuffer record) {
+            this.record = record;
+        }
+    }
+
+    private final Path dir;
+    private final FsyncPolicy policy;
+    private final long fsyncIntervalMs;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private volatile long segment;
+    private long lastForce = System.currentTimeMillis();
+    private boolean dirty;
+    private volatile boolean closed;
+
+    public WriteAheadLog(Path dir, FsyncPolicy policy, long fsyncIntervalMs) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        Files.createDirectories(dir);
+
+        // Never append after a possibly torn tail: new writes always start a fresh segment
+        List<Long> existing = segments(dir);
+        segment = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        channel = openSegment(segment);
+
+        writer = new Thread(this::writeLoop, "wal-writer-" + dir.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void append(byte op, String key, String value) throws IOException {
+        append(op, key.getBytes(StandardCharsets.UTF_8),
+                value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+    }
+
+    public void append(byte op, byte[] key, byte[] value) throws IOException {
+        await(submit(new Pending(encode(op, key, value))));
+    }
+
+    // Closes the current segment and starts the next one; returns the new segment number.
+    // Everything appended before this call is in earlier segments.
+    public long rollover() throws IOException {
+        return await(submit(new Pending(null)));
+    }
+
+    public long currentSegment() {
+        return segment;
+    }
+
+    // True if any segment in dir holds data, e.g. left over from before a restart
+    public static boolean hasRecords(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return false;
+        for (long s : segments(dir)) {
+            if (Files.size(segmentPath(dir, s)) > 0) return true;
+        }
+        return false;
+    }
+
+    public void deleteSegmentsBefore(long firstKept) throws IOException {
+        for (long s : segments(dir)) {
+            if (s < firstKept) {
+                Files.deleteIfExists(segmentPath(dir, s));
+            }
+        }
+    }
+
+    // Replays every intact record in segments >= fromSegment, oldest first. Returns the record count.
+    public static long replay(Path dir, long fromSegment, RecordVisitor visitor) throws IOException {
+        return replay(dir, fromSegment, Long.MAX_VALUE, visitor);
+    }
+
+    // Same, limited to segments in [fromSegment, toSegment)
+    public static long replay(Path dir, long fromSegment, long toSegment, RecordVisitor visitor) throws IOException {
+        long count = 0;
+        if (!Files.isDirectory(dir)) return 0;
+        for (long s : segments(dir)) {
+            if (s < fromSegment || s >= toSegment) continue;
+            try (FileChannel in = FileChannel.open(segmentPath(dir, s), StandardOpenOption.READ)) {
+                count += replaySegment(in, visitor);
+            }
+        }
+        return count;
+    }
+
+    private static long replaySegment(FileChannel in, RecordVisitor visitor) throws IOException {
+        long count = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        CRC32 crc = new CRC32();
+        while (true) {
+            header.clear();
+            if (!readFully(in, header)) return count;
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || length > in.size() - in.position()) return count; // torn tail
+
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (!readFully(in, body)) return count;
+            body.flip();
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) return count;
+
+            byte op = body.get();
+            byte[] key = new byte[body.getInt()];
+            body.get(key);
+            byte[] value = new byte[body.getInt()];
+            body.get(value);
+            visitor.visit(op, key, value);
+            count++;
+        }
+    }
+
+    private static boolean readFully(FileChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) return false;
+        }
+        return true;
+    }
+
+    private static ByteBuffer encode(byte op, byte[] key, byte[] value) {
+        int bodyLength = 1 + 4 + key.length + 4 + value.length;
+        ByteBuffer buf = ByteBuffer.allocate(8 + bodyLength);
+        buf.putInt(bodyLength);
+        buf.putInt(0); // crc placeholder
+        buf.put(op).putInt(key.length).put(key).putInt(value.length).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 8, bodyLength);
+        buf.putInt(4, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    private CompletableFuture<Long> submit(Pending pending) throws IOException {
+        if (closed) throw new IOException("WAL is closed");
+        queue.add(pending);
+        return pending.done;
+    }
+
+    private static long await(CompletableFuture<Long> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for WAL commit");
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = policy == FsyncPolicy.INTERVAL
+                        ? queue.poll(fsyncIntervalMs, TimeUnit.MILLISECONDS)
+                        : queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    maybeForce();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                for (Pending p : batch) p.done.completeExceptionally(e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>(batch.size());
+        int from = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Pending p = batch.get(i);
+            if (p.record != null) {
+                records.add(p.record);
+                continue;
+            }
+            // rollover: flush what came before it into the old segment first
+            flush(records, batch.subList(from, i));
+            records.clear();
+            from = i + 1;
+            channel.force(false);
+            channel.close();
+            segment++;
+            channel = openSegment(segment);
+            dirty = false;
+            p.done.complete(segment);
+        }
+        flush(records, batch.subList(from, batch.size()));
+    }
+
+    private void flush(List<ByteBuffer> records, List<Pending> waiting) throws IOException {
+        if (records.isEmpty()) return;
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer b : buffers) remaining += b.remaining();
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        dirty = true;
+        if (policy == FsyncPolicy.ALWAYS) {
+            force();
+        } else {
+            maybeForce();
+        }
+        for (Pending p : waiting) {
+            if (p.record != null) p.done.complete(segment);
+        }
+    }
+
+    private void maybeForce() throws IOException {
+        if (policy == FsyncPolicy.INTERVAL && dirty && System.currentTimeMillis() - lastForce >= fsyncIntervalMs) {
+            force();
+        }
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        lastForce = System.currentTimeMillis();
+        dirty = false;
+    }
+
+    private FileChannel openSegment(long s) throws IOException {
+        return FileChannel.open(segmentPath(dir, s),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static Path segmentPath(Path dir, long s) {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, s, SUFFIX));
+    }
+
+    static List<Long> segments(Path dir) throws IOException {
+        List<Long> result = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return result;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                result.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (channel.isOpen()) {
+            if (policy != FsyncPolicy.OS) channel.force(false);
+            channel.close();
+        }
+    }
+}
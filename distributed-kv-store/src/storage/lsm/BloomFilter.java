@@ -0,0 +1,78 @@
+package storage.lsm;
+
+import java.nio.ByteBuffer;
+
+// Per-SSTable Bloom filter so point reads skip files that cannot hold the key.
+// Uses double hashing over one 64-bit hash of the UTF-8 key.
+final class BloomFilter {
+
+    private final long[] bits;
+    private final int numHashes;
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    static BloomFilter create(long expectedKeys, int bitsPerKey) {
+        long numBits = Math.max(64, expectedKeys * bitsPerKey);
+        int numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69))); // ln 2
+        return new BloomFilter(new long[(int) ((numBits + 63) / 64)], numHashes);
+    }
+
+    void add(byte[] key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long numBits = bits.length * 64L;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(byte[] key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        long numBits = bits.length * 64L;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int serializedSize() {
+        return 8 + bits.length * 8;
+    }
+
+    void writeTo(ByteBuffer buf) {
+        buf.putInt(numHashes).putInt(bits.length);
+        for (long word : bits) buf.putLong(word);
+    }
+
+    static BloomFilter readFrom(ByteBuffer buf) {
+        int numHashes = buf.getInt();
+        long[] bits = new long[buf.getInt()];
+        for (int i = 0; i < bits.length; i++) bits[i] = buf.getLong();
+        return new BloomFilter(bits, numHashes);
+    }
+
+    // FNV-1a followed by the MurmurHash3 finalizer to spread the bits
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,16 @@
+package storage.lsm;
+
+// A key with either a value or, when value is null, a deletion marker
+final class Entry {
+    final String key;
+    final byte[] value;
+
+    Entry(String key, byte[] value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    boolean isTombstone() {
+        return value == null;
+    }
+}
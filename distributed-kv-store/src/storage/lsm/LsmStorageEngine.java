@@ -0,0 +1,655 @@
+package storage.lsm;
+
+import core.Log;
+import storage.FsyncPolicy;
+import storage.StorageEngine;
+import storage.StorageSnapshot;
+import storage.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Log-structured merge tree: writes go to the WAL and a memtable; full memtables are
+// flushed to L0 SSTables, and a background thread runs leveled compaction so that L1
+// and below hold non-overlapping files and each level is ~10x the one above. A point
+// read touches the memtables, at most L0_STOP_WRITES L0 files and one file per deeper
+// level, and Bloom filters skip most of those.
+public class LsmStorageEngine implements StorageEngine {
+
+    private static final int BLOCK_BYTES = 4096;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int MAX_LEVELS = 7;
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final int L0_COMPACTION_TRIGGER = 4;
+    private static final int L0_STOP_WRITES = 12;
+    private static final int MAX_IMMUTABLE_MEMTABLES = 2;
+    private static final String TABLE_SUFFIX = ".sst";
+
+    // Immutable view of everything below the active memtable. Readers pin a version
+    // so compaction cannot delete files out from under them.
+    private static final class Version {
+        final List<MemTable> immutables;          // newest first
+        final List<List<SSTableReader>> levels;   // L0 newest first, L1+ sorted by first key
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Version(List<MemTable> immutables, List<List<SSTableReader>> levels) {
+            this.immutables = immutables;
+            this.levels = levels;
+            for (List<SSTableReader> level : levels) {
+                for (SSTableReader table : level) {
+                    if (!table.ref()) throw new IllegalStateException("Table " + table.fileNumber + " already released");
+                }
+            }
+        }
+
+        boolean tryRef() {
+            while (true) {
+                int current = refs.get();
+                if (current <= 0) return false;
+                if (refs.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void unref() {
+            if (refs.decrementAndGet() == 0) {
+                for (List<SSTableReader> level : levels) {
+                    for (SSTableReader table : level) table.unref();
+                }
+            }
+        }
+    }
+
+    private static final class Compaction {
+        final int outputLevel;
+        final List<SSTableReader> upper;  // newest first when from L0
+        final List<SSTableReader> lower;  // sorted, non-overlapping
+        final boolean dropTombstones;
+
+        Compaction(int outputLevel, List<SSTableReader> upper, List<SSTableReader> lower, boolean dropTombstones) {
+            this.outputLevel = outputLevel;
+            this.upper = upper;
+            this.lower = lower;
+            this.dropTombstones = dropTombstones;
+        }
+    }
+
+    private final Path dir;
+    private final long memtableBytes;
+    private final long levelBaseBytes;
+    private final long targetFileBytes;
+    private final WriteAheadLog wal;
+
+    // Writes log + apply under the read lock; memtable rotation takes the write lock
+    private final ReadWriteLock mutationLock = new ReentrantReadWriteLock();
+    // Guards installing a new Version. Writers stall on writeRoom from virtual threads, so this
+    // is a lock and not a monitor, and nothing does WAL I/O while holding it.
+    private final ReentrantLock structureLock = new ReentrantLock();
+    private final Condition writeRoom = structureLock.newCondition();
+    private final AtomicLong nextFileNumber;
+    private final String[] compactPointers = new String[MAX_LEVELS];
+
+    private volatile MemTable memtable = new MemTable();
+    private volatile Version current;
+    private volatile boolean closed;
+
+    private final ExecutorService flusher = singleThread("lsm-flush");
+    private final ExecutorService compactor = singleThread("lsm-compaction");
+
+    private LsmStorageEngine(Path dir, FsyncPolicy policy, long fsyncIntervalMs, long memtableBytes,
+                             long levelBaseBytes) throws IOException {
+        this.dir = dir;
+        this.memtableBytes = memtableBytes;
+        this.levelBaseBytes = levelBaseBytes;
+        this.targetFileBytes = Math.max(64 * 1024, levelBaseBytes / 4);
+        Files.createDirectories(dir);
+
+        Manifest manifest = Manifest.read(dir);
+        List<List<SSTableReader>> levels = new ArrayList<>();
+        for (int i = 0; i < MAX_LEVELS; i++) levels.add(new ArrayList<>());
+        Set<Long> live = new HashSet<>();
+        for (long[] t : manifest.tables) {
+            levels.get((int) t[0]).add(new SSTableReader(t[1], tablePath(t[1])));
+            live.add(t[1]);
+        }
+        for (int i = 1; i < MAX_LEVELS; i++) {
+            levels.get(i).sort(Comparator.comparing(SSTableReader::firstKey));
+        }
+        long maxSeen = deleteOrphanTables(live);
+        nextFileNumber = new AtomicLong(Math.max(manifest.nextFileNumber, maxSeen + 1));
+        current = new Version(Collections.emptyList(), levels);
+        for (List<SSTableReader> level : levels) {
+            for (SSTableReader table : level) table.unref(); // the version now holds them
+        }
+
+        // Anything still in the WAL never made it into an SSTable
+        MemTable recovered = memtable;
+        WriteAheadLog.replay(dir, 0, (op, key, value) ->
+                recovered.put(new String(key, StandardCharsets.UTF_8), op == WriteAheadLog.OP_DELETE ? null : value));
+        wal = new WriteAheadLog(dir, policy, fsyncIntervalMs);
+
+        maybeRotateMemtable();
+        scheduleCompaction();
+    }
+
+    public static LsmStorageEngine open(Path dir, FsyncPolicy policy, long fsyncIntervalMs, long memtableBytes,
+                                        long levelBaseBytes) throws IOException {
+        return new LsmStorageEngine(dir, policy, fsyncIntervalMs, memtableBytes, levelBaseBytes);
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        write(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        write(key, null);
+    }
+
+    private void write(String key, byte[] value) throws IOException {
+        awaitWriteRoom();
+        mutationLock.readLock().lock();
+        try {
+            wal.append(value != null ? WriteAheadLog.OP_PUT : WriteAheadLog.OP_DELETE,
+                    key.getBytes(StandardCharsets.UTF_8), value != null ? value : new byte[0]);
+            memtable.put(key, value);
+        } finally {
+            mutationLock.readLock().unlock();
+        }
+        if (memtable.approximateBytes() >= memtableBytes) {
+            maybeRotateMemtable();
+        }
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        // Memtable before version: a rotation installs the new version first, so the
+        // frozen memtable is always visible in one place or the other
+        Entry e = memtable.get(key);
+        if (e != null) return value(e);
+
+        Version v = acquire();
+        try {
+            for (MemTable imm : v.immutables) {
+                e = imm.get(key);
+                if (e != null) return value(e);
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            for (SSTableReader table : v.levels.get(0)) {
+                e = table.get(key, keyBytes);
+                if (e != null) return value(e);
+            }
+            for (int level = 1; level < MAX_LEVELS; level++) {
+                SSTableReader table = findTable(v.levels.get(level), key);
+                if (table != null) {
+                    e = table.get(key, keyBytes);
+                    if (e != null) return value(e);
+                }
+            }
+            return null;
+        } finally {
+            v.unref();
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws IOException {
+        List<Map.Entry<String, String>> result = new ArrayList<>();
+        MemTable active = memtable;
+        Version v = acquire();
+        try {
+            Iterator<Entry> merged = merged(active, v, startKey, endKey);
+            while (merged.hasNext() && result.size() < limit) {
+                Entry e = merged.next();
+                if (endKey != null && e.key.compareTo(endKey) >= 0) break;
+                if (!e.isTombstone()) result.add(Map.entry(e.key, value(e)));
+            }
+            return result;
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        } finally {
+            v.unref();
+        }
+    }
+
+    @Override
+    public StorageSnapshot snapshot() {
+        MemTable active = memtable;
+        Version v = acquire();
+        Iterator<Entry> merged = merged(active, v, null, null);
+        return new StorageSnapshot() {
+            private Entry next = advance();
+            private boolean released;
+
+            private Entry advance() {
+                while (merged.hasNext()) {
+                    Entry e = merged.next();
+                    if (!e.isTombstone()) return e;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (next == null) throw new NoSuchElementException();
+                Entry e = next;
+                next = advance();
+                return Map.entry(e.key, value(e));
+            }
+
+            public void close() {
+                if (!released) {
+                    released = true;
+                    v.unref();
+                }
+            }
+        };
+    }
+
+    // Upper bound: counts every SSTable entry, including overwritten keys and tombstones
+    @Override
+    public long size() {
+        Version v = acquire();
+        try {
+            long count = memtable.size();
+            for (MemTable imm : v.immutables) count += imm.size();
+            for (List<SSTableReader> level : v.levels) {
+                for (SSTableReader table : level) count += table.entryCount();
+            }
+            return count;
+        } finally {
+            v.unref();
+        }
+    }
+
+    public String describeLevels() {
+        Version v = acquire();
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("memtables=").append(1 + v.immutables.size());
+            for (int level = 0; level < MAX_LEVELS; level++) {
+                List<SSTableReader> tables = v.levels.get(level);
+                if (tables.isEmpty()) continue;
+                sb.append(" L").append(level).append('=').append(tables.size()).append(" files/")
+                        .append(levelBytes(tables) / 1024).append("KB");
+            }
+            return sb.toString();
+        } finally {
+            v.unref();
+        }
+    }
+
+    private Iterator<Entry> merged(MemTable active, Version v, String startKey, String endKey) {
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        sources.add(active.iterator(startKey));
+        for (MemTable imm : v.immutables) sources.add(imm.iterator(startKey));
+        for (SSTableReader table : v.levels.get(0)) sources.add(table.iterator(startKey));
+        for (int level = 1; level < MAX_LEVELS; level++) {
+            List<SSTableReader> tables = new ArrayList<>();
+            for (SSTableReader table : v.levels.get(level)) {
+                if ((startKey == null || table.lastKey().compareTo(startKey) >= 0)
+                        && (endKey == null || table.firstKey().compareTo(endKey) < 0)) {
+                    tables.add(table);
+                }
+            }
+            if (!tables.isEmpty()) sources.add(concat(tables, startKey));
+        }
+        return new MergingIterator(sources);
+    }
+
+    // Iterates a run of sorted, non-overlapping tables as one source
+    private static Iterator<Entry> concat(List<SSTableReader> tables, String fromKey) {
+        return new Iterator<>() {
+            private int index;
+            private Iterator<Entry> it = Collections.emptyIterator();
+
+            public boolean hasNext() {
+                while (!it.hasNext()) {
+                    if (index >= tables.size()) return false;
+                    it = tables.get(index++).iterator(fromKey);
+                }
+                return true;
+            }
+
+            public Entry next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return it.next();
+            }
+        };
+    }
+
+    private static SSTableReader findTable(List<SSTableReader> tables, String key) {
+        int lo = 0;
+        int hi = tables.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            SSTableReader t = tables.get(mid);
+            if (t.lastKey().compareTo(key) < 0) {
+                lo = mid + 1;
+            } else if (t.firstKey().compareTo(key) > 0) {
+                hi = mid - 1;
+            } else {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private static String value(Entry e) {
+        return e.isTombstone() ? null : new String(e.value, StandardCharsets.UTF_8);
+    }
+
+    private Version acquire() {
+        while (true) {
+            Version v = current;
+            if (v.tryRef()) return v;
+        }
+    }
+
+    // Caller holds structureLock
+    private void install(List<MemTable> immutables, List<List<SSTableReader>> levels) {
+        Version old = current;
+        current = new Version(immutables, levels);
+        old.unref();
+        writeRoom.signalAll();
+    }
+
+    private void awaitWriteRoom() throws IOException {
+        Version v = current;
+        if (v.immutables.size() < MAX_IMMUTABLE_MEMTABLES && v.levels.get(0).size() < L0_STOP_WRITES) return;
+        structureLock.lock();
+        try {
+            while (!closed && (current.immutables.size() >= MAX_IMMUTABLE_MEMTABLES
+                    || current.levels.get(0).size() >= L0_STOP_WRITES)) {
+                writeRoom.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for flush/compaction");
+        } finally {
+            structureLock.unlock();
+        }
+        if (closed) throw new IOException("LSM engine is closed");
+    }
+
+    // The write lock keeps rotations apart and writes out while the WAL rolls over; only the
+    // install itself takes structureLock, so flushes and compactions never wait on that I/O
+    private void maybeRotateMemtable() throws IOException {
+        mutationLock.writeLock().lock();
+        try {
+            MemTable full = memtable;
+            if (full.isEmpty() || full.approximateBytes() < memtableBytes) return;
+
+            full.freeze(wal.rollover());
+            structureLock.lock();
+            try {
+                List<MemTable> immutables = new ArrayList<>();
+                immutables.add(full);
+                immutables.addAll(current.immutables);
+                install(immutables, current.levels); // publish before swapping, see get()
+            } finally {
+                structureLock.unlock();
+            }
+            memtable = new MemTable();
+        } finally {
+            mutationLock.writeLock().unlock();
+        }
+        flusher.execute(this::flushOldest);
+    }
+
+    private void flushOldest() {
+        MemTable oldest;
+        structureLock.lock();
+        try {
+            List<MemTable> immutables = current.immutables;
+            if (immutables.isEmpty()) return;
+            oldest = immutables.get(immutables.size() - 1);
+        } finally {
+            structureLock.unlock();
+        }
+        try {
+            List<SSTableReader> tables = writeTable(oldest.iterator(null), oldest.size(), false, Long.MAX_VALUE);
+            structureLock.lock();
+            try {
+                List<MemTable> immutables = new ArrayList<>(current.immutables);
+                immutables.remove(oldest);
+                List<List<SSTableReader>> levels = copyLevels(current.levels);
+                levels.get(0).addAll(0, tables);
+                Manifest.write(dir, nextFileNumber.get(), levels);
+                install(immutables, levels);
+                for (SSTableReader t : tables) t.unref(); // the version holds them now
+            } finally {
+                structureLock.unlock();
+            }
+            wal.deleteSegmentsBefore(oldest.getEndWalSegment());
+            scheduleCompaction();
+        } catch (IOException e) {
+            Log.error(null, "Memtable flush failed in " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!closed) compactor.execute(this::compactUntilBalanced);
+    }
+
+    private void compactUntilBalanced() {
+        while (!closed) {
+            Compaction task;
+            Version v = acquire();
+            try {
+                task = pick(v);
+            } finally {
+                v.unref();
+            }
+            if (task == null) return;
+            try {
+                run(task);
+            } catch (IOException | IllegalStateException e) {
+                Log.error(null, "Compaction failed in " + dir + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private Compaction pick(Version v) {
+        List<SSTableReader> l0 = v.levels.get(0);
+        if (l0.size() >= L0_COMPACTION_TRIGGER) {
+            String from = null;
+            String to = null;
+            for (SSTableReader t : l0) {
+                if (from == null || t.firstKey().compareTo(from) < 0) from = t.firstKey();
+                if (to == null || t.lastKey().compareTo(to) > 0) to = t.lastKey();
+            }
+            return new Compaction(1, new ArrayList<>(l0), overlapping(v.levels.get(1), from, to), isBottom(v, 1));
+        }
+
+        for (int level = 1; level < MAX_LEVELS - 1; level++) {
+            List<SSTableReader> tables = v.levels.get(level);
+            if (levelBytes(tables) <= maxBytesForLevel(level)) continue;
+
+            // Round-robin through the key space so every file eventually gets pushed down
+            SSTableReader chosen = tables.get(0);
+            String pointer = compactPointers[level];
+            if (pointer != null) {
+                for (SSTableReader t : tables) {
+                    if (t.firstKey().compareTo(pointer) > 0) {
+                        chosen = t;
+                        break;
+                    }
+                }
+            }
+            compactPointers[level] = chosen.lastKey();
+            return new Compaction(level + 1, List.of(chosen),
+                    overlapping(v.levels.get(level + 1), chosen.firstKey(), chosen.lastKey()), isBottom(v, level + 1));
+        }
+        return null;
+    }
+
+    private void run(Compaction task) throws IOException {
+        List<Iterator<Entry>> sources = new ArrayList<>();
+        long expected = 0;
+        for (SSTableReader t : task.upper) {
+            sources.add(t.iterator(null));
+            expected += t.entryCount();
+        }
+        if (!task.lower.isEmpty()) {
+            sources.add(concat(task.lower, null));
+            for (SSTableReader t : task.lower) expected += t.entryCount();
+        }
+        List<SSTableReader> outputs = writeTable(new MergingIterator(sources), expected, task.dropTombstones, targetFileBytes);
+
+        // Mark inputs first: installing the new version may drop their last reference
+        for (SSTableReader t : task.upper) t.markObsolete();
+        for (SSTableReader t : task.lower) t.markObsolete();
+        structureLock.lock();
+        try {
+            List<List<SSTableReader>> levels = copyLevels(current.levels);
+            int inputLevel = task.outputLevel - 1;
+            levels.get(inputLevel).removeAll(task.upper);
+            levels.get(task.outputLevel).removeAll(task.lower);
+            levels.get(task.outputLevel).addAll(outputs);
+            levels.get(task.outputLevel).sort(Comparator.comparing(SSTableReader::firstKey));
+            Manifest.write(dir, nextFileNumber.get(), levels);
+            install(current.immutables, levels);
+            for (SSTableReader t : outputs) t.unref();
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    // Writes the entries into one or more tables, starting a new file past maxFileBytes.
+    // Each returned table carries one reference that the caller must hand over or drop.
+    private List<SSTableReader> writeTable(Iterator<Entry> entries, long expected, boolean dropTombstones,
+                                           long maxFileBytes) throws IOException {
+        List<SSTableReader> tables = new ArrayList<>();
+        SSTableWriter writer = null;
+        long number = 0;
+        try {
+            while (entries.hasNext()) {
+                Entry e = entries.next();
+                if (dropTombstones && e.isTombstone()) continue;
+                if (writer == null) {
+                    number = nextFileNumber.getAndIncrement();
+                    writer = new SSTableWriter(tablePath(number), BLOCK_BYTES, expected, BLOOM_BITS_PER_KEY);
+                }
+                writer.add(e);
+                if (writer.bytesWritten() >= maxFileBytes) {
+                    writer.finish();
+                    tables.add(new SSTableReader(number, writer.getPath()));
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                writer.finish();
+                tables.add(new SSTableReader(number, writer.getPath()));
+            }
+            return tables;
+        } catch (IOException | IllegalStateException e) {
+            if (writer != null) {
+                writer.close();
+                Files.deleteIfExists(writer.getPath());
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private static List<SSTableReader> overlapping(List<SSTableReader> tables, String from, String to) {
+        List<SSTableReader> result = new ArrayList<>();
+        for (SSTableReader t : tables) {
+            if (t.overlaps(from, to)) result.add(t);
+        }
+        return result;
+    }
+
+    // Tombstones can only be dropped when nothing older can exist below the output level
+    private static boolean isBottom(Version v, int outputLevel) {
+        for (int level = outputLevel + 1; level < MAX_LEVELS; level++) {
+            if (!v.levels.get(level).isEmpty()) return false;
+        }
+        return true;
+    }
+
+    private long maxBytesForLevel(int level) {
+        long max = levelBaseBytes;
+        for (int i = 1; i < level; i++) max *= LEVEL_MULTIPLIER;
+        return max;
+    }
+
+    private static long levelBytes(List<SSTableReader> tables) {
+        long bytes = 0;
+        for (SSTableReader t : tables) bytes += t.fileBytes();
+        return bytes;
+    }
+
+    private static List<List<SSTableReader>> copyLevels(List<List<SSTableReader>> levels) {
+        List<List<SSTableReader>> copy = new ArrayList<>(levels.size());
+        for (List<SSTableReader> level : levels) copy.add(new ArrayList<>(level));
+        return copy;
+    }
+
+    private Path tablePath(long number) {
+        return dir.resolve(String.format("%06d%s", number, TABLE_SUFFIX));
+    }
+
+    // Tables written by a flush or compaction that crashed before the manifest update
+    private long deleteOrphanTables(Set<Long> live) throws IOException {
+        long max = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + TABLE_SUFFIX)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                long number = Long.parseLong(name.substring(0, name.length() - TABLE_SUFFIX.length()));
+                max = Math.max(max, number);
+                if (!live.contains(number)) Files.deleteIfExists(p);
+            }
+        }
+        return max;
+    }
+
+    private static ExecutorService singleThread(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        structureLock.lock();
+        try {
+            closed = true;
+            writeRoom.signalAll();
+        } finally {
+            structureLock.unlock();
+        }
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wal.close(); // unflushed memtables are still in the WAL and are replayed on open
+        structureLock.lock();
+        try {
+            current.unref();
+        } finally {
+            structureLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package storage.lsm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Records which SSTable files make up each level. Rewritten whole (temp file + atomic
+// rename) on every flush or compaction, so it is never half-written.
+//
+//   next <fileNumber>
+//   <level> <fileNumber>     one line per live table, newest L0 first
+final class Manifest {
+
+    private static final String NAME = "MANIFEST";
+
+    long nextFileNumber = 1;
+    final List<long[]> tables = new ArrayList<>(); // {level, fileNumber}
+
+    static Manifest read(Path dir) throws IOException {
+        Manifest manifest = new Manifest();
+        Path file = dir.resolve(NAME);
+        if (!Files.exists(file)) return manifest;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2) continue;
+            if (parts[0].equals("next")) {
+                manifest.nextFileNumber = Long.parseLong(parts[1]);
+            } else {
+                manifest.tables.add(new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+            }
+        }
+        return manifest;
+    }
+
+    static void write(Path dir, long nextFileNumber, List<List<SSTableReader>> levels) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("next ").append(nextFileNumber).append('\n');
+        for (int level = 0; level < levels.size(); level++) {
+            for (SSTableReader table : levels.get(level)) {
+                sb.append(level).append(' ').append(table.fileNumber).append('\n');
+            }
+        }
+        Path tmp = dir.resolve(NAME + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, dir.resolve(NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,74 @@
+package storage.lsm;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sorted in-memory buffer of recent writes. Once full it is frozen and flushed to an
+// L0 SSTable; the WAL segments it covers can be dropped after that.
+final class MemTable {
+
+    // Identity marker for deletes; the skip list cannot hold nulls
+    private static final byte[] TOMBSTONE = new byte[0];
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final ConcurrentSkipListMap<String, byte[]> map = new ConcurrentSkipListMap<>();
+    private final AtomicLong approximateBytes = new AtomicLong();
+    private volatile long endWalSegment = Long.MAX_VALUE;
+
+    void put(String key, byte[] value) {
+        byte[] previous = map.put(key, value != null ? value : TOMBSTONE);
+        long delta = value != null ? value.length : 0;
+        if (previous == null) {
+            delta += key.length() * 2L + ENTRY_OVERHEAD;
+        } else {
+            delta -= previous.length;
+        }
+        approximateBytes.addAndGet(delta);
+    }
+
+    // null when this memtable knows nothing about the key
+    Entry get(String key) {
+        byte[] value = map.get(key);
+        if (value == null) return null;
+        return new Entry(key, value == TOMBSTONE ? null : value);
+    }
+
+    Iterator<Entry> iterator(String fromKey) {
+        NavigableMap<String, byte[]> view = fromKey == null ? map : map.tailMap(fromKey, true);
+        Iterator<Map.Entry<String, byte[]>> it = view.entrySet().iterator();
+        return new Iterator<>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public Entry next() {
+                Map.Entry<String, byte[]> e = it.next();
+                return new Entry(e.getKey(), e.getValue() == TOMBSTONE ? null : e.getValue());
+            }
+        };
+    }
+
+    long approximateBytes() {
+        return approximateBytes.get();
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    // WAL segments before this one only hold writes that are in this memtable or older
+    void freeze(long endWalSegment) {
+        this.endWalSegment = endWalSegment;
+    }
+
+    long getEndWalSegment() {
+        return endWalSegment;
+    }
+}
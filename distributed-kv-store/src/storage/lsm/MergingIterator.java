@@ -0,0 +1,61 @@
+package storage.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+// Merges sorted sources into one sorted stream with one entry per key. Sources are
+// ordered newest first, so on a tie the entry from the lowest source index wins.
+// Tombstones are passed through; callers decide whether to drop them.
+final class MergingIterator implements Iterator<Entry> {
+
+    private static final class Head {
+        final int source;
+        final Iterator<Entry> it;
+        Entry entry;
+
+        Head(int source, Iterator<Entry> it) {
+            this.source = source;
+            this.it = it;
+            this.entry = it.next();
+        }
+    }
+
+    private final PriorityQueue<Head> heap = new PriorityQueue<>((a, b) -> {
+        int cmp = a.entry.key.compareTo(b.entry.key);
+        return cmp != 0 ? cmp : Integer.compare(a.source, b.source);
+    });
+
+    MergingIterator(List<Iterator<Entry>> sources) {
+        for (int i = 0; i < sources.size(); i++) {
+            Iterator<Entry> it = sources.get(i);
+            if (it.hasNext()) heap.add(new Head(i, it));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public Entry next() {
+        Head top = heap.poll();
+        if (top == null) throw new NoSuchElementException();
+        Entry result = top.entry;
+        advance(top);
+        // Drop older versions of the same key
+        while (!heap.isEmpty() && heap.peek().entry.key.equals(result.key)) {
+            advance(heap.poll());
+        }
+        return result;
+    }
+
+    private void advance(Head head) {
+        if (head.it.hasNext()) {
+            head.entry = head.it.next();
+            heap.add(head);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package storage.lsm;
+
+import core.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Read side of an SSTable. The block index and Bloom filter stay in memory; data
+// blocks are read on demand with positional reads, so any number of threads can share it.
+// Reference counted by the engine's versions: compaction marks a table obsolete and
+// the file is deleted once the last version holding it is released.
+final class SSTableReader {
+
+    final long fileNumber;
+    private final Path path;
+    private final FileChannel channel;
+    private final String[] blockLastKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final BloomFilter bloom;
+    private final String firstKey;
+    private final long entryCount;
+    private final long fileBytes;
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private volatile boolean obsolete;
+
+    SSTableReader(long fileNumber, Path path) throws IOException {
+        this.fileNumber = fileNumber;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileBytes = channel.size();
+
+        ByteBuffer footer = read(fileBytes - SSTableWriter.FOOTER_BYTES, SSTableWriter.FOOTER_BYTES);
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        long bloomOffset = footer.getLong();
+        int bloomLength = footer.getInt();
+        entryCount = footer.getLong();
+        if (footer.getLong() != SSTableWriter.MAGIC) {
+            channel.close();
+            throw new IOException("Corrupt SSTable " + path);
+        }
+
+        ByteBuffer index = read(indexOffset, indexLength);
+        int blocks = index.getInt();
+        firstKey = utf8(index, index.getInt());
+        blockLastKeys = new String[blocks];
+        blockOffsets = new long[blocks];
+        blockLengths = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            blockLastKeys[i] = utf8(index, index.getInt());
+            blockOffsets[i] = index.getLong();
+            blockLengths[i] = index.getInt();
+        }
+        bloom = BloomFilter.readFrom(read(bloomOffset, bloomLength));
+    }
+
+    // null if the table has no entry for the key; a tombstone entry if it was deleted here
+    Entry get(String key, byte[] keyBytes) throws IOException {
+        if (blockLastKeys.length == 0 || key.compareTo(firstKey) < 0 || key.compareTo(lastKey()) > 0) return null;
+        if (!bloom.mightContain(keyBytes)) return null;
+
+        int block = findBlock(key);
+        ByteBuffer buf = read(blockOffsets[block], blockLengths[block]);
+        while (buf.hasRemaining()) {
+            Entry e = decode(buf);
+            int cmp = e.key.compareTo(key);
+            if (cmp == 0) return e;
+            if (cmp > 0) return null;
+        }
+        return null;
+    }
+
+    // Entries with key >= fromKey (or all if null), in order
+    Iterator<Entry> iterator(String fromKey) {
+        int startBlock = fromKey == null ? 0 : findBlock(fromKey);
+        return new Iterator<>() {
+            private int block = startBlock;
+            private ByteBuffer buf;
+            private Entry next = advance();
+
+            private Entry advance() {
+                try {
+                    while (true) {
+                        if (buf == null || !buf.hasRemaining()) {
+                            if (block >= blockLastKeys.length) return null;
+                            buf = read(blockOffsets[block], blockLengths[block]);
+                            block++;
+                        }
+                        Entry e = decode(buf);
+                        if (fromKey == null || e.key.compareTo(fromKey) >= 0) return e;
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed reading " + path, e);
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Entry next() {
+                if (next == null) throw new NoSuchElementException();
+                Entry current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    // First block whose last key is >= key; the last block if key is beyond the table
+    private int findBlock(String key) {
+        int lo = 0;
+        int hi = blockLastKeys.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockLastKeys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static Entry decode(ByteBuffer buf) {
+        String key = utf8(buf, buf.getInt());
+        boolean tombstone = buf.get() == 1;
+        byte[] value = new byte[buf.getInt()];
+        buf.get(value);
+        return new Entry(key, tombstone ? null : value);
+    }
+
+    private static String utf8(ByteBuffer buf, int length) {
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    String firstKey() {
+        return firstKey;
+    }
+
+    String lastKey() {
+        return blockLastKeys.length == 0 ? firstKey : blockLastKeys[blockLastKeys.length - 1];
+    }
+
+    boolean overlaps(String from, String to) {
+        return lastKey().compareTo(from) >= 0 && firstKey.compareTo(to) <= 0;
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    long fileBytes() {
+        return fileBytes;
+    }
+
+    boolean ref() {
+        while (true) {
+            int current = refs.get();
+            if (current <= 0) return false;
+            if (refs.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    void unref() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                channel.close();
+                if (obsolete) Files.deleteIfExists(path);
+            } catch (IOException e) {
+                Log.warn(null, "Failed to release " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    void markObsolete() {
+        obsolete = true;
+    }
+}
@@ -0,0 +1,144 @@
+package storage.lsm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes one immutable sorted table:
+//
+//   data blocks   [int keyLen][key][byte tombstone][int valueLen][value] ...
+//   index block   [int blockCount][int firstKeyLen][firstKey] then per block
+//                 [int lastKeyLen][lastKey][long offset][int length]
+//   bloom filter
+//   footer        [long indexOffset][int indexLength][long bloomOffset][int bloomLength]
+//                 [long entryCount][long magic]
+//
+// Entries must be added in strictly increasing key order.
+final class SSTableWriter implements AutoCloseable {
+
+    static final long MAGIC = 0x4B5653535441424CL; // "KVSSTABL"
+    static final int FOOTER_BYTES = 40;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int blockBytes;
+    private final BloomFilter bloom;
+
+    private ByteBuffer block;
+    private final List<byte[]> blockLastKeys = new ArrayList<>();
+    private final List<Long> blockOffsets = new ArrayList<>();
+    private final List<Integer> blockLengths = new ArrayList<>();
+    private byte[] firstKey;
+    private byte[] lastKey;
+    private long offset;
+    private long entryCount;
+
+    SSTableWriter(Path path, int blockBytes, long expectedEntries, int bloomBitsPerKey) throws IOException {
+        this.path = path;
+        this.blockBytes = blockBytes;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.bloom = BloomFilter.create(Math.max(1, expectedEntries), bloomBitsPerKey);
+        this.block = ByteBuffer.allocate(blockBytes * 2);
+    }
+
+    void add(Entry entry) throws IOException {
+        byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = entry.value != null ? entry.value.length : 0;
+        int size = 4 + key.length + 1 + 4 + valueLength;
+
+        if (block.position() > 0 && block.position() + size > blockBytes) {
+            finishBlock();
+        }
+        if (block.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(block.position() + size);
+            block.flip();
+            bigger.put(block);
+            block = bigger;
+        }
+
+        block.putInt(key.length).put(key).put((byte) (entry.isTombstone() ? 1 : 0)).putInt(valueLength);
+        if (entry.value != null) block.put(entry.value);
+
+        bloom.add(key);
+        if (firstKey == null) firstKey = key;
+        lastKey = key;
+        entryCount++;
+    }
+
+    long bytesWritten() {
+        return offset + block.position();
+    }
+
+    long entryCount() {
+        return entryCount;
+    }
+
+    private void finishBlock() throws IOException {
+        if (block.position() == 0) return;
+        block.flip();
+        int length = block.remaining();
+        writeFully(block);
+        blockLastKeys.add(lastKey);
+        blockOffsets.add(offset);
+        blockLengths.add(length);
+        offset += length;
+        block.clear();
+    }
+
+    // Flushes the last block and writes index, filter and footer
+    void finish() throws IOException {
+        finishBlock();
+
+        int indexLength = 4 + 4 + (firstKey != null ? firstKey.length : 0);
+        for (byte[] k : blockLastKeys) indexLength += 4 + k.length + 8 + 4;
+        ByteBuffer index = ByteBuffer.allocate(indexLength);
+        index.putInt(blockLastKeys.size());
+        byte[] first = firstKey != null ? firstKey : new byte[0];
+        index.putInt(first.length).put(first);
+        for (int i = 0; i < blockLastKeys.size(); i++) {
+            byte[] k = blockLastKeys.get(i);
+            index.putInt(k.length).put(k).putLong(blockOffsets.get(i)).putInt(blockLengths.get(i));
+        }
+        index.flip();
+        long indexOffset = offset;
+        writeFully(index);
+        offset += indexLength;
+
+        ByteBuffer filter = ByteBuffer.allocate(bloom.serializedSize());
+        bloom.writeTo(filter);
+        filter.flip();
+        long bloomOffset = offset;
+        writeFully(filter);
+        offset += filter.capacity();
+
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+        footer.putLong(indexOffset).putInt(indexLength).putLong(bloomOffset).putInt(filter.capacity())
+                .putLong(entryCount).putLong(MAGIC);
+        footer.flip();
+        writeFully(footer);
+        offset += FOOTER_BYTES;
+
+        channel.force(true);
+        channel.close();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) channel.close();
+    }
+}
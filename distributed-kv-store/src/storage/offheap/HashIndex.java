@@ -0,0 +1,138 @@
+package storage.offheap;
+
+// Open-addressing hash index from key to record address, in two primitive arrays so it
+// costs about 12 bytes per slot and gives the GC nothing to trace. Linear probing with
+// backward-shift deletion (no tombstones); the hash is kept next to the address so probes
+// only touch the arena for a real candidate. Not thread-safe; the engine locks around it.
+final class HashIndex {
+
+    private static final double MAX_LOAD = 0.7;
+
+    private final SlabArena arena;
+    private int[] hashes;
+    private long[] addresses;
+    private int mask;
+    private int size;
+
+    HashIndex(SlabArena arena, int initialCapacity) {
+        this.arena = arena;
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+        hashes = new int[capacity];
+        addresses = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // 0 when absent
+    long get(int hash, byte[] key) {
+        int slot = find(hash, key);
+        return slot >= 0 ? addresses[slot] : 0;
+    }
+
+    // Returns the address it replaced, 0 if the key is new
+    long put(int hash, byte[] key, long address) {
+        int slot = find(hash, key);
+        if (slot >= 0) {
+            long previous = addresses[slot];
+            addresses[slot] = address;
+            return previous;
+        }
+        if (size + 1 > addresses.length * MAX_LOAD) resize();
+        insert(hash, address);
+        size++;
+        return 0;
+    }
+
+    // Returns the removed address, 0 if the key was absent
+    long remove(int hash, byte[] key) {
+        int slot = find(hash, key);
+        if (slot < 0) return 0;
+        long previous = addresses[slot];
+        deleteSlot(slot);
+        size--;
+        return previous;
+    }
+
+    // Points the entry currently at `from` to `to`; false if no entry uses `from` (garbage)
+    boolean relocate(int hash, long from, long to) {
+        for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+            if (addresses[slot] == from) {
+                addresses[slot] = to;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean contains(int hash, long address) {
+        for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+            if (addresses[slot] == address) return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long heapBytes() {
+        return addresses.length * 12L;
+    }
+
+    // Every live address, in slot order
+    long[] addresses() {
+        long[] out = new long[size];
+        int n = 0;
+        for (long address : addresses) {
+            if (address != 0) out[n++] = address;
+        }
+        return out;
+    }
+
+    private int find(int hash, byte[] key) {
+        for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && arena.keyEquals(addresses[slot], key)) return slot;
+        }
+        return -1;
+    }
+
+    private void insert(int hash, long address) {
+        int slot = hash & mask;
+        while (addresses[slot] != 0) slot = (slot + 1) & mask;
+        hashes[slot] = hash;
+        addresses[slot] = address;
+    }
+
+    // Shifts later members of the probe run back so lookups never hit a premature gap
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (addresses[next] != 0) {
+            int home = hashes[next] & mask;
+            // Move `next` into the gap unless its home lies cyclically in (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                hashes[gap] = hashes[next];
+                addresses[gap] = addresses[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[gap] = 0;
+        hashes[gap] = 0;
+    }
+
+    private void resize() {
+        int[] oldHashes = hashes;
+        long[] oldAddresses = addresses;
+        hashes = new int[oldHashes.length * 2];
+        addresses = new long[oldAddresses.length * 2];
+        mask = addresses.length - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != 0) insert(oldHashes[i], oldAddresses[i]);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package storage.offheap;
+
+import storage.StorageEngine;
+import storage.StorageSnapshot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory engine that keeps keys and values as UTF-8 in direct buffers outside the Java
+// heap. The heap only holds a primitive open-addressing index (~17 bytes per entry at the
+// maximum load factor) instead of two Strings and a map node per entry, so a GB of heap
+// indexes many times more entries and the collector has almost nothing to trace.
+//
+// Writes append to slabs (see SlabArena); once garbage passes a threshold the slab with the
+// least live data is compacted into the active one, a slab at a time, inline with the write
+// that crossed it. Snapshots copy the index's addresses and hold compaction off until they
+// are closed, so they see a fixed point in time while writes go on.
+// Direct memory is capped by -XX:MaxDirectMemorySize (the heap size by default).
+public class OffHeapStorageEngine implements StorageEngine {
+
+    private static final double COMPACT_BELOW_LIVE_RATIO = 0.5;
+
+    private final SlabArena arena;
+    private final HashIndex index;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger openSnapshots = new AtomicInteger();
+    private final int slabBytes;
+    private long compactions;
+
+    public OffHeapStorageEngine(int slabBytes, int expectedEntries) {
+        this.slabBytes = slabBytes;
+        this.arena = new SlabArena(slabBytes);
+        this.index = new HashIndex(arena, (int) Math.min(1 << 30, expectedEntries / 0.7));
+    }
+
+    // -Dkv.offheap.slabBytes (default 8 MB)
+    public OffHeapStorageEngine() {
+        this(Integer.getInteger("kv.offheap.slabBytes", 8 << 20), 1024);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        int hash = HashIndex.hash(key);
+        lock.writeLock().lock();
+        try {
+            long previous = index.put(hash, k, arena.append(hash, k, v));
+            if (previous != 0) {
+                arena.release(previous);
+                maybeCompact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int hash = HashIndex.hash(key);
+        lock.readLock().lock();
+        try {
+            long address = index.get(hash, k);
+            return address == 0 ? null : new String(arena.value(address), StandardCharsets.UTF_8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int hash = HashIndex.hash(key);
+        lock.writeLock().lock();
+        try {
+            long previous = index.remove(hash, k);
+            if (previous != 0) {
+                arena.release(previous);
+                maybeCompact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) {
+        List<Map.Entry<String, String>> matches = new ArrayList<>();
+        try (StorageSnapshot entries = snapshot()) {
+            while (entries.hasNext()) {
+                Map.Entry<String, String> e = entries.next();
+                String key = e.getKey();
+                if ((startKey == null || key.compareTo(startKey) >= 0) && (endKey == null || key.compareTo(endKey) < 0)) {
+                    matches.add(e);
+                }
+            }
+        }
+        matches.sort(Map.Entry.comparingByKey());
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    @Override
+    public StorageSnapshot snapshot() {
+        long[] addresses;
+        lock.readLock().lock();
+        try {
+            addresses = index.addresses();
+            openSnapshots.incrementAndGet();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new StorageSnapshot() {
+            private int next;
+            private boolean closed;
+
+            public boolean hasNext() {
+                return next < addresses.length;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                long address = addresses[next++];
+                // Records are immutable and their slabs stay put while a snapshot is open;
+                // the lock only guards the arena's slab table against concurrent growth
+                lock.readLock().lock();
+                try {
+                    return new AbstractMap.SimpleImmutableEntry<>(
+                            new String(arena.key(address), StandardCharsets.UTF_8),
+                            new String(arena.value(address), StandardCharsets.UTF_8));
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    openSnapshots.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Direct memory held by slabs, including garbage not yet compacted
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return arena.allocatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long liveBytes() {
+        lock.readLock().lock();
+        try {
+            return arena.liveBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Heap taken by the index arrays
+    public long indexHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return index.heapBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getCompactions() {
+        lock.readLock().lock();
+        try {
+            return compactions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapStorageEngine{entries=" + size() + ", slabs=" + arena.slabCount() + " x " + slabBytes
+                + ", live=" + liveBytes() + ", allocated=" + offHeapBytes() + "}";
+    }
+
+    // Called with the write lock held. Waits for garbage worth at least a slab, then
+    // compacts the emptiest slab if it is less than half live.
+    private void maybeCompact() {
+        if (openSnapshots.get() > 0) return;
+        if (arena.usedBytes() - arena.liveBytes() < slabBytes) return;
+        int slab = arena.compactionCandidate(COMPACT_BELOW_LIVE_RATIO);
+        if (slab < 0) return;
+        for (long address = arena.first(slab); address != 0; address = arena.next(address)) {
+            int hash = arena.hash(address);
+            if (index.contains(hash, address)) {
+                index.relocate(hash, address, arena.move(address));
+            }
+        }
+        arena.free(slab);
+        compactions++;
+    }
+}
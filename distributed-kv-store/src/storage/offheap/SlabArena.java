@@ -0,0 +1,213 @@
+package storage.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Append-only records in fixed-size direct buffers ("slabs"). A record is
+//
+//   int hash | int keyLength | int valueLength | key bytes | value bytes
+//
+// and is never modified once written: an overwrite appends a new record and turns the
+// old one into garbage. Each slab tracks how many of its bytes are still live so the
+// engine can compact the emptiest ones, and emptied slabs go on a free list for reuse.
+// Addresses pack (slab + 1) into the high 32 bits and the offset into the low 32, so
+// 0 is never a valid address. Not thread-safe; the engine locks around it.
+final class SlabArena {
+
+    static final int HEADER = 12;
+
+    private final int slabBytes;
+    private ByteBuffer[] slabs = new ByteBuffer[16];
+    private int[] used = new int[16];
+    private int[] live = new int[16];
+    private int slabCount;
+    private final ArrayDeque<Integer> freeSlabs = new ArrayDeque<>();
+    private int active = -1;
+
+    private long allocatedBytes;
+    private long usedBytes;
+    private long liveBytes;
+
+    SlabArena(int slabBytes) {
+        this.slabBytes = slabBytes;
+    }
+
+    // Appends a record and returns its address
+    long append(int hash, byte[] key, byte[] value) {
+        int size = HEADER + key.length + value.length;
+        int slab = slabFor(size);
+        ByteBuffer buf = slabs[slab];
+        int offset = used[slab];
+        buf.putInt(offset, hash);
+        buf.putInt(offset + 4, key.length);
+        buf.putInt(offset + 8, value.length);
+        buf.put(offset + HEADER, key);
+        buf.put(offset + HEADER + key.length, value);
+        used[slab] += size;
+        usedBytes += size;
+        live[slab] += size;
+        liveBytes += size;
+        return address(slab, offset);
+    }
+
+    // Copies a live record into the active slab, for compaction
+    long move(long from) {
+        ByteBuffer src = slabs[slab(from)];
+        int offset = offset(from);
+        int size = recordSize(from);
+        int slab = slabFor(size);
+        int to = used[slab];
+        slabs[slab].put(to, src, offset, size);
+        used[slab] += size;
+        usedBytes += size;
+        live[slab] += size;
+        liveBytes += size;
+        release(from);
+        return address(slab, to);
+    }
+
+    // Marks a record as garbage
+    void release(long address) {
+        int size = recordSize(address);
+        live[slab(address)] -= size;
+        liveBytes -= size;
+    }
+
+    int hash(long address) {
+        return slabs[slab(address)].getInt(offset(address));
+    }
+
+    boolean keyEquals(long address, byte[] key) {
+        ByteBuffer buf = slabs[slab(address)];
+        int offset = offset(address);
+        if (buf.getInt(offset + 4) != key.length) return false;
+        int start = offset + HEADER;
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(start + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    byte[] key(long address) {
+        ByteBuffer buf = slabs[slab(address)];
+        int offset = offset(address);
+        byte[] key = new byte[buf.getInt(offset + 4)];
+        buf.get(offset + HEADER, key);
+        return key;
+    }
+
+    byte[] value(long address) {
+        ByteBuffer buf = slabs[slab(address)];
+        int offset = offset(address);
+        int keyLength = buf.getInt(offset + 4);
+        byte[] value = new byte[buf.getInt(offset + 8)];
+        buf.get(offset + HEADER + keyLength, value);
+        return value;
+    }
+
+    int recordSize(long address) {
+        ByteBuffer buf = slabs[slab(address)];
+        int offset = offset(address);
+        return HEADER + buf.getInt(offset + 4) + buf.getInt(offset + 8);
+    }
+
+    // The non-active slab with the largest share of garbage, or -1 if none is worth compacting
+    int compactionCandidate(double maxLiveRatio) {
+        int best = -1;
+        double bestRatio = maxLiveRatio;
+        for (int s = 0; s < slabCount; s++) {
+            if (s == active || slabs[s] == null || used[s] == 0) continue;
+            double ratio = live[s] / (double) used[s];
+            if (ratio < bestRatio) {
+                best = s;
+                bestRatio = ratio;
+            }
+        }
+        return best;
+    }
+
+    // Address of the first record in a slab, 0 if it is empty
+    long first(int slab) {
+        return used[slab] > 0 ? address(slab, 0) : 0;
+    }
+
+    // Address of the record after this one in the same slab, 0 at the end
+    long next(long address) {
+        int slab = slab(address);
+        int offset = offset(address) + recordSize(address);
+        return offset < used[slab] ? address(slab, offset) : 0;
+    }
+
+    // Returns a compacted (or never filled) slab to the free list; its records must all be dead
+    void free(int slab) {
+        if (slab == active) active = -1;
+        liveBytes -= live[slab];
+        usedBytes -= used[slab];
+        live[slab] = 0;
+        used[slab] = 0;
+        if (slabs[slab].capacity() == slabBytes) {
+            freeSlabs.push(slab);
+        } else {
+            // Oversized slab for a single large record: let the buffer go
+            allocatedBytes -= slabs[slab].capacity();
+            slabs[slab] = null;
+            freeSlabs.push(slab);
+        }
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    // Bytes taken by records, live or garbage
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    long liveBytes() {
+        return liveBytes;
+    }
+
+    int slabCount() {
+        return slabCount - freeSlabs.size();
+    }
+
+    private int slabFor(int size) {
+        if (active >= 0 && used[active] + size <= slabs[active].capacity()) {
+            return active;
+        }
+        int slab = freeSlabs.isEmpty() ? newSlabIndex() : freeSlabs.pop();
+        if (slabs[slab] == null || slabs[slab].capacity() < size) {
+            if (slabs[slab] != null) allocatedBytes -= slabs[slab].capacity();
+            int capacity = Math.max(slabBytes, size);
+            slabs[slab] = ByteBuffer.allocateDirect(capacity);
+            allocatedBytes += capacity;
+        }
+        used[slab] = 0;
+        live[slab] = 0;
+        if (size <= slabBytes) active = slab; // an oversized slab holds one record and is never active
+        return slab;
+    }
+
+    private int newSlabIndex() {
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabCount * 2);
+            used = Arrays.copyOf(used, slabCount * 2);
+            live = Arrays.copyOf(live, slabCount * 2);
+        }
+        return slabCount++;
+    }
+
+    private static long address(int slab, int offset) {
+        return ((long) (slab + 1) << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int slab(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
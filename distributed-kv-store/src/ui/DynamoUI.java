@@ -2,11 +2,15 @@ package ui;
 
 import node.NodeClient;
 import node.Message;
+import node.RoutingClient;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class DynamoUI extends JFrame {
@@ -15,10 +19,16 @@ public class DynamoUI extends JFrame {
     private JTextField valueField;
     private JTextArea logArea;
     private RingPanel ringPanel;
-    private NodeClient client;
     private JComboBox<String> nodeSelector;
+    private RoutingClient router;
 
-    private final Map<String, Integer> nodePortMap = new HashMap<>();
+    // "Auto" sends each request straight to the key's primary replica
+    private static final String AUTO = "Auto";
+    private static final int MEMBERSHIP_REFRESH_MS = 2000;
+
+    private final List<InetSocketAddress> seeds = new ArrayList<>();
+    // Members as last reported by the cluster; only touched on the event thread
+    private final Map<String, InetSocketAddress> members = new LinkedHashMap<>();
 
     public DynamoUI() {
         setTitle("DynamoDB Mini - UI");
@@ -26,15 +36,18 @@ public class DynamoUI extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null); // Center the window
 
-        client = new NodeClient(); // initialize backend client
-
-        // Define node-port mapping
-        nodePortMap.put("Node-A", 5000);
-        nodePortMap.put("Node-B", 5001);
-        nodePortMap.put("Node-C", 5002);
+        // Any live node will do; the rest of the cluster is learned from its MEMBERSHIP answer
+        for (String seed : System.getProperty("kv.gossip.seeds", "localhost:5000").split(",")) {
+            int colon = seed.trim().lastIndexOf(':');
+            seeds.add(InetSocketAddress.createUnresolved(seed.trim().substring(0, colon),
+                    Integer.parseInt(seed.trim().substring(colon + 1))));
+        }
+        router = new RoutingClient(seeds);
 
         initUI();
         setVisible(true);
+        new Timer(MEMBERSHIP_REFRESH_MS, e -> refreshMembership()).start();
+        refreshMembership();
     }
 
     private void initUI() {
@@ -55,19 +68,21 @@ public class DynamoUI extends JFrame {
         inputRow.add(valueField);
 
         inputRow.add(new JLabel("Node:"));
-        nodeSelector = new JComboBox<>(new String[]{"Node-A", "Node-B", "Node-C"});
+        nodeSelector = new JComboBox<>(new String[]{AUTO});
         inputRow.add(nodeSelector);
 
         JPanel buttonRow = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JButton putButton = new JButton("PUT");
         JButton getButton = new JButton("GET");
-        JButton markDownButton = new JButton("Mark DOWN");
-        JButton markUpButton = new JButton("Mark UP");
+        JButton deleteButton = new JButton("DELETE");
+        JButton recoverButton = new JButton("Recover");
+        JButton decommissionButton = new JButton("Decommission");
 
         buttonRow.add(putButton);
         buttonRow.add(getButton);
-        buttonRow.add(markDownButton);
-        buttonRow.add(markUpButton);
+        buttonRow.add(deleteButton);
+        buttonRow.add(recoverButton);
+        buttonRow.add(decommissionButton);
 
         topPanel.add(inputRow);
         topPanel.add(buttonRow);
@@ -82,12 +97,6 @@ public class DynamoUI extends JFrame {
         ringPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
         centerPanel.add(ringPanel);
 
-        ArrayList<String> mockNodes = new ArrayList<>();
-        mockNodes.add("Node-A");
-        mockNodes.add("Node-B");
-        mockNodes.add("Node-C");
-        ringPanel.setNodes(mockNodes);
-
         logArea = new JTextArea(8, 50);
         logArea.setEditable(false);
         logArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
@@ -103,11 +112,13 @@ public class DynamoUI extends JFrame {
             String key = keyField.getText().trim();
             String val = valueField.getText().trim();
             String selectedNode = (String) nodeSelector.getSelectedItem();
-            int port = nodePortMap.get(selectedNode);
 
             log("PUT clicked to " + selectedNode + " with Key=" + key + ", Value=" + val);
             try {
-                String response = client.sendPutRequest(key, val, "localhost", port);
+                String response = AUTO.equals(selectedNode)
+                        ? router.put(key, val).toString()
+                        : NodeClient.sendPutRequest(key, val, members.get(selectedNode).getHostString(),
+                                members.get(selectedNode).getPort());
                 log("PUT Response: " + response);
             } catch (Exception ex) {
                 log("PUT Error: " + ex.getMessage());
@@ -117,39 +128,115 @@ public class DynamoUI extends JFrame {
         getButton.addActionListener(e -> {
             String key = keyField.getText().trim();
             String selectedNode = (String) nodeSelector.getSelectedItem();
-            int port = nodePortMap.get(selectedNode);
 
             log("GET clicked from " + selectedNode + " with Key=" + key);
             try {
-                String value = client.sendGetRequest(key, "localhost", port);
+                String value = AUTO.equals(selectedNode)
+                        ? router.get(key).toString()
+                        : NodeClient.sendGetRequest(key, members.get(selectedNode).getHostString(),
+                                members.get(selectedNode).getPort());
                 log("GET Response: " + value);
             } catch (Exception ex) {
                 log("GET Error: " + ex.getMessage());
             }
         });
 
-        markDownButton.addActionListener(e -> {
+        deleteButton.addActionListener(e -> {
+            String key = keyField.getText().trim();
             String selectedNode = (String) nodeSelector.getSelectedItem();
-            ringPanel.setNodeStatus(selectedNode, NodeStatus.FAILED);
-            log(selectedNode + " marked as DOWN (FAILED)");
+
+            log("DELETE clicked on " + selectedNode + " with Key=" + key);
+            try {
+                String response = AUTO.equals(selectedNode)
+                        ? router.delete(key).toString()
+                        : NodeClient.sendDeleteRequest(key, members.get(selectedNode).getHostString(),
+                                members.get(selectedNode).getPort());
+                log("DELETE Response: " + response);
+            } catch (Exception ex) {
+                log("DELETE Error: " + ex.getMessage());
+            }
         });
 
-        markUpButton.addActionListener(e -> {
+        recoverButton.addActionListener(e -> {
             String selectedNode = (String) nodeSelector.getSelectedItem();
-            ringPanel.setNodeStatus(selectedNode, NodeStatus.ACTIVE);
-            log(selectedNode + " marked as UP (ACTIVE)");
-
-            // Trigger recovery
-            int port = nodePortMap.get(selectedNode);
+            if (AUTO.equals(selectedNode)) {
+                log("Select a node to recover");
+                return;
+            }
+            // Anti-entropy with every live replica peer of the selected node
+            InetSocketAddress address = members.get(selectedNode);
             try {
                 Message recovery = new Message(Message.MessageType.RECOVERY, null, null, selectedNode);
-                Message response = NodeClient.sendMessage("localhost", port, recovery);
+                Message response = NodeClient.sendMessage(address.getHostString(), address.getPort(), recovery);
                 log("Recovery triggered for " + selectedNode + " → Keys: "
                         + (response != null && response.getValue() != null ? response.getValue() : "none"));
             } catch (Exception ex) {
                 log("Recovery Error: " + ex.getMessage());
             }
         });
+
+        decommissionButton.addActionListener(e -> {
+            String selectedNode = (String) nodeSelector.getSelectedItem();
+            if (AUTO.equals(selectedNode)) {
+                log("Select a node to decommission");
+                return;
+            }
+            // The node streams its ranges to their new owners, then leaves the ring and stops
+            InetSocketAddress address = members.get(selectedNode);
+            try {
+                Message request = new Message(Message.MessageType.DECOMMISSION, null, null, selectedNode);
+                Message response = NodeClient.sendMessage(address.getHostString(), address.getPort(), request);
+                log("Decommission " + selectedNode + " → " + (response != null ? response.getValue() : "no response"));
+            } catch (Exception ex) {
+                log("Decommission Error: " + ex.getMessage());
+            }
+        });
+    }
+
+    // Asks the seeds, then any member seen before, for the cluster's membership and liveness
+    // off the event thread; the ring and node list follow what the failure detector reports
+    private void refreshMembership() {
+        List<InetSocketAddress> candidates = new ArrayList<>(seeds);
+        candidates.addAll(members.values());
+        Thread.ofVirtual().start(() -> {
+            for (InetSocketAddress address : candidates) {
+                try {
+                    Message response = NodeClient.getPool().send(address.getHostString(), address.getPort(),
+                            new Message(Message.MessageType.MEMBERSHIP, null, null, "UI"), 1000);
+                    if (response.getValue() != null) {
+                        SwingUtilities.invokeLater(() -> showMembership(response.getValue()));
+                        return;
+                    }
+                } catch (IOException e) {
+                    // try the next one
+                }
+            }
+        });
+    }
+
+    // One "id host port UP|DOWN phi" line per member
+    private void showMembership(String text) {
+        Map<String, Boolean> up = new LinkedHashMap<>();
+        for (String line : text.split("\n")) {
+            String[] f = line.trim().split(" ");
+            if (f.length < 4) continue;
+            members.put(f[0], InetSocketAddress.createUnresolved(f[1], Integer.parseInt(f[2])));
+            up.put(f[0], "UP".equals(f[3]));
+        }
+        List<String> nodes = new ArrayList<>(up.keySet());
+        ringPanel.setNodes(nodes);
+        for (Map.Entry<String, Boolean> e : up.entrySet()) {
+            ringPanel.setNodeStatus(e.getKey(), e.getValue() ? NodeStatus.ACTIVE : NodeStatus.FAILED);
+        }
+        List<String> listed = new ArrayList<>();
+        for (int i = 1; i < nodeSelector.getItemCount(); i++) listed.add(nodeSelector.getItemAt(i));
+        if (!listed.equals(nodes)) {
+            Object selected = nodeSelector.getSelectedItem();
+            nodeSelector.removeAllItems();
+            nodeSelector.addItem(AUTO);
+            for (String node : nodes) nodeSelector.addItem(node);
+            nodeSelector.setSelectedItem(selected);
+        }
     }
 
     public void log(String message) {